@@ -0,0 +1,126 @@
+package com.adlrg.morse;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import com.adlrg.bluetooth.BluetoothSerialClient;
+
+/**
+ * Mide el arranque de {@link MainActivity} y la vuelta desde segundo plano
+ * con las marcas de {@link StartupTrace}. Se corre con
+ * <pre>
+ * adb shell am instrument -w -r -e class com.adlrg.morse.StartupBenchmark \
+ *     adlrg.com.morse.test/android.test.InstrumentationTestRunner
+ * </pre>
+ * y la mediana de cada paso, en milisegundos, sale en el estado de la
+ * instrumentación y en {@code adb logcat -s StartupTrace}.
+ * <p>
+ * Entre corridas se descarta el cliente bluetooth, así que cada arranque
+ * vuelve a leer la caché y a conectar como en un proceso nuevo, aunque las
+ * clases ya estén cargadas. El primer byte solo se mide si hay un
+ * dispositivo emparejado con el que ya se conectó y que envía datos.
+ */
+public class StartupBenchmark extends ActivityInstrumentationTestCase2<MainActivity> {
+
+    private static final String TAG = "StartupTrace";
+    private static final int RUNS = 10;
+    private static final long STEP_TIMEOUT_MILLIS = 2000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10000;
+
+    public StartupBenchmark() {
+        super(MainActivity.class);
+    }
+
+    public void testColdStart() throws Exception {
+        long[] content = new long[RUNS];
+        long[] firstFrame = new long[RUNS];
+        long[] devices = new long[RUNS];
+        long[] firstByte = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            MainActivity activity = getActivity();
+            StartupTrace trace = activity.getStartupTrace();
+            firstFrame[i] = waitFor(trace, StartupTrace.FIRST_FRAME, STEP_TIMEOUT_MILLIS);
+            devices[i] = waitFor(trace, StartupTrace.DEVICES, STEP_TIMEOUT_MILLIS);
+            content[i] = trace.getMillis(StartupTrace.CONTENT);
+            // la conexión automática ya empezó cuando se marcan los dispositivos
+            firstByte[i] = waitFor(trace, StartupTrace.FIRST_BYTE,
+                    BluetoothSerialClient.getInstance().isConnected() ? CONNECT_TIMEOUT_MILLIS : 0);
+            Log.i(TAG, "cold " + i + ": " + trace);
+            assertTrue(firstFrame[i] >= 0);
+            assertTrue(devices[i] >= 0);
+            finish(activity);
+        }
+        Bundle results = new Bundle();
+        report(results, "cold_content_ms", content);
+        report(results, "cold_first_frame_ms", firstFrame);
+        report(results, "cold_devices_ms", devices);
+        report(results, "cold_first_byte_ms", firstByte);
+        getInstrumentation().sendStatus(0, results);
+    }
+
+    public void testResume() throws Exception {
+        final MainActivity activity = getActivity();
+        waitFor(activity.getStartupTrace(), StartupTrace.FIRST_FRAME, STEP_TIMEOUT_MILLIS);
+        long[] firstFrame = new long[RUNS];
+        long[] devices = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    getInstrumentation().callActivityOnPause(activity);
+                    getInstrumentation().callActivityOnResume(activity);
+                    // sin una pasada de dibujo no hay cuadro que medir
+                    activity.getWindow().getDecorView().invalidate();
+                }
+            });
+            StartupTrace trace = activity.getResumeTrace();
+            firstFrame[i] = waitFor(trace, StartupTrace.FIRST_FRAME, STEP_TIMEOUT_MILLIS);
+            devices[i] = waitFor(trace, StartupTrace.DEVICES, STEP_TIMEOUT_MILLIS);
+            Log.i(TAG, "resume " + i + ": " + trace);
+            assertTrue(firstFrame[i] >= 0);
+        }
+        finish(activity);
+        Bundle results = new Bundle();
+        report(results, "resume_first_frame_ms", firstFrame);
+        report(results, "resume_devices_ms", devices);
+        getInstrumentation().sendStatus(0, results);
+    }
+
+    private void finish(MainActivity activity) {
+        activity.finish();
+        setActivity(null);
+        getInstrumentation().waitForIdleSync();
+        BluetoothSerialClient client = BluetoothSerialClient.getInstance();
+        if (client != null) client.clear();
+    }
+
+    /**
+     * @return milisegundos del paso, o -1 si no ocurrió a tiempo
+     */
+    private static long waitFor(StartupTrace trace, String step, long timeoutMillis) {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        long millis;
+        while ((millis = trace.getMillis(step)) < 0 && SystemClock.uptimeMillis() < deadline)
+            SystemClock.sleep(5);
+        return millis;
+    }
+
+    /**
+     * Mediana de las corridas en que el paso ocurrió
+     */
+    private static void report(Bundle results, String key, long[] samples) {
+        long[] sorted = new long[samples.length];
+        int n = 0;
+        for (long sample : samples)
+            if (sample >= 0) sorted[n++] = sample;
+        if (n == 0) return;
+        Arrays.sort(sorted, 0, n);
+        long median = sorted[n / 2];
+        results.putLong(key, median);
+        Log.i(TAG, key + " " + median + " (" + n + " de " + samples.length + ")");
+    }
+}
@@ -0,0 +1,172 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Separa y verifica los mensajes de {@link BinaryFrameEncoder} en el flujo
+ * que llega por {@link StreamingListener#onData}. Sin COBS, los mensajes que
+ * caben completos en un trozo se entregan como una porción del mismo arreglo;
+ * si el CRC no coincide se descarta un byte y se busca el siguiente mensaje
+ * válido, lo que puede tardar hasta {@code maxPayload} bytes si un byte dañado
+ * parece una longitud. Con COBS se junta hasta el '\0', se decodifica en el buffer propio
+ * y un error solo afecta a ese mensaje.
+ * <p>
+ * No reserva memoria después de construirse. No es seguro usar la misma
+ * instancia desde varios hilos.
+ */
+public class BinaryFrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * Recibe un mensaje verificado. El arreglo solo es válido durante la llamada.
+         */
+        void onFrame(int type, int sequence, byte[] buffer, int offset, int length);
+
+        /**
+         * Avisa que se descartaron bytes por CRC incorrecto, formato inválido
+         * o tamaño excesivo
+         */
+        void onCorruptFrame();
+    }
+
+    private final boolean cobs;
+    private final int maxPayload;
+    private final byte[] partial;
+    private final FrameListener listener;
+
+    private int pending;
+    private boolean discarding;
+
+    private long frames;
+    private long corruptFrames;
+
+    /**
+     * @param cobs       debe coincidir con el del {@link BinaryFrameEncoder}
+     * @param maxPayload tamaño máximo de los datos de un mensaje
+     */
+    public BinaryFrameDecoder(boolean cobs, int maxPayload, FrameListener listener) {
+        this.cobs = cobs;
+        this.maxPayload = maxPayload;
+        this.listener = listener;
+        int raw = BinaryFrameEncoder.HEADER_MAX + maxPayload + BinaryFrameEncoder.CRC_BYTES;
+        partial = new byte[cobs ? Cobs.maxEncodedLength(raw) : raw];
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        if (cobs)
+            feedCobs(data, offset, length);
+        else
+            feedRaw(data, offset, length);
+    }
+
+    /**
+     * Descarta el mensaje incompleto, por ejemplo al reconectar
+     */
+    public void reset() {
+        pending = 0;
+        discarding = false;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return veces que se descartaron bytes; al resincronizar sin COBS un
+     * solo error puede contarse varias veces
+     */
+    public long getCorruptFrames() {
+        return corruptFrames;
+    }
+
+    private void feedRaw(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        if (pending == 0)
+            pos += parse(data, pos, end);
+        while (pos < end) {
+            int n = Math.min(end - pos, partial.length - pending);
+            System.arraycopy(data, pos, partial, pending, n);
+            pending += n;
+            pos += n;
+            int consumed = parse(partial, 0, pending);
+            System.arraycopy(partial, consumed, partial, 0, pending - consumed);
+            pending -= consumed;
+            // lo que queda es el inicio de un mensaje; si ya se vació se sigue sin copiar
+            if (pending == 0 && pos < end)
+                pos += parse(data, pos, end);
+        }
+    }
+
+    private void feedCobs(byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b != 0) {
+                if (discarding) continue;
+                if (pending == partial.length) {
+                    discarding = true;
+                    corrupt();
+                    continue;
+                }
+                partial[pending++] = b;
+                continue;
+            }
+            if (!discarding && pending > 0) {
+                int decoded = Cobs.decode(partial, 0, pending, partial, 0);
+                if (decoded < 0 || frame(partial, 0, decoded) != decoded)
+                    corrupt();
+            }
+            pending = 0;
+            discarding = false;
+        }
+    }
+
+    /**
+     * Entrega los mensajes completos de {@code [from, to)}
+     *
+     * @return bytes consumidos; lo que sobra es un mensaje incompleto
+     */
+    private int parse(byte[] data, int from, int to) {
+        int pos = from;
+        while (pos < to) {
+            int n = frame(data, pos, to);
+            if (n == 0) break;
+            if (n < 0) {
+                corrupt();
+                pos++;
+            } else {
+                pos += n;
+            }
+        }
+        return pos - from;
+    }
+
+    /**
+     * Intenta leer un mensaje que empieza en {@code pos}
+     *
+     * @return su tamaño si es válido, 0 si faltan bytes o -1 si no es un mensaje
+     */
+    private int frame(byte[] data, int pos, int to) {
+        int p = pos;
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 14) return -1;
+            if (p >= to) return 0;
+            int b = data[p++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length > maxPayload) return -1;
+        int crcAt = p + 2 + length;
+        if (crcAt + BinaryFrameEncoder.CRC_BYTES > to) return 0;
+        int crc = ((data[crcAt] & 0xFF) << 8) | (data[crcAt + 1] & 0xFF);
+        if (Crc16.compute(data, pos, crcAt - pos) != crc) return -1;
+        frames++;
+        listener.onFrame(data[p] & 0xFF, data[p + 1] & 0xFF, data, p + 2, length);
+        return crcAt + BinaryFrameEncoder.CRC_BYTES - pos;
+    }
+
+    private void corrupt() {
+        corruptFrames++;
+        listener.onCorruptFrame();
+    }
+}
@@ -0,0 +1,115 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Codifica mensajes binarios con este formato:
+ * <pre>
+ *   longitud (varint, 1 a 3 bytes) | tipo (1) | secuencia (1) | datos | CRC-16 (2, big-endian)
+ * </pre>
+ * La longitud es la de los datos y el CRC ({@link Crc16}) cubre todo lo
+ * anterior. Con COBS el mensaje completo se codifica con {@link Cobs} y se
+ * termina con '\0', así que puede separarse con {@link FrameDecoder} en modo
+ * NUL y se resincroniza en el siguiente delimitador.
+ * <p>
+ * No reserva memoria después de construirse. No es seguro usar la misma
+ * instancia desde varios hilos.
+ */
+public class BinaryFrameEncoder {
+
+    /** Longitud máxima que cabe en un varint de 3 bytes */
+    public static final int MAX_PAYLOAD = (1 << 21) - 1;
+    public static final int HEADER_MAX = 3 + 2;
+    public static final int CRC_BYTES = 2;
+
+    private final boolean cobs;
+    private final int maxPayload;
+    private final byte[] scratch;
+    private final byte[] buffer;
+    private int sequence;
+
+    /**
+     * @param cobs       <code>true</code> para codificar con COBS y delimitar con '\0'
+     * @param maxPayload tamaño máximo de los datos de un mensaje
+     */
+    public BinaryFrameEncoder(boolean cobs, int maxPayload) {
+        if (maxPayload > MAX_PAYLOAD)
+            throw new IllegalArgumentException("maxPayload > " + MAX_PAYLOAD);
+        this.cobs = cobs;
+        this.maxPayload = maxPayload;
+        int raw = HEADER_MAX + maxPayload + CRC_BYTES;
+        scratch = cobs ? new byte[raw] : null;
+        buffer = new byte[maxFrameLength(maxPayload, cobs)];
+    }
+
+    /**
+     * @return bytes que puede ocupar en el cable un mensaje con {@code payloadLength} bytes de datos
+     */
+    public static int maxFrameLength(int payloadLength, boolean cobs) {
+        int raw = HEADER_MAX + payloadLength + CRC_BYTES;
+        return cobs ? Cobs.maxEncodedLength(raw) + 1 : raw;
+    }
+
+    /**
+     * @return el siguiente número de secuencia, de 0 a 255 y de vuelta a 0
+     */
+    public int nextSequence() {
+        int next = sequence;
+        sequence = (sequence + 1) & 0xFF;
+        return next;
+    }
+
+    /**
+     * Codifica en el buffer interno ({@link #getBuffer()})
+     *
+     * @return bytes del mensaje codificado
+     */
+    public int encode(int type, int sequence, byte[] payload, int offset, int length) {
+        return encode(type, sequence, payload, offset, length, buffer, 0);
+    }
+
+    /**
+     * Codifica en {@code out}, que debe tener al menos
+     * {@link #maxFrameLength(int, boolean)} bytes libres desde {@code outOffset}
+     *
+     * @return bytes escritos
+     */
+    public int encode(int type, int sequence, byte[] payload, int offset, int length,
+                      byte[] out, int outOffset) {
+        if (length > maxPayload)
+            throw new IllegalArgumentException("Payload of " + length + " bytes > " + maxPayload);
+        byte[] target = cobs ? scratch : out;
+        int start = cobs ? 0 : outOffset;
+        int pos = writeVarint(target, start, length);
+        target[pos++] = (byte) type;
+        target[pos++] = (byte) sequence;
+        System.arraycopy(payload, offset, target, pos, length);
+        pos += length;
+        int crc = Crc16.compute(target, start, pos - start);
+        target[pos++] = (byte) (crc >> 8);
+        target[pos++] = (byte) crc;
+        if (!cobs) return pos - outOffset;
+        int n = Cobs.encode(scratch, 0, pos, out, outOffset);
+        out[outOffset + n] = 0;
+        return n + 1;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public boolean isCobs() {
+        return cobs;
+    }
+
+    public int getMaxPayload() {
+        return maxPayload;
+    }
+
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while (value >= 0x80) {
+            out[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -3,23 +3,23 @@ package com.adlrg.bluetooth;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.Nullable;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Andres on 20/01/2016.
@@ -32,20 +32,22 @@ public class BluetoothSerialClient {
     private BluetoothUpListener btUpListener;
     private ScanListener scanListener;
 
-    private Handler mainHandler = new Handler(Looper.getMainLooper());
-    private BluetoothStreamingHandler btStreamingHandler;
+    private HandlerScheduler mainScheduler = new HandlerScheduler(Looper.getMainLooper());
+    private HandlerScheduler deliveryScheduler;
+    private DataDispatcher.Mode deliveryMode = DataDispatcher.Mode.IMMEDIATE;
+    private long deliveryInterval = DataDispatcher.FRAME_INTERVAL;
+    private DataDispatcher.Overflow overflowPolicy = DataDispatcher.Overflow.BLOCK;
     private UUID mUUID = UUID.fromString(SERIAL_UUID);
 
     private BluetoothAdapter adapter;
-    private ExecutorService readExecutor;
-    private ExecutorService writeExecutor;
-    private BluetoothDevice connectedDevice;
-    private BluetoothSocket btSocket;
-
-    private InputStream is;
-    private OutputStream os;
-
-    private boolean connected;
+    private SerialConnectionManager connectionManager;
+    private volatile SerialSession connection;
+    private NioEventLoop nioLoop;
+    private final LinkMetrics linkMetrics = new LinkMetrics();
+    private final DeviceRegistry deviceRegistry = new DeviceRegistry();
+    private boolean deviceCacheLoaded;
+    private boolean devicesLoading;
+    private ScheduledFuture<?> metricsTask;
 
     /**
      * EL constructor es privado para utilizar el patron
@@ -53,8 +55,9 @@ public class BluetoothSerialClient {
      */
     private BluetoothSerialClient() {
         adapter = BluetoothAdapter.getDefaultAdapter();
-        writeExecutor = Executors.newSingleThreadExecutor();
-        readExecutor = Executors.newSingleThreadExecutor();
+        connectionManager = new SerialConnectionManager(mainScheduler);
+        connectionManager.setReconnectPolicy(new ReconnectPolicy());
+        connectionManager.setLinkMetrics(linkMetrics);
     }
 
     /**
@@ -93,43 +96,180 @@ public class BluetoothSerialClient {
     }
 
     /**
-     * Elimina la instancia creada y cierra los ejectores de lectura y escritura
+     * Elimina la instancia creada, cierra todas las conexiones y detiene los
+     * hilos de lectura y escritura
      */
     public void clear() {
-        close();
-        readExecutor.shutdownNow();
-        writeExecutor.shutdownNow();
+        setMetricsListener(null, 0);
+        connectionManager.shutdown();
+        synchronized (this) {
+            if (nioLoop != null) nioLoop.shutdown();
+        }
+        if (deliveryScheduler != null)
+            deliveryScheduler.quit();
         bsc = null;
     }
 
-    public boolean connect(final Context context, final BluetoothDevice device, final BluetoothStreamingHandler bluetoothStreamingHandler) {
-        if (!isEnabled()) return false;
-        connectedDevice = device;
-        btStreamingHandler = bluetoothStreamingHandler;
-        if (connected) {
-            writeExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        connected = false;
-                        btSocket.close();
-                        Thread.sleep(2000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    connect(context, device, bluetoothStreamingHandler);
-                }
-            });
+    /**
+     * Configura cómo se entregan los datos recibidos a partir de la siguiente conexión
+     *
+     * @param coalesce       <code>true</code> para juntar en una sola llamada a onData
+     *                       todo lo leído desde la última entrega
+     * @param intervalMillis tiempo mínimo entre entregas agrupadas
+     * @param background     <code>true</code> para entregar los datos en un hilo
+     *                       consumidor propio en lugar del hilo principal
+     */
+    public void setDataDelivery(boolean coalesce, long intervalMillis, boolean background) {
+        deliveryMode = coalesce ? DataDispatcher.Mode.COALESCED : DataDispatcher.Mode.IMMEDIATE;
+        deliveryInterval = intervalMillis;
+        if (background && deliveryScheduler == null) {
+            deliveryScheduler = HandlerScheduler.background("bt-delivery");
+        } else if (!background && deliveryScheduler != null) {
+            deliveryScheduler.quit();
+            deliveryScheduler = null;
         }
-        else {
-            connected = true;
-            connectClient();
+    }
+
+    /**
+     * Observa el tráfico de todas las conexiones, las actuales y las
+     * siguientes, por ejemplo con un {@link SessionRecorder}
+     *
+     * @param trafficTap null para dejar de observar
+     */
+    public void setTrafficTap(TrafficTap trafficTap) {
+        connectionManager.setTrafficTap(trafficTap);
+    }
+
+    /**
+     * @return contadores de todas las conexiones del cliente
+     */
+    public LinkMetrics getLinkMetrics() {
+        return linkMetrics;
+    }
+
+    /**
+     * @return fotografía de los contadores, con la cola de escritura actual
+     */
+    public LinkMetrics.Snapshot getMetricsSnapshot() {
+        return connectionManager.snapshotMetrics();
+    }
+
+    /**
+     * Publica una fotografía de los contadores en el hilo principal cada
+     * {@code periodMillis}. La fotografía se toma en el pool de fondo de las
+     * conexiones.
+     *
+     * @param listener null para dejar de publicar
+     */
+    public synchronized void setMetricsListener(final LinkMetrics.Listener listener, long periodMillis) {
+        if (metricsTask != null) {
+            metricsTask.cancel(false);
+            metricsTask = null;
         }
+        if (listener == null) return;
+        metricsTask = connectionManager.getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                final LinkMetrics.Snapshot snapshot = getMetricsSnapshot();
+                mainScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onMetrics(snapshot);
+                    }
+                });
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Define cómo reconectar las siguientes conexiones cuando se pierde el
+     * enlace. Por defecto se usa {@link ReconnectPolicy#ReconnectPolicy()}.
+     *
+     * @param reconnectPolicy null para cerrar la conexión al primer fallo
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        connectionManager.setReconnectPolicy(reconnectPolicy);
+    }
+
+    /**
+     * Control de flujo de las siguientes conexiones, para dispositivos que
+     * pierden datos si se les envía en ráfagas. Con {@link FlowController.Mode#CREDITS}
+     * un dispositivo que no devuelve créditos pasa solo a XON/XOFF.
+     *
+     * @param mode   null para escribir tan rápido como acepte el socket
+     * @param window bytes del buffer de recepción del dispositivo, 64 en un Arduino
+     */
+    public void setFlowControl(FlowController.Mode mode, int window) {
+        connectionManager.setFlowControl(mode, window);
+    }
+
+    /**
+     * Define qué hacer cuando el consumidor no alcanza al lector
+     */
+    public void setOverflowPolicy(DataDispatcher.Overflow overflow) {
+        overflowPolicy = overflow;
+    }
+
+    public boolean connect(final Context context, final BluetoothDevice device, final BluetoothStreamingHandler bluetoothStreamingHandler) {
+        if (!isEnabled()) return false;
+        loadDeviceCache(context);
+        deviceRegistry.markConnected(device.getAddress(), device.getName(), System.currentTimeMillis());
+        return connect(new BluetoothSocketTransport(adapter, device, mUUID), bluetoothStreamingHandler);
+    }
+
+    /**
+     * Conecta con un transporte arbitrario (socket bluetooth, TCP o tuberías
+     * en memoria). Las conexiones con otros dispositivos siguen abiertas; cada
+     * una necesita su propio handler. Si ya hay una conexión con el mismo
+     * dispositivo se cierra; si el canal RFCOMM todavía no se libera, la
+     * política de reconexión reintenta con esperas cortas.
+     *
+     * @param transport                 el medio por el que viajan los datos
+     * @param bluetoothStreamingHandler recibe los eventos de esta conexión
+     * @return <code>true</code> si se inició la conexión
+     */
+    public boolean connect(final SerialTransport transport, final BluetoothStreamingHandler bluetoothStreamingHandler) {
+        DataDispatcher dispatcher = new DataDispatcher(bluetoothStreamingHandler,
+                deliveryScheduler != null ? deliveryScheduler : mainScheduler);
+        dispatcher.setMode(deliveryMode, deliveryInterval);
+        dispatcher.setOverflow(overflowPolicy);
+        bluetoothStreamingHandler.connection = connection =
+                connectionManager.open(keyOf(transport), transport, bluetoothStreamingHandler, dispatcher);
+        connection.setFanOutHub(bluetoothStreamingHandler.fanOutHub);
         return true;
     }
 
+    /**
+     * Conecta con un transporte de canales (puente TCP, emulador o tuberías)
+     * atendido por un solo hilo con selector en lugar de hilos bloqueantes.
+     * Los eventos llegan al handler igual que con {@link #connect(SerialTransport, BluetoothStreamingHandler)},
+     * pero un error cierra la conexión en lugar de reconectar.
+     *
+     * @throws IOException si no se pudo crear el selector
+     */
+    public NioConnection connect(ChannelTransport transport, BluetoothStreamingHandler bluetoothStreamingHandler)
+            throws IOException {
+        DataDispatcher dispatcher = new DataDispatcher(bluetoothStreamingHandler,
+                deliveryScheduler != null ? deliveryScheduler : mainScheduler);
+        dispatcher.setMode(deliveryMode, deliveryInterval);
+        dispatcher.setOverflow(overflowPolicy);
+        NioConnection opened = getNioLoop().open(transport, bluetoothStreamingHandler, mainScheduler, dispatcher);
+        opened.setFanOutHub(bluetoothStreamingHandler.fanOutHub);
+        bluetoothStreamingHandler.connection = connection = opened;
+        return opened;
+    }
+
+    /**
+     * @return el selector compartido por las conexiones de canales; se crea la primera vez
+     */
+    public synchronized NioEventLoop getNioLoop() throws IOException {
+        if (nioLoop == null) {
+            nioLoop = new NioEventLoop();
+            nioLoop.setLinkMetrics(linkMetrics);
+        }
+        return nioLoop;
+    }
+
     public boolean scanDevices(Context context, ScanListener OnScanListener) {
         if (!adapter.isEnabled()) return false;
         if (adapter.isDiscovering()) {
@@ -151,9 +291,101 @@ public class BluetoothSerialClient {
 
     public Set<BluetoothDevice> getPairedDevices() {
         Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
+        for (BluetoothDevice device : pairedDevices)
+            deviceRegistry.upsert(device.getAddress(), device.getName(), DeviceRegistry.UNKNOWN_RSSI, 0, true);
         return pairedDevices;
     }
 
+    /**
+     * Dispositivos emparejados, encontrados en escaneos o recordados de
+     * ejecuciones anteriores. Los escaneos y las conexiones lo actualizan;
+     * se usa solo desde el hilo principal.
+     */
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    /**
+     * Carga una sola vez los dispositivos recordados para que la lista y la
+     * reconexión no tengan que esperar un escaneo
+     */
+    public void loadDeviceCache(Context context) {
+        if (deviceCacheLoaded) return;
+        deviceCacheLoaded = true;
+        deviceRegistry.load(new PreferencesDeviceStore(context.getApplicationContext()));
+    }
+
+    /**
+     * Lee la caché de dispositivos y los emparejados fuera del hilo principal,
+     * en el pool de fondo de las conexiones, y aplica al registro solo las
+     * diferencias en el hilo principal. Con un handler, conecta enseguida con
+     * el último dispositivo usado que siga emparejado, sin esperar a que la
+     * pantalla termine de armarse.
+     *
+     * @param reconnect recibe los eventos de la conexión automática, null para no conectar
+     * @return <code>false</code> si ya había una carga en curso
+     */
+    public boolean loadDevices(Context context, final BluetoothStreamingHandler reconnect,
+                               final DevicesListener listener) {
+        if (devicesLoading) return false;
+        devicesLoading = true;
+        final Context appContext = context.getApplicationContext();
+        final boolean loadCache = !deviceCacheLoaded;
+        connectionManager.getScheduler().execute(new Runnable() {
+            @Override
+            public void run() {
+                final PreferencesDeviceStore store = loadCache ? new PreferencesDeviceStore(appContext) : null;
+                final Set<String> records = loadCache ? store.load() : null;
+                final Map<String, String> paired = new HashMap<String, String>();
+                if (adapter.isEnabled()) {
+                    for (BluetoothDevice device : adapter.getBondedDevices())
+                        paired.put(device.getAddress(), device.getName());
+                }
+                final BluetoothDevice device = reconnect != null && records != null && !isConnected()
+                        ? reconnectCandidate(store, records, paired) : null;
+                if (device != null)
+                    connect(new BluetoothSocketTransport(adapter, device, mUUID), reconnect);
+                mainScheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        devicesLoading = false;
+                        // connect(Context, ...) pudo cargar la caché mientras tanto
+                        if (records != null && !deviceCacheLoaded) {
+                            deviceCacheLoaded = true;
+                            deviceRegistry.load(store, records);
+                        }
+                        deviceRegistry.updatePaired(paired);
+                        if (device != null)
+                            deviceRegistry.markConnected(device.getAddress(), paired.get(device.getAddress()),
+                                    System.currentTimeMillis());
+                        listener.onDevicesLoaded(device);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return el último dispositivo conectado que sigue emparejado, o null
+     */
+    private BluetoothDevice reconnectCandidate(DeviceRegistry.Store store, Set<String> records,
+                                               Map<String, String> paired) {
+        // registro propio de este hilo; el compartido es solo del hilo principal
+        DeviceRegistry cached = new DeviceRegistry();
+        cached.load(store, records);
+        for (DeviceRegistry.Entry entry : cached.getReconnectCandidates())
+            if (paired.containsKey(entry.getAddress())) return adapter.getRemoteDevice(entry.getAddress());
+        return null;
+    }
+
+    /**
+     * @return el dispositivo con esa dirección MAC, aunque no se haya visto en esta ejecución
+     */
+    public BluetoothDevice getDevice(String address) {
+        return adapter.getRemoteDevice(address);
+    }
+
     public void cancelScan(Context context) {
         if (!adapter.isEnabled() || !adapter.isDiscovering()) return;
         adapter.cancelDiscovery();
@@ -166,104 +398,80 @@ public class BluetoothSerialClient {
             scanListener.onFinish();
     }
 
+    /**
+     * @return el último dispositivo conectado si su conexión sigue abierta
+     */
     public BluetoothDevice getConnectedDevice() {
-        return connectedDevice;
+        return connection != null && connection.isConnected() ? deviceOf(connection) : null;
     }
 
-    private void connectClient() {
-        try {
-            btSocket = connectedDevice.createRfcommSocketToServiceRecord(mUUID);
-        } catch (IOException e) {
-            close();
-            e.printStackTrace();
-            btStreamingHandler.onError(e);
-            return;
+    /**
+     * @return los dispositivos bluetooth con conexión abierta
+     */
+    public List<BluetoothDevice> getConnectedDevices() {
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (SerialConnection open : connectionManager.getConnections()) {
+            BluetoothDevice device = deviceOf(open);
+            if (device != null) devices.add(device);
         }
-        writeExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    adapter.cancelDiscovery();
-                    btSocket.connect();
-                    manageConnectedSocket(btSocket);
-                    callConnectedHandlerEvent();
-                    readExecutor.execute(readRunnable);
-                } catch (final IOException e) {
-                    close();
-                    e.printStackTrace();
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            btStreamingHandler.onError(e);
-                        }
-                    });
-                    connected = false;
-                    try {
-                        btSocket.close();
-                    } catch (Exception ec) {
-                        ec.printStackTrace();
-                    }
-                }
-            }
-        });
+        return devices;
     }
 
-    private void manageConnectedSocket(BluetoothSocket socket) throws IOException {
-        is =  socket.getInputStream();
-        os = socket.getOutputStream();
+    /**
+     * @return <code>true</code> si hay al menos una conexión abierta
+     */
+    public boolean isConnected() {
+        if (connectionManager.size() > 0) return true;
+        synchronized (this) {
+            return nioLoop != null && nioLoop.getConnectionCount() > 0;
+        }
     }
 
-    private void callConnectedHandlerEvent() {
-        mainHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                btStreamingHandler.onConnected();
-            }
-        });
+    public boolean isConnected(BluetoothDevice device) {
+        return connectionManager.get(device.getAddress()) != null;
     }
 
-    private boolean write(final byte[] buffer) {
-        if(!connected) return false;
-        writeExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    os.write(buffer);
-                } catch (Exception e) {
-                    close();
-                    e.printStackTrace();
-                    btStreamingHandler.onError(e);
-                }
-            }
-        });
-        return true;
+    public SerialConnectionManager getConnectionManager() {
+        return connectionManager;
     }
 
-    public boolean isConnected() {
-        return connected;
+    /**
+     * Crea un pipeline de peticiones sobre la conexión del handler. El handler
+     * debe pasarle los datos recibidos con {@link RequestPipeline#feed}.
+     *
+     * @param window peticiones esperando respuesta al mismo tiempo
+     * @return null si el handler no tiene conexión
+     */
+    @Nullable
+    public RequestPipeline createRequestPipeline(BluetoothStreamingHandler handler, int window, long timeoutMillis) {
+        SerialSession connection = handler.connection;
+        if (connection == null) return null;
+        RequestPipeline pipeline = new RequestPipeline(connection, connectionManager.getScheduler(), true,
+                RequestPipeline.DEFAULT_MAX_PAYLOAD, window, RequestPipeline.DEFAULT_MAX_QUEUED, timeoutMillis);
+        pipeline.setLinkMetrics(linkMetrics);
+        return pipeline;
     }
 
     /**
-     * Cierra la conneción con el dispositivo bluetooth actualmente enlazado
+     * Cierra la conexión con un dispositivo sin tocar las demás
      *
-     * @return <code>true</code> si hay una conección con un
-     * dispositivo bluetooth y se puedo cerrar
-     * <code>false</code> si no hay conección con un
-     * dispositivo bluetooth
+     * @return <code>true</code> si había una conexión abierta con el dispositivo y se cerró
      */
-    private boolean close() {
-        connectedDevice = null;
-        if (connected) {
-            connected = false;
-            try {
-                btSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            //mMainHandler.post(mCloseRunable);
-            return true;
-        }
-        return false;
+    public boolean close(BluetoothDevice device) {
+        return connectionManager.close(device.getAddress());
+    }
+
+    private static String keyOf(SerialTransport transport) {
+        if (transport instanceof BluetoothSocketTransport)
+            return ((BluetoothSocketTransport) transport).getDevice().getAddress();
+        return transport.getName();
+    }
+
+    private static BluetoothDevice deviceOf(SerialSession session) {
+        if (!(session instanceof SerialConnection)) return null;
+        SerialTransport transport = ((SerialConnection) session).getTransport();
+        return transport instanceof BluetoothSocketTransport
+                ? ((BluetoothSocketTransport) transport).getDevice() : null;
     }
 
 
@@ -271,6 +479,15 @@ public class BluetoothSerialClient {
         void onBluetoothUp(boolean success);
     }
 
+    public interface DevicesListener {
+        /**
+         * En el hilo principal, con el registro ya actualizado
+         *
+         * @param reconnecting el dispositivo con el que se empezó a conectar, o null
+         */
+        void onDevicesLoaded(BluetoothDevice reconnecting);
+    }
+
     public interface ScanListener {
         void onStart();
 
@@ -279,7 +496,10 @@ public class BluetoothSerialClient {
         void onFinish();
     }
 
-    public abstract static class BluetoothStreamingHandler {
+    public abstract static class BluetoothStreamingHandler implements StreamingListener, ReconnectListener {
+        volatile SerialSession connection;
+        volatile FanOutHub fanOutHub;
+
         public abstract void onError(Exception e);
 
         public abstract void onConnected();
@@ -288,14 +508,58 @@ public class BluetoothSerialClient {
 
         public abstract void onData(byte[] buffer, int length);
 
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+        }
+
+        @Override
+        public void onReconnected(ConnectStats stats) {
+        }
+
+        /**
+         * @return tiempos de conexión de esta conexión o null si no se ha conectado
+         */
+        public final ConnectStats getConnectStats() {
+            return connection != null ? connection.getConnectStats() : null;
+        }
+
         public final boolean close() {
-            BluetoothSerialClient bt = getInstance();
-            return bt != null && bt.close();
+            return connection != null && connection.close();
+        }
+
+        /**
+         * Publica lo que recibe la conexión en el hub además de entregarlo a
+         * este handler; se conserva para las conexiones siguientes
+         *
+         * @param hub null para dejar de publicar
+         */
+        public final void setFanOutHub(FanOutHub hub) {
+            fanOutHub = hub;
+            SerialSession session = connection;
+            if (session != null) session.setFanOutHub(hub);
+        }
+
+        /**
+         * @return el dispositivo de esta conexión o null si no es bluetooth
+         */
+        public final BluetoothDevice getDevice() {
+            return connection != null ? deviceOf(connection) : null;
         }
 
         public final boolean write(byte[] buffer) {
-            BluetoothSerialClient bt = getInstance();
-            return bt != null && bt.write(buffer);
+            return connection != null && connection.write(buffer);
+        }
+
+        public final boolean write(byte[] buffer, int offset, int length) {
+            return connection != null && connection.write(buffer, offset, length, null);
+        }
+
+        /**
+         * @param callback recibe la confirmación cuando el mensaje se escribió
+         * @return <code>false</code> si no hay conexión o la cola de salida está llena
+         */
+        public final boolean write(byte[] buffer, WritePipeline.WriteCallback callback) {
+            return connection != null && connection.write(buffer, 0, buffer.length, callback);
         }
     }
 
@@ -340,46 +604,17 @@ public class BluetoothSerialClient {
         }
     }
 
-    private Runnable closeRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (btStreamingHandler != null) {
-                btStreamingHandler.onDisconnected();
-            }
-        }
-    };
-
-    private Runnable readRunnable = new Runnable() {
-        @Override
-        public void run() {
-            try {
-                final byte[] buffer = new byte[256];
-                final int readBytes = is.read(buffer);
-                mainHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (btStreamingHandler != null) {
-                            btStreamingHandler.onData(buffer, readBytes);
-                        }
-                    }
-                });
-                readExecutor.execute(readRunnable);
-            } catch (Exception e) {
-                close();
-                e.printStackTrace();
-            }
-        }
-    };
-
-
     private BroadcastReceiver discoveryReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, DeviceRegistry.UNKNOWN_RSSI);
+                deviceRegistry.upsert(device.getAddress(), device.getName(), rssi, System.currentTimeMillis(), false);
                 if (scanListener != null) scanListener.onFoundDevice(device);
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                deviceRegistry.save();
                 if (scanListener != null) scanListener.onFinish();
                 try {
                     context.unregisterReceiver(discoveryReceiver);
@@ -0,0 +1,95 @@
+package com.adlrg.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * Transporte RFCOMM sobre un {@link BluetoothSocket}. Cada llamada a
+ * {@link #open()} crea un socket nuevo hacia el mismo dispositivo.
+ * <p>
+ * {@link #close()} puede llamarse desde otro hilo mientras {@link #open()}
+ * espera en <code>connect()</code>: cierra el socket y la conexión en curso
+ * falla. Si el socket todavía no se había creado, open() lo cierra apenas lo
+ * crea.
+ */
+public class BluetoothSocketTransport implements SerialTransport {
+
+    private final BluetoothAdapter adapter;
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private final Object lock = new Object();
+    private volatile BluetoothSocket btSocket;
+    // cuenta los close() para saber si alguno llegó durante un open()
+    private int closes;
+
+    public BluetoothSocketTransport(BluetoothAdapter adapter, BluetoothDevice device, UUID uuid) {
+        this.adapter = adapter;
+        this.device = device;
+        this.uuid = uuid;
+    }
+
+    @Override
+    public void open() throws IOException {
+        // el descubrimiento hace muy lenta la conexión RFCOMM
+        if (adapter.isDiscovering())
+            adapter.cancelDiscovery();
+        int opening;
+        synchronized (lock) {
+            opening = closes;
+        }
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(uuid);
+        synchronized (lock) {
+            btSocket = socket;
+            if (closes != opening) {
+                socket.close();
+                throw new IOException("Transporte cerrado durante la conexión");
+            }
+        }
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ec) {
+                ec.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return btSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return btSocket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket;
+        synchronized (lock) {
+            closes++;
+            socket = btSocket;
+        }
+        if (socket != null)
+            socket.close();
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+}
@@ -0,0 +1,37 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Medio no bloqueante para {@link NioEventLoop}: un puente TCP, un emulador
+ * local o tuberías en memoria. El canal de lectura debe ser también un
+ * {@link java.nio.channels.ReadableByteChannel} y el de escritura un
+ * {@link java.nio.channels.GatheringByteChannel}; pueden ser el mismo canal.
+ */
+public interface ChannelTransport {
+
+    /**
+     * Empieza a abrir la conexión sin bloquear. Los canales quedan en modo no bloqueante.
+     *
+     * @return <code>true</code> si ya quedó conectada; si no, el canal de
+     * escritura avisará OP_CONNECT y hay que llamar {@link #finishOpen()}
+     */
+    boolean open() throws IOException;
+
+    /**
+     * @return <code>true</code> si la conexión terminó de establecerse
+     */
+    boolean finishOpen() throws IOException;
+
+    SelectableChannel getReadChannel();
+
+    SelectableChannel getWriteChannel();
+
+    void close() throws IOException;
+
+    /**
+     * @return un nombre legible del otro extremo, útil para registros
+     */
+    String getName();
+}
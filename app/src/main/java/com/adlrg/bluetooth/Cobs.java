@@ -0,0 +1,71 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Consistent Overhead Byte Stuffing: quita los ceros de un bloque agregando
+ * como máximo un byte por cada 254, para que '\0' pueda usarse como
+ * delimitador sin ambigüedad. No reserva memoria y la decodificación puede
+ * hacerse sobre el mismo arreglo.
+ */
+public final class Cobs {
+
+    private Cobs() {
+    }
+
+    /**
+     * @return tamaño máximo de {@code length} bytes codificados, sin el delimitador
+     */
+    public static int maxEncodedLength(int length) {
+        return length + length / 254 + 1;
+    }
+
+    /**
+     * @return bytes escritos en {@code out}; no incluye el delimitador
+     */
+    public static int encode(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        int codeIndex = outOffset;
+        int pos = outOffset + 1;
+        int code = 1;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == 0) {
+                out[codeIndex] = (byte) code;
+                codeIndex = pos++;
+                code = 1;
+            } else {
+                out[pos++] = b;
+                if (++code == 0xFF) {
+                    out[codeIndex] = (byte) code;
+                    codeIndex = pos++;
+                    code = 1;
+                }
+            }
+        }
+        out[codeIndex] = (byte) code;
+        return pos - outOffset;
+    }
+
+    /**
+     * Decodifica un bloque sin el delimitador. {@code out} puede ser el mismo
+     * arreglo que {@code data} con {@code outOffset <= offset}.
+     *
+     * @return bytes decodificados o -1 si el bloque está mal formado
+     */
+    public static int decode(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        int in = offset;
+        int end = offset + length;
+        int pos = outOffset;
+        while (in < end) {
+            int code = data[in++] & 0xFF;
+            if (code == 0) return -1;
+            int n = code - 1;
+            if (n > end - in) return -1;
+            System.arraycopy(data, in, out, pos, n);
+            in += n;
+            pos += n;
+            if (code < 0xFF && in < end)
+                out[pos++] = 0;
+        }
+        return pos - outOffset;
+    }
+}
@@ -0,0 +1,92 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Tiempos de conexión de una {@link SerialConnection}: cuánto tarda en abrir
+ * el transporte, cuántos intentos fallan y cuánto duran los cortes hasta que
+ * la reconexión los recupera.
+ */
+public class ConnectStats {
+
+    private long attempts;
+    private long failures;
+    private long connects;
+    private long reconnects;
+    private long lastConnectMillis;
+    private long totalConnectMillis;
+    private long maxConnectMillis;
+    private long lastOutageMillis;
+    private long maxOutageMillis;
+
+    synchronized void onAttempt() {
+        attempts++;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+    }
+
+    synchronized void onConnect(long millis) {
+        connects++;
+        lastConnectMillis = millis;
+        totalConnectMillis += millis;
+        maxConnectMillis = Math.max(maxConnectMillis, millis);
+    }
+
+    synchronized void onReconnect(long outageMillis) {
+        reconnects++;
+        lastOutageMillis = outageMillis;
+        maxOutageMillis = Math.max(maxOutageMillis, outageMillis);
+    }
+
+    public synchronized long getAttempts() {
+        return attempts;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getConnects() {
+        return connects;
+    }
+
+    /**
+     * @return cortes que se recuperaron sin cerrar la conexión
+     */
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return ms que tardó en abrir el transporte la última vez
+     */
+    public synchronized long getLastConnectMillis() {
+        return lastConnectMillis;
+    }
+
+    public synchronized long getAverageConnectMillis() {
+        return connects == 0 ? 0 : totalConnectMillis / connects;
+    }
+
+    public synchronized long getMaxConnectMillis() {
+        return maxConnectMillis;
+    }
+
+    /**
+     * @return ms entre la última caída y la reconexión
+     */
+    public synchronized long getLastOutageMillis() {
+        return lastOutageMillis;
+    }
+
+    public synchronized long getMaxOutageMillis() {
+        return maxOutageMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "conexión " + lastConnectMillis + " ms (prom " + getAverageConnectMillis() + ", máx "
+                + maxConnectMillis + "), " + failures + "/" + attempts + " intentos fallidos, "
+                + reconnects + " reconexiones, último corte " + lastOutageMillis + " ms";
+    }
+}
@@ -0,0 +1,40 @@
+package com.adlrg.bluetooth;
+
+/**
+ * CRC-16/CCITT-FALSE (polinomio 0x1021, valor inicial 0xFFFF) calculado con
+ * una tabla de 256 entradas, un byte por iteración. En el Arduino se obtiene
+ * el mismo valor con {@code _crc_xmodem_update} de {@code util/crc16.h}
+ * empezando en 0xFFFF.
+ */
+public final class Crc16 {
+
+    public static final int INITIAL = 0xFFFF;
+
+    private static final char[] TABLE = new char[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            TABLE[i] = (char) crc;
+        }
+    }
+
+    private Crc16() {
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        return update(INITIAL, data, offset, length);
+    }
+
+    /**
+     * Continúa un CRC con más bytes
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+            crc = ((crc << 8) ^ TABLE[((crc >>> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+}
@@ -0,0 +1,232 @@
+package com.adlrg.bluetooth;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lleva los bytes leídos hasta {@link StreamingListener#onData}. En modo
+ * {@link Mode#IMMEDIATE} cada lectura se entrega por separado; en modo
+ * {@link Mode#COALESCED} todo lo leído desde la última entrega se junta en
+ * una sola llamada, como máximo una vez por intervalo.
+ * <p>
+ * La cola entre el lector y el consumidor es el anillo de buffers, así que
+ * está acotada. Cuando se llena, {@link Overflow#BLOCK} detiene al lector y
+ * {@link Overflow#DROP} sigue leyendo pero descarta y cuenta lo leído.
+ * <p>
+ * El tamaño de cada lectura se adapta al tráfico con las clases de tamaño
+ * de {@link ReadBufferPool}.
+ * <p>
+ * Los modos y el intervalo deben configurarse antes de abrir la conexión.
+ */
+public class DataDispatcher {
+
+    public enum Mode {
+        IMMEDIATE, COALESCED
+    }
+
+    public enum Overflow {
+        BLOCK, DROP
+    }
+
+    public static final int DEFAULT_BUFFERS = 16;
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+    public static final int DEFAULT_MAX_BUFFER_SIZE = 4096;
+    public static final long FRAME_INTERVAL = 16;
+
+    private final StreamingListener listener;
+    private final Executor executor;
+    private final ReadBufferPool pool;
+    private final ArrayBlockingQueue<ReadBufferPool.ReadBuffer> pending;
+    private final ReadBufferPool.ReadBuffer spare;
+    private final byte[] coalesceBuffer;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private Mode mode = Mode.IMMEDIATE;
+    private long intervalMillis = FRAME_INTERVAL;
+    private Overflow overflow = Overflow.BLOCK;
+
+    private final AtomicLong deliveredChunks = new AtomicLong();
+    private final AtomicLong dispatches = new AtomicLong();
+    private final AtomicLong droppedChunks = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    public DataDispatcher(StreamingListener listener, Executor executor) {
+        this(listener, executor, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Como {@link #DataDispatcher(StreamingListener, Executor, int, int, int)}
+     * pero con un solo tamaño de lectura
+     */
+    public DataDispatcher(StreamingListener listener, Executor executor, int buffers, int bufferSize) {
+        this(listener, executor, buffers, bufferSize, bufferSize);
+    }
+
+    /**
+     * @param listener   destino de los datos
+     * @param executor   hilo donde se entregan; si es un {@link DispatchScheduler}
+     *                   se respeta el intervalo de agrupación
+     * @param buffers       buffers de lectura de la clase más chica
+     * @param minBufferSize bytes por lectura cuando el enlace está tranquilo
+     * @param maxBufferSize bytes por lectura durante una ráfaga
+     */
+    public DataDispatcher(StreamingListener listener, Executor executor, int buffers,
+                          int minBufferSize, int maxBufferSize) {
+        this.listener = listener;
+        this.executor = executor;
+        pool = new ReadBufferPool(listener, buffers, minBufferSize, maxBufferSize);
+        pending = new ArrayBlockingQueue<ReadBufferPool.ReadBuffer>(pool.getCapacity());
+        spare = new ReadBufferPool.ReadBuffer(pool, listener, pool.getMaxSize(), -1);
+        coalesceBuffer = new byte[pool.getTotalBytes()];
+    }
+
+    public void setMode(Mode mode, long intervalMillis) {
+        this.mode = mode;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * @param dispatchLag registra los microsegundos entre la lectura y onData; null para no medir
+     */
+    public void setDispatchLag(Histogram dispatchLag) {
+        pool.setDispatchLag(dispatchLag);
+    }
+
+    /**
+     * Obtiene un buffer para la siguiente lectura. Si el anillo está vacío
+     * espera, o con {@link Overflow#DROP} regresa un buffer de descarte.
+     */
+    public ReadBufferPool.ReadBuffer obtain() throws InterruptedException {
+        if (pool.available() == 0) {
+            overflows.incrementAndGet();
+            if (overflow == Overflow.DROP)
+                return spare;
+        }
+        return pool.acquire();
+    }
+
+    /**
+     * Como {@link #obtain()} pero sin esperar, para lectores que atienden
+     * varias conexiones
+     *
+     * @param available bytes que se sabe que esperan; eligen el tamaño del buffer
+     * @return null si el anillo está vacío y la política es {@link Overflow#BLOCK}
+     */
+    public ReadBufferPool.ReadBuffer tryObtain(int available) {
+        ReadBufferPool.ReadBuffer buffer = pool.tryAcquire(available);
+        if (buffer != null) return buffer;
+        overflows.incrementAndGet();
+        return overflow == Overflow.DROP ? spare : null;
+    }
+
+    /**
+     * Regresa un buffer que no llegó a entregarse
+     */
+    public void recycle(ReadBufferPool.ReadBuffer buffer) {
+        if (buffer != spare)
+            pool.release(buffer);
+    }
+
+    /**
+     * Entrega los bytes que el lector dejó en el buffer
+     */
+    public void dispatch(ReadBufferPool.ReadBuffer buffer, int length) {
+        if (buffer == spare) {
+            droppedChunks.incrementAndGet();
+            droppedBytes.addAndGet(length);
+            return;
+        }
+        if (length == 0) {
+            pool.release(buffer);
+            return;
+        }
+        pool.onRead(length, buffer.data.length);
+        buffer.length = length;
+        buffer.readAt = System.nanoTime();
+        deliveredChunks.incrementAndGet();
+        if (mode == Mode.IMMEDIATE) {
+            dispatches.incrementAndGet();
+            executor.execute(buffer);
+            return;
+        }
+        pending.offer(buffer);
+        if (drainScheduled.compareAndSet(false, true)) {
+            if (intervalMillis > 0 && executor instanceof DispatchScheduler)
+                ((DispatchScheduler) executor).executeDelayed(drainRunnable, intervalMillis);
+            else
+                executor.execute(drainRunnable);
+        }
+    }
+
+    /**
+     * @return bytes que pedirá la siguiente lectura
+     */
+    public int getReadSize() {
+        return pool.nextSize();
+    }
+
+    /**
+     * @return bytes del buffer de lectura más grande
+     */
+    public int getMaxReadSize() {
+        return pool.getMaxSize();
+    }
+
+    public int getPendingChunks() {
+        return pending.size();
+    }
+
+    public long getDeliveredChunks() {
+        return deliveredChunks.get();
+    }
+
+    /**
+     * @return número de llamadas a onData
+     */
+    public long getDispatches() {
+        return dispatches.get();
+    }
+
+    public long getDroppedChunks() {
+        return droppedChunks.get();
+    }
+
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * @return veces que el lector encontró el anillo lleno
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainScheduled.set(false);
+            int length = 0;
+            Histogram lag = pool.getDispatchLag();
+            long now = System.nanoTime();
+            ReadBufferPool.ReadBuffer buffer;
+            while ((buffer = pending.poll()) != null) {
+                if (lag != null) lag.record((now - buffer.readAt) / 1000);
+                System.arraycopy(buffer.data, 0, coalesceBuffer, length, buffer.length);
+                length += buffer.length;
+                pool.release(buffer);
+            }
+            if (length > 0) {
+                dispatches.incrementAndGet();
+                listener.onData(coalesceBuffer, length);
+            }
+        }
+    };
+}
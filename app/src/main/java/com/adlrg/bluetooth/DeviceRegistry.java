@@ -0,0 +1,257 @@
+package com.adlrg.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dispositivos conocidos, indexados por dirección MAC. Agregar o actualizar
+ * un dispositivo es O(1) y conserva su posición en la lista, así que un
+ * escaneo en un lugar con muchos dispositivos no se vuelve cuadrático. Los
+ * cambios se acumulan hasta {@link #takeChanges()} para refrescar la lista
+ * una sola vez por lote.
+ * <p>
+ * Recuerda la intensidad de la señal (RSSI), cuándo se vio y cuándo se
+ * conectó cada dispositivo; con un {@link Store} esos datos sobreviven a la
+ * aplicación y {@link #getReconnectCandidates()} ofrece los últimos
+ * conectados sin esperar un escaneo. Se usa solo desde el hilo principal.
+ */
+public class DeviceRegistry {
+
+    public static final short UNKNOWN_RSSI = Short.MIN_VALUE;
+    public static final int MAX_CACHED = 32;
+
+    private static final String SEPARATOR = "|";
+
+    /**
+     * Donde se guardan los dispositivos entre ejecuciones, un texto por dispositivo
+     */
+    public interface Store {
+        Set<String> load();
+
+        void save(Set<String> records);
+    }
+
+    public static final class Entry {
+        private final String address;
+        private String name;
+        private short rssi = UNKNOWN_RSSI;
+        private long lastSeen;
+        private long lastConnected;
+        private boolean paired;
+
+        Entry(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return el nombre anunciado o null si no se conoce
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return dBm de la última vez que se vio, o {@link #UNKNOWN_RSSI}
+         */
+        public short getRssi() {
+            return rssi;
+        }
+
+        /**
+         * @return milisegundos de la última vez que apareció en un escaneo, 0 si nunca
+         */
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * @return milisegundos de la última conexión, 0 si nunca
+         */
+        public long getLastConnected() {
+            return lastConnected;
+        }
+
+        public boolean isPaired() {
+            return paired;
+        }
+
+        @Override
+        public String toString() {
+            String label = (name != null ? name : "?") + "\n" + address;
+            return rssi != UNKNOWN_RSSI ? label + "  " + rssi + " dBm" : label;
+        }
+    }
+
+    /**
+     * Cambios desde la última llamada a {@link #takeChanges()}
+     */
+    public static final class Changes {
+        public final int added;
+        public final int updated;
+
+        Changes(int added, int updated) {
+            this.added = added;
+            this.updated = updated;
+        }
+
+        public boolean isEmpty() {
+            return added == 0 && updated == 0;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Map<String, Entry> byAddress = new HashMap<String, Entry>();
+    private final Set<String> updated = new HashSet<String>();
+    private int added;
+    private Store store;
+
+    /**
+     * Agrega el dispositivo o actualiza sus datos. Solo cuenta como cambio lo
+     * que se ve en la lista: el nombre, la señal o si está emparejado.
+     *
+     * @param name   null conserva el nombre conocido
+     * @param rssi   {@link #UNKNOWN_RSSI} conserva la señal conocida
+     * @param seenAt milisegundos del momento en que se vio
+     * @return el registro del dispositivo
+     */
+    public Entry upsert(String address, String name, short rssi, long seenAt, boolean paired) {
+        Entry entry = byAddress.get(address);
+        if (entry == null) {
+            entry = new Entry(address);
+            byAddress.put(address, entry);
+            entries.add(entry);
+            added++;
+        } else if ((name != null && !name.equals(entry.name)) || (rssi != UNKNOWN_RSSI && rssi != entry.rssi)
+                || (paired && !entry.paired)) {
+            updated.add(address);
+        }
+        if (name != null) entry.name = name;
+        if (rssi != UNKNOWN_RSSI) entry.rssi = rssi;
+        entry.lastSeen = Math.max(entry.lastSeen, seenAt);
+        entry.paired |= paired;
+        return entry;
+    }
+
+    /**
+     * Deja como emparejados exactamente estos dispositivos; los que se
+     * desemparejaron siguen en la lista pero sin la marca
+     *
+     * @param paired nombre de cada dispositivo por dirección MAC
+     */
+    public void updatePaired(Map<String, String> paired) {
+        for (Entry entry : entries) {
+            if (entry.paired && !paired.containsKey(entry.address)) {
+                entry.paired = false;
+                updated.add(entry.address);
+            }
+        }
+        for (Map.Entry<String, String> device : paired.entrySet())
+            upsert(device.getKey(), device.getValue(), UNKNOWN_RSSI, 0, true);
+    }
+
+    /**
+     * Anota la conexión y guarda la caché
+     */
+    public void markConnected(String address, String name, long connectedAt) {
+        Entry entry = upsert(address, name, UNKNOWN_RSSI, 0, false);
+        entry.lastConnected = connectedAt;
+        save();
+    }
+
+    public Entry get(String address) {
+        return byAddress.get(address);
+    }
+
+    public Entry get(int position) {
+        return entries.get(position);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return cuántos dispositivos se agregaron o cambiaron desde la última vez, y vacía la cuenta
+     */
+    public Changes takeChanges() {
+        Changes changes = new Changes(added, updated.size());
+        added = 0;
+        updated.clear();
+        return changes;
+    }
+
+    /**
+     * @return los dispositivos con los que ya hubo conexión, del más reciente al más viejo
+     */
+    public List<Entry> getReconnectCandidates() {
+        List<Entry> candidates = new ArrayList<Entry>();
+        for (Entry entry : entries)
+            if (entry.lastConnected > 0) candidates.add(entry);
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.lastConnected < b.lastConnected ? 1 : a.lastConnected == b.lastConnected ? 0 : -1;
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * Carga los dispositivos guardados y usa el almacén para las siguientes conexiones
+     */
+    public void load(Store store) {
+        load(store, store.load());
+    }
+
+    /**
+     * Carga registros ya leídos del almacén, por ejemplo en otro hilo
+     */
+    public void load(Store store, Set<String> records) {
+        this.store = store;
+        for (String record : records) {
+            String[] fields = record.split("\\" + SEPARATOR, 5);
+            if (fields.length < 5) continue;
+            try {
+                Entry entry = upsert(fields[0], fields[4].isEmpty() ? null : fields[4],
+                        Short.parseShort(fields[1]), Long.parseLong(fields[2]), false);
+                entry.lastConnected = Math.max(entry.lastConnected, Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Guarda los {@link #MAX_CACHED} dispositivos vistos o conectados más recientemente
+     */
+    public void save() {
+        if (store == null) return;
+        List<Entry> recent = new ArrayList<Entry>(entries);
+        Collections.sort(recent, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                long ta = Math.max(a.lastConnected, a.lastSeen);
+                long tb = Math.max(b.lastConnected, b.lastSeen);
+                return ta < tb ? 1 : ta == tb ? 0 : -1;
+            }
+        });
+        Set<String> records = new HashSet<String>();
+        for (Entry entry : recent) {
+            if (records.size() == MAX_CACHED) break;
+            if (entry.lastSeen == 0 && entry.lastConnected == 0) continue;
+            records.add(entry.address + SEPARATOR + entry.rssi + SEPARATOR + entry.lastSeen + SEPARATOR
+                    + entry.lastConnected + SEPARATOR + (entry.name != null ? entry.name : ""));
+        }
+        store.save(records);
+    }
+}
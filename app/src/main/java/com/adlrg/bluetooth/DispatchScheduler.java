@@ -0,0 +1,11 @@
+package com.adlrg.bluetooth;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Ejecutor de callbacks que además puede diferir una tarea. Lo usa
+ * {@link DataDispatcher} para agrupar entregas por intervalo.
+ */
+public interface DispatchScheduler extends Executor {
+    void executeDelayed(Runnable command, long delayMillis);
+}
@@ -0,0 +1,231 @@
+package com.adlrg.bluetooth;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reparte los bytes recibidos por una conexión entre varios suscriptores
+ * (la pantalla, un registro, un monitor por red) sin que ninguno frene al
+ * lector. Los bytes se copian una sola vez a un anillo y cada suscriptor
+ * avanza con su propio cursor, leyendo directamente del anillo.
+ * <p>
+ * El lector nunca espera: si un suscriptor se atrasa más que la capacidad
+ * del anillo, sus bytes se pisan y, según su {@link Overflow}, se le
+ * desconecta o salta a lo más reciente.
+ */
+public class FanOutHub {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * Qué hacer con un suscriptor al que el lector le pisó bytes sin entregar
+     */
+    public enum Overflow {
+        /** cerrar la suscripción */
+        DROP,
+        /**
+         * descartar lo perdido y seguir con lo más reciente; si el lector lo
+         * alcanza durante una entrega, lo entregado puede llegar mezclado
+         */
+        SKIP
+    }
+
+    public interface Sink {
+        /**
+         * Bytes nuevos, en orden. El arreglo es el anillo compartido: solo es
+         * válido durante la llamada y no se debe modificar.
+         *
+         * @throws Exception cierra la suscripción
+         */
+        void onData(byte[] buffer, int offset, int length) throws Exception;
+
+        /**
+         * Se perdieron bytes por atraso; solo con {@link Overflow#SKIP}
+         */
+        void onSkipped(long bytes);
+
+        /**
+         * La suscripción terminó, por atraso, error o {@link Subscription#close()}
+         */
+        void onClosed();
+    }
+
+    public final class Subscription implements Runnable {
+        private final Sink sink;
+        private final Executor executor;
+        private final Overflow overflow;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // solo lo cambia la tarea del suscriptor
+        private volatile long cursor;
+        private volatile long delivered;
+        private volatile long skipped;
+
+        Subscription(Sink sink, Executor executor, Overflow overflow, long cursor) {
+            this.sink = sink;
+            this.executor = executor;
+            this.overflow = overflow;
+            this.cursor = cursor;
+        }
+
+        /**
+         * @return bytes publicados que todavía no se le entregan
+         */
+        public long getLag() {
+            return head - cursor;
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        /**
+         * Deja de entregar; {@link Sink#onClosed()} se llama en el executor del suscriptor
+         */
+        public void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            subscriptions.remove(this);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sink.onClosed();
+                }
+            });
+        }
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            scheduled.set(false);
+            while (!closed.get()) {
+                long published = head;
+                long start = cursor;
+                if (published == start) return;
+                if (published - start > ring.length) {
+                    overrun(start);
+                    continue;
+                }
+                int length = (int) (published - start);
+                int offset = (int) (start & mask);
+                int first = Math.min(length, ring.length - offset);
+                try {
+                    sink.onData(ring, offset, first);
+                    if (first < length) sink.onData(ring, 0, length - first);
+                } catch (Exception e) {
+                    // el suscriptor se fue, por ejemplo un socket cerrado
+                    close();
+                    return;
+                }
+                // el lector pudo empezar a pisar lo que se entregaba
+                if (claimed - start > ring.length) {
+                    overrun(published);
+                    continue;
+                }
+                cursor = published;
+                delivered += length;
+            }
+        }
+
+        private void overrun(long from) {
+            if (overflow == Overflow.DROP) {
+                close();
+                return;
+            }
+            long to = head;
+            skipped += to - from;
+            cursor = to;
+            sink.onSkipped(to - from);
+        }
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    // bytes publicados desde el principio y hasta dónde se está copiando; solo los escribe el lector
+    private volatile long head;
+    private volatile long claimed;
+
+    public FanOutHub() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity bytes del anillo, potencia de dos
+     */
+    public FanOutHub(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two");
+        ring = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Recibe lo que se publique a partir de ahora
+     *
+     * @param executor entrega en orden, una tarea a la vez
+     */
+    public Subscription subscribe(Sink sink, Executor executor, Overflow overflow) {
+        Subscription subscription = new Subscription(sink, executor, overflow, head);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Copia los bytes al anillo y avisa a los suscriptores. Solo se llama
+     * desde un hilo, el lector de la conexión; no bloquea.
+     */
+    public void publish(byte[] buffer, int offset, int length) {
+        long position = head;
+        if (length > ring.length) {
+            // solo caben los últimos; los primeros se dan por pisados
+            position += length - ring.length;
+            offset += length - ring.length;
+            length = ring.length;
+        }
+        claimed = position + length;
+        int start = (int) (position & mask);
+        int first = Math.min(length, ring.length - start);
+        System.arraycopy(buffer, offset, ring, start, first);
+        if (first < length)
+            System.arraycopy(buffer, offset + first, ring, 0, length - first);
+        head = position + length;
+        for (Subscription subscription : subscriptions)
+            subscription.schedule();
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return bytes publicados desde que se creó
+     */
+    public long getPublished() {
+        return head;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Cierra todas las suscripciones
+     */
+    public void close() {
+        for (Subscription subscription : subscriptions)
+            subscription.close();
+    }
+}
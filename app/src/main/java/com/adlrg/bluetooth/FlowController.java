@@ -0,0 +1,396 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Control de flujo hacia un dispositivo con un buffer de recepción pequeño,
+ * como el puerto serie de un Arduino (64 bytes). {@link WritePipeline} le
+ * pide permiso antes de cada escritura y {@link SerialConnection} le pasa lo
+ * que lee para que consuma las señales del dispositivo:
+ * <ul>
+ * <li>{@link Mode#CREDITS}: se empieza con {@code window} bytes de crédito y
+ * el dispositivo devuelve un byte {@link #CREDIT} por cada {@code creditUnit}
+ * bytes que saca de su buffer. Si nunca devuelve créditos se pasa a XON/XOFF.</li>
+ * <li>{@link Mode#XON_XOFF}: se envía hasta recibir {@link #XOFF} y se sigue
+ * con {@link #XON}.</li>
+ * </ul>
+ * XON y XOFF se respetan en los dos modos. Además un token bucket reparte los
+ * envíos a la tasa que el dispositivo sostiene, medida con los créditos o
+ * ajustada con cada XOFF, para no mandarle ráfagas.
+ * <p>
+ * Los bytes de control se quitan de lo recibido. Un dato que coincide con uno
+ * de ellos o con {@link #ESCAPE}, como puede pasar en los mensajes binarios,
+ * el dispositivo lo manda precedido de {@link #ESCAPE} y con
+ * {@link #ESCAPE_MASK} aplicado (ver {@link #escape}); el texto y los
+ * paquetes Morse no los usan y pasan igual. Es seguro usarlo desde los hilos
+ * de lectura y escritura.
+ */
+public class FlowController {
+
+    public enum Mode {
+        CREDITS, XON_XOFF
+    }
+
+    /** ACK: el dispositivo liberó {@code creditUnit} bytes */
+    public static final byte CREDIT = 0x06;
+    public static final byte XON = 0x11;
+    public static final byte XOFF = 0x13;
+    /** DLE: el byte que sigue es un dato */
+    public static final byte ESCAPE = 0x10;
+    public static final int ESCAPE_MASK = 0x20;
+
+    public static final int DEFAULT_WINDOW = 64;
+    public static final int DEFAULT_CREDIT_UNIT = 16;
+    public static final long DEFAULT_CREDIT_TIMEOUT = 1000;
+    /** Tasa mínima del ritmo en bytes por segundo */
+    public static final long MIN_RATE = 100;
+
+    private static final long SECOND = 1000000000L;
+    private static final long SAMPLE_NANOS = SECOND / 4;
+    private static final long BURST_NANOS = SECOND / 100;
+    private static final double SMOOTHING = 0.25;
+    private static final double HEADROOM = 1.1;
+    private static final double BACKOFF = 0.75;
+    private static final double PROBE = 1.05;
+
+    private final int window;
+    private final int creditUnit;
+    private final long creditTimeout;
+    private volatile Runnable resumeListener;
+
+    private Mode mode;
+    private int credits;
+    private boolean creditsSeen;
+    private boolean creditLimited;
+    private long blockedSince = -1;
+    private boolean paused;
+    private boolean escaped;
+
+    private boolean adaptive = true;
+    private double rate;
+    private double tokens;
+    private int needed;
+    private long refilledAt;
+    private long probedAt;
+
+    private long sampleStart;
+    private long sampleBytes;
+    private double measuredRate;
+
+    private long sent;
+    private long delivered;
+    private long stalls;
+    private long xoffs;
+    private long fallbacks;
+    private long resyncs;
+
+    /**
+     * Ventana de {@link #DEFAULT_WINDOW} bytes, un crédito cada {@link #DEFAULT_CREDIT_UNIT}
+     */
+    public FlowController(Mode mode) {
+        this(mode, DEFAULT_WINDOW, DEFAULT_CREDIT_UNIT, DEFAULT_CREDIT_TIMEOUT);
+    }
+
+    /**
+     * @param window        bytes que caben en el buffer de recepción del dispositivo
+     * @param creditUnit    bytes que devuelve cada {@link #CREDIT}
+     * @param creditTimeout ms sin créditos con la ventana agotada antes de pasar a
+     *                      XON/XOFF o, si ya hubo créditos, de suponer el buffer vacío
+     */
+    public FlowController(Mode mode, int window, int creditUnit, long creditTimeout) {
+        if (window <= 0 || creditUnit <= 0 || creditUnit > window)
+            throw new IllegalArgumentException("invalid credit window");
+        this.mode = mode;
+        this.window = window;
+        this.creditUnit = creditUnit;
+        this.creditTimeout = creditTimeout * 1000000;
+        reset(System.nanoTime());
+    }
+
+    /**
+     * Fija el ritmo de envío
+     *
+     * @param bytesPerSecond 0 para no limitar hasta medir el enlace
+     * @param adaptive       <code>true</code> para ajustarlo con lo que se mide
+     */
+    public synchronized void setRate(long bytesPerSecond, boolean adaptive) {
+        this.adaptive = adaptive;
+        setPacing(bytesPerSecond);
+    }
+
+    /**
+     * Se llama cuando llega un crédito o XON; {@link WritePipeline} lo usa para seguir escribiendo
+     */
+    void setResumeListener(Runnable resumeListener) {
+        this.resumeListener = resumeListener;
+    }
+
+    /**
+     * Empieza una conexión: el buffer del dispositivo está vacío. Conserva el
+     * modo y el ritmo aprendidos.
+     */
+    public synchronized void reset(long nowNanos) {
+        credits = window;
+        creditLimited = false;
+        blockedSince = -1;
+        paused = false;
+        escaped = false;
+        tokens = burst();
+        needed = 0;
+        refilledAt = nowNanos;
+        probedAt = nowNanos;
+        sampleStart = nowNanos;
+        sampleBytes = 0;
+    }
+
+    /**
+     * Reserva bytes para una escritura
+     *
+     * @param wanted   bytes pendientes
+     * @param nowNanos según {@link System#nanoTime()}
+     * @return bytes que se pueden escribir ahora, 0 para esperar {@link #getWaitNanos}
+     */
+    public synchronized int acquire(int wanted, long nowNanos) {
+        refill(nowNanos);
+        if (mode == Mode.CREDITS && credits <= 0 && blockedSince >= 0
+                && nowNanos - blockedSince >= creditTimeout) {
+            if (!creditsSeen) {
+                // el dispositivo no devuelve créditos
+                mode = Mode.XON_XOFF;
+                fallbacks++;
+            } else {
+                credits = window;
+                resyncs++;
+            }
+        }
+        if (adaptive && mode == Mode.XON_XOFF && rate > 0 && !paused && nowNanos - probedAt >= SECOND) {
+            setPacing(rate * PROBE);
+            probedAt = nowNanos;
+        }
+        int allowed = paused ? 0 : wanted;
+        if (mode == Mode.CREDITS) {
+            allowed = Math.min(allowed, credits);
+            if (credits < wanted) creditLimited = true;
+        }
+        needed = 0;
+        if (rate > 0 && allowed > 0 && tokens < Math.min(allowed, creditUnit)) {
+            // se espera a juntar un trozo en lugar de escribir de a un byte
+            needed = Math.min(allowed, creditUnit);
+            allowed = 0;
+        } else if (rate > 0) {
+            allowed = Math.min(allowed, (int) tokens);
+        }
+        if (allowed <= 0) {
+            if (blockedSince < 0) {
+                blockedSince = nowNanos;
+                stalls++;
+            }
+            return 0;
+        }
+        blockedSince = -1;
+        if (mode == Mode.CREDITS) credits -= allowed;
+        if (rate > 0) tokens -= allowed;
+        sent += allowed;
+        if (mode == Mode.XON_XOFF) {
+            delivered += allowed;
+            measure(allowed, nowNanos);
+        }
+        return allowed;
+    }
+
+    /**
+     * @return nanosegundos hasta que tenga sentido volver a llamar a
+     * {@link #acquire}, o -1 si hay que esperar un XON
+     */
+    public synchronized long getWaitNanos(long nowNanos) {
+        if (paused) return -1;
+        if (mode == Mode.CREDITS && credits <= 0)
+            return blockedSince < 0 ? creditTimeout : Math.max(0, blockedSince + creditTimeout - nowNanos);
+        if (rate > 0 && tokens < needed)
+            return (long) ((needed - tokens) * SECOND / rate) + 1;
+        return 0;
+    }
+
+    /**
+     * Consume los créditos y XON/XOFF de lo recibido, quita los {@link #ESCAPE}
+     * y deja solo los datos al comienzo. Un escape al final de un trozo se
+     * aplica al primer byte del siguiente.
+     *
+     * @return bytes de datos que quedan desde {@code offset}
+     */
+    public int onReceived(byte[] buffer, int offset, int length) {
+        return onReceived(buffer, offset, length, System.nanoTime());
+    }
+
+    /**
+     * @param nowNanos según {@link System#nanoTime()}
+     * @see #onReceived(byte[], int, int)
+     */
+    public int onReceived(byte[] buffer, int offset, int length, long nowNanos) {
+        boolean resume = false;
+        int out = offset;
+        synchronized (this) {
+            for (int i = offset; i < offset + length; i++) {
+                byte b = buffer[i];
+                if (escaped) {
+                    escaped = false;
+                    buffer[out++] = (byte) (b ^ ESCAPE_MASK);
+                } else if (b == ESCAPE) {
+                    escaped = true;
+                } else if (b == CREDIT) {
+                    onCredit(nowNanos);
+                    resume = true;
+                } else if (b == XOFF) {
+                    onXoff(nowNanos);
+                } else if (b == XON) {
+                    resume |= paused;
+                    paused = false;
+                } else {
+                    buffer[out++] = b;
+                }
+            }
+        }
+        Runnable listener = resumeListener;
+        if (resume && listener != null) listener.run();
+        return out - offset;
+    }
+
+    /**
+     * Lo que hace el dispositivo con sus datos antes de enviarlos; sirve para
+     * simularlo
+     *
+     * @param out debe tener lugar para {@code 2 * length} bytes
+     * @return bytes escritos en {@code out}
+     */
+    public static int escape(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        int n = outOffset;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == CREDIT || b == XON || b == XOFF || b == ESCAPE) {
+                out[n++] = ESCAPE;
+                out[n++] = (byte) (b ^ ESCAPE_MASK);
+            } else {
+                out[n++] = b;
+            }
+        }
+        return n - outOffset;
+    }
+
+    private void onCredit(long now) {
+        creditsSeen = true;
+        credits = Math.min(window, credits + creditUnit);
+        delivered = Math.min(sent, delivered + creditUnit);
+        measure(creditUnit, now);
+    }
+
+    private void onXoff(long now) {
+        xoffs++;
+        if (!paused && adaptive) {
+            // se mandaba más rápido de lo que el dispositivo vacía su buffer
+            double current = rate > 0 ? rate : measuredRate > 0 ? measuredRate
+                    : sampleBytes * (double) SECOND / Math.max(now - sampleStart, SECOND / 1000);
+            setPacing(current * BACKOFF);
+            probedAt = now;
+        }
+        paused = true;
+    }
+
+    /**
+     * Tasa de créditos devueltos mientras la ventana limita el envío, o de
+     * bytes enviados con XON/XOFF
+     */
+    private void measure(int bytes, long now) {
+        sampleBytes += bytes;
+        long elapsed = now - sampleStart;
+        if (elapsed < SAMPLE_NANOS) return;
+        // con créditos solo mide si la ventana frenó el envío; si no, mide lo que manda la aplicación
+        if (mode == Mode.XON_XOFF || creditLimited) {
+            double sample = sampleBytes * (double) SECOND / elapsed;
+            measuredRate = measuredRate == 0 ? sample : measuredRate + (sample - measuredRate) * SMOOTHING;
+            if (adaptive && mode == Mode.CREDITS) setPacing(measuredRate * HEADROOM);
+        }
+        sampleStart = now;
+        sampleBytes = 0;
+        creditLimited = false;
+    }
+
+    private void setPacing(double bytesPerSecond) {
+        boolean started = rate == 0;
+        rate = bytesPerSecond > 0 ? Math.max(MIN_RATE, bytesPerSecond) : 0;
+        if (started) tokens = burst();
+        tokens = Math.min(tokens, burst());
+    }
+
+    private void refill(long now) {
+        if (rate > 0)
+            tokens = Math.min(burst(), tokens + (now - refilledAt) * rate / SECOND);
+        refilledAt = now;
+    }
+
+    /**
+     * Ráfaga máxima: unos milisegundos de envío, y al menos un crédito
+     */
+    private double burst() {
+        return Math.max(creditUnit, rate * BURST_NANOS / SECOND);
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    public synchronized int getCredits() {
+        return credits;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * @return bytes por segundo del ritmo de envío, 0 sin límite
+     */
+    public synchronized long getRate() {
+        return (long) rate;
+    }
+
+    /**
+     * @return bytes por segundo que sostiene el dispositivo, 0 si todavía no se sabe
+     */
+    public synchronized long getMeasuredRate() {
+        return (long) measuredRate;
+    }
+
+    public synchronized long getBytesSent() {
+        return sent;
+    }
+
+    /**
+     * @return bytes que el dispositivo confirmó con créditos, o los enviados con XON/XOFF
+     */
+    public synchronized long getBytesDelivered() {
+        return delivered;
+    }
+
+    /**
+     * @return veces que el envío tuvo que esperar créditos, un XON o el ritmo
+     */
+    public synchronized long getStalls() {
+        return stalls;
+    }
+
+    public synchronized long getXoffs() {
+        return xoffs;
+    }
+
+    /**
+     * @return veces que se pasó a XON/XOFF porque el dispositivo no devolvía créditos
+     */
+    public synchronized long getFallbacks() {
+        return fallbacks;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (mode == Mode.CREDITS ? "créditos " + credits + "/" + window : "XON/XOFF" + (paused ? " detenido" : ""))
+                + ", ritmo " + (rate > 0 ? (long) rate + " B/s" : "libre") + ", medido " + (long) measuredRate
+                + " B/s, " + stalls + " esperas, " + xoffs + " XOFF";
+    }
+}
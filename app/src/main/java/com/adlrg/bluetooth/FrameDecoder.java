@@ -0,0 +1,195 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Separa en mensajes el flujo que llega por {@link StreamingListener#onData}.
+ * Cada trozo se recorre una sola vez. Los mensajes que caben completos en un
+ * trozo se entregan como una porción del mismo arreglo, sin copiarlos; solo el
+ * inicio de un mensaje partido entre dos lecturas se guarda en un buffer fijo
+ * de {@code maxFrameSize} bytes. Los mensajes más largos que eso se descartan.
+ * <p>
+ * No es seguro usar la misma instancia desde varios hilos.
+ */
+public class FrameDecoder {
+
+    public enum Framing {
+        /** Mensajes terminados en '\0' */
+        NUL,
+        /** Líneas terminadas en '\n'; se quita el '\r' final si lo hay */
+        CRLF,
+        /** Longitud big-endian de 1 o 2 bytes seguida del mensaje */
+        LENGTH_PREFIXED
+    }
+
+    public interface FrameListener {
+        /**
+         * Recibe un mensaje completo, sin delimitador ni longitud. El arreglo
+         * solo es válido durante la llamada.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+
+        /**
+         * Avisa que se descartó un mensaje por exceder el tamaño máximo
+         */
+        void onOversizedFrame();
+    }
+
+    private final Framing framing;
+    private final int lengthBytes;
+    private final byte[] partial;
+    private final FrameListener listener;
+
+    private int pending;
+    private boolean discarding;
+    private int headerRead;
+    private int frameLength;
+    private int bodyRemaining;
+
+    private long frames;
+    private long oversizedFrames;
+
+    public FrameDecoder(Framing framing, int maxFrameSize, FrameListener listener) {
+        this(framing, 2, maxFrameSize, listener);
+    }
+
+    /**
+     * @param lengthBytes  bytes del prefijo de longitud (1 o 2), solo para
+     *                     {@link Framing#LENGTH_PREFIXED}
+     * @param maxFrameSize tamaño máximo de un mensaje
+     */
+    public FrameDecoder(Framing framing, int lengthBytes, int maxFrameSize, FrameListener listener) {
+        if (lengthBytes != 1 && lengthBytes != 2)
+            throw new IllegalArgumentException("lengthBytes must be 1 or 2");
+        this.framing = framing;
+        this.lengthBytes = lengthBytes;
+        this.listener = listener;
+        partial = new byte[maxFrameSize];
+    }
+
+    /**
+     * Procesa un trozo del flujo y entrega todos los mensajes que complete
+     */
+    public void feed(byte[] data, int offset, int length) {
+        if (framing == Framing.LENGTH_PREFIXED)
+            feedLengthPrefixed(data, offset, length);
+        else
+            feedDelimited(data, offset, length, framing == Framing.NUL ? (byte) 0 : (byte) '\n');
+    }
+
+    /**
+     * Olvida cualquier mensaje a medias, por ejemplo al reconectar
+     */
+    public void reset() {
+        pending = 0;
+        discarding = false;
+        headerRead = 0;
+        frameLength = 0;
+        bodyRemaining = 0;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    public long getOversizedFrames() {
+        return oversizedFrames;
+    }
+
+    private void feedDelimited(byte[] data, int offset, int length, byte delimiter) {
+        int start = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != delimiter) continue;
+            if (discarding) {
+                discarding = false;
+            } else if (pending == 0) {
+                if (i - start > partial.length)
+                    oversized();
+                else
+                    emitLine(data, start, i - start);
+            } else if (append(data, start, i - start)) {
+                emitLine(partial, 0, pending);
+                pending = 0;
+            } else {
+                discarding = false;
+            }
+            start = i + 1;
+        }
+        if (start < end && !discarding)
+            append(data, start, end - start);
+    }
+
+    private void emitLine(byte[] buffer, int offset, int length) {
+        if (framing == Framing.CRLF && length > 0 && buffer[offset + length - 1] == '\r')
+            length--;
+        emit(buffer, offset, length);
+    }
+
+    private void feedLengthPrefixed(byte[] data, int offset, int length) {
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            if (headerRead < lengthBytes) {
+                frameLength = (frameLength << 8) | (data[i++] & 0xFF);
+                if (++headerRead < lengthBytes) continue;
+                bodyRemaining = frameLength;
+                discarding = frameLength > partial.length;
+                if (discarding) oversized();
+                if (bodyRemaining == 0) {
+                    if (!discarding) emit(data, i, 0);
+                    nextHeader();
+                }
+                continue;
+            }
+            int n = Math.min(bodyRemaining, end - i);
+            if (discarding) {
+                // ya se reportó al leer la longitud
+            } else if (pending == 0 && n == frameLength) {
+                emit(data, i, n);
+            } else {
+                System.arraycopy(data, i, partial, pending, n);
+                pending += n;
+                if (pending == frameLength) {
+                    emit(partial, 0, pending);
+                    pending = 0;
+                }
+            }
+            i += n;
+            bodyRemaining -= n;
+            if (bodyRemaining == 0)
+                nextHeader();
+        }
+    }
+
+    private void nextHeader() {
+        headerRead = 0;
+        frameLength = 0;
+        discarding = false;
+    }
+
+    /**
+     * Guarda el inicio de un mensaje partido
+     *
+     * @return <code>false</code> si el mensaje ya no cabe y se empezó a descartar
+     */
+    private boolean append(byte[] data, int offset, int length) {
+        if (pending + length > partial.length) {
+            pending = 0;
+            discarding = true;
+            oversized();
+            return false;
+        }
+        System.arraycopy(data, offset, partial, pending, length);
+        pending += length;
+        return true;
+    }
+
+    private void emit(byte[] buffer, int offset, int length) {
+        frames++;
+        listener.onFrame(buffer, offset, length);
+    }
+
+    private void oversized() {
+        oversizedFrames++;
+        listener.onOversizedFrame();
+    }
+}
@@ -0,0 +1,48 @@
+package com.adlrg.bluetooth;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+/**
+ * {@link DispatchScheduler} sobre un {@link Handler} de Android. Puede usar el
+ * looper principal o el de un hilo consumidor propio.
+ */
+public class HandlerScheduler implements DispatchScheduler {
+
+    private final Handler handler;
+
+    public HandlerScheduler(Looper looper) {
+        handler = new Handler(looper);
+    }
+
+    /**
+     * Crea un planificador con su propio {@link HandlerThread}
+     *
+     * @param name nombre del hilo consumidor
+     */
+    public static HandlerScheduler background(String name) {
+        HandlerThread thread = new HandlerThread(name);
+        thread.start();
+        return new HandlerScheduler(thread.getLooper());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        handler.post(command);
+    }
+
+    @Override
+    public void executeDelayed(Runnable command, long delayMillis) {
+        handler.postDelayed(command, delayMillis);
+    }
+
+    /**
+     * Detiene el hilo consumidor. No hace nada sobre el looper principal.
+     */
+    public void quit() {
+        Looper looper = handler.getLooper();
+        if (looper != Looper.getMainLooper())
+            looper.quit();
+    }
+}
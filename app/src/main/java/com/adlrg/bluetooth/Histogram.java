@@ -0,0 +1,142 @@
+package com.adlrg.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de valores enteros no negativos con memoria fija, al estilo de
+ * HdrHistogram: los valores menores a 32 tienen su propia casilla y de ahí en
+ * adelante cada potencia de dos se divide en 16 casillas, así que el error
+ * relativo es menor a 1/16 en todo el rango. Los valores por encima de
+ * {@link #MAX_VALUE} se cuentan en la última casilla.
+ * <p>
+ * Registrar es seguro desde varios hilos y no reserva memoria.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int MAX_SHIFT = 32;
+    private static final int BUCKETS = LINEAR + MAX_SHIFT * SUB_BUCKETS;
+
+    public static final long MAX_VALUE = ((long) LINEAR << MAX_SHIFT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // otro hilo registró un máximo al mismo tiempo
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @param percentile de 0 a 100
+     * @return el mayor valor equivalente a la casilla donde cae el percentil,
+     * nunca mayor al máximo registrado; 0 si está vacío
+     */
+    public long getValueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        return valueAtPercentile(snapshot, copyCounts(snapshot), percentile);
+    }
+
+    /**
+     * Resumen de percentiles calculado sobre una sola copia de las casillas
+     */
+    public Summary summarize() {
+        long[] snapshot = new long[BUCKETS];
+        long total = copyCounts(snapshot);
+        return new Summary(total, getMean(), valueAtPercentile(snapshot, total, 50),
+                valueAtPercentile(snapshot, total, 90), valueAtPercentile(snapshot, total, 99), getMax());
+    }
+
+    /**
+     * Vacía el histograma. Lo registrado al mismo tiempo puede perderse o quedar a medias.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private long copyCounts(long[] snapshot) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return total;
+    }
+
+    private long valueAtPercentile(long[] snapshot, long total, double percentile) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return i == BUCKETS - 1 ? max.get() : Math.min(highestEquivalent(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int indexOf(long value) {
+        if (value < LINEAR) return (int) value;
+        if (value > MAX_VALUE) return BUCKETS - 1;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestEquivalent(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long lowest = (long) (SUB_BUCKETS + (index - LINEAR) % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public static final class Summary {
+        public final long count;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Summary(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50=" + p50 + " p90=" + p90 + " p99=" + p99 + " máx=" + max;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.adlrg.bluetooth;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Contadores del enlace compartidos por todas las conexiones de un
+ * {@link SerialConnectionManager}: bytes y mensajes en cada sentido,
+ * distribución del tamaño de las lecturas, profundidad de la cola de
+ * escritura, retraso entre la lectura y {@link StreamingListener#onData},
+ * tiempos de ida y vuelta, reconexiones y, con {@link FlowController}, los
+ * bytes que el dispositivo confirmó por segundo (goodput). Los histogramas tienen memoria
+ * fija, así que registrar no reserva memoria.
+ * <p>
+ * Los métodos {@code on*} se llaman desde los hilos de lectura y escritura;
+ * {@link #snapshot} puede llamarse desde cualquier hilo.
+ */
+public class LinkMetrics {
+
+    public interface Listener {
+        void onMetrics(Snapshot snapshot);
+    }
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong framesIn = new AtomicLong();
+    private final AtomicLong framesOut = new AtomicLong();
+    private final AtomicLong maxPendingBytes = new AtomicLong();
+    private final AtomicLong connectionsLost = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final Histogram readSizes = new Histogram();
+    private final Histogram dispatchLag = new Histogram();
+    private final Histogram roundTrip = new Histogram();
+
+    private long lastSnapshotAt = System.nanoTime();
+    private long lastBytesIn;
+    private long lastBytesOut;
+    private long lastDelivered;
+
+    void onRead(int length) {
+        reads.incrementAndGet();
+        bytesIn.addAndGet(length);
+        readSizes.record(length);
+    }
+
+    void onWrite(int length) {
+        writes.incrementAndGet();
+        bytesOut.addAndGet(length);
+    }
+
+    void onFrameSent() {
+        framesOut.incrementAndGet();
+    }
+
+    void onQueued(int pendingBytes) {
+        long current;
+        while (pendingBytes > (current = maxPendingBytes.get())
+                && !maxPendingBytes.compareAndSet(current, pendingBytes)) {
+            // otro hilo encoló al mismo tiempo
+        }
+    }
+
+    void onConnectionLost() {
+        connectionsLost.incrementAndGet();
+    }
+
+    void onReconnect() {
+        reconnects.incrementAndGet();
+    }
+
+    /**
+     * Cuenta un mensaje recibido; lo llama quien separa los mensajes, por
+     * ejemplo un {@link FrameDecoder} o un {@link RequestPipeline}
+     */
+    public void onFrameReceived() {
+        framesIn.incrementAndGet();
+    }
+
+    /**
+     * Registra un tiempo de ida y vuelta medido por la aplicación
+     */
+    public void recordRoundTrip(long micros) {
+        roundTrip.record(micros);
+    }
+
+    /**
+     * @return microsegundos entre que termina la lectura y se llama a onData
+     */
+    public Histogram getDispatchLag() {
+        return dispatchLag;
+    }
+
+    /**
+     * @return microsegundos de ida y vuelta de peticiones y respuestas
+     */
+    public Histogram getRoundTrip() {
+        return roundTrip;
+    }
+
+    /**
+     * @return bytes entregados por cada lectura
+     */
+    public Histogram getReadSizes() {
+        return readSizes;
+    }
+
+    /**
+     * Vacía contadores e histogramas
+     */
+    public synchronized void reset() {
+        bytesIn.set(0);
+        bytesOut.set(0);
+        reads.set(0);
+        writes.set(0);
+        framesIn.set(0);
+        framesOut.set(0);
+        maxPendingBytes.set(0);
+        connectionsLost.set(0);
+        reconnects.set(0);
+        readSizes.reset();
+        dispatchLag.reset();
+        roundTrip.reset();
+        lastSnapshotAt = System.nanoTime();
+        lastBytesIn = 0;
+        lastBytesOut = 0;
+        lastDelivered = 0;
+    }
+
+    /**
+     * Toma una fotografía de los contadores. Las tasas se calculan desde la fotografía anterior.
+     *
+     * @param connections conexiones cuya cola de escritura se mide en este momento
+     */
+    public synchronized Snapshot snapshot(List<SerialConnection> connections) {
+        int pendingBytes = 0;
+        int pendingMessages = 0;
+        int flowConnections = 0;
+        long delivered = 0;
+        long stalls = 0;
+        long xoffs = 0;
+        for (SerialConnection connection : connections) {
+            WritePipeline pipeline = connection.getWritePipeline();
+            pendingBytes += pipeline.getPendingBytes();
+            pendingMessages += pipeline.getPendingMessages();
+            FlowController flow = pipeline.getFlowController();
+            if (flow != null) {
+                flowConnections++;
+                delivered += flow.getBytesDelivered();
+                stalls += flow.getStalls();
+                xoffs += flow.getXoffs();
+            }
+        }
+        long now = System.nanoTime();
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        double seconds = Math.max(now - lastSnapshotAt, 1) / 1e9;
+        Snapshot snapshot = new Snapshot(in, out, reads.get(), writes.get(), framesIn.get(), framesOut.get(),
+                (long) ((in - lastBytesIn) / seconds), (long) ((out - lastBytesOut) / seconds),
+                pendingBytes, pendingMessages, maxPendingBytes.get(), connections.size(),
+                connectionsLost.get(), reconnects.get(),
+                readSizes.summarize(), dispatchLag.summarize(), roundTrip.summarize(),
+                flowConnections, delivered, (long) (Math.max(0, delivered - lastDelivered) / seconds), stalls, xoffs);
+        lastSnapshotAt = now;
+        lastBytesIn = in;
+        lastBytesOut = out;
+        // una conexión cerrada se lleva su cuenta; la siguiente tasa parte de lo que queda
+        lastDelivered = delivered;
+        return snapshot;
+    }
+
+    public static final class Snapshot {
+        public final long bytesIn;
+        public final long bytesOut;
+        public final long reads;
+        public final long writes;
+        public final long framesIn;
+        public final long framesOut;
+        public final long bytesInPerSecond;
+        public final long bytesOutPerSecond;
+        public final int pendingBytes;
+        public final int pendingMessages;
+        public final long maxPendingBytes;
+        public final int connections;
+        public final long connectionsLost;
+        public final long reconnects;
+        public final Histogram.Summary readSizes;
+        public final Histogram.Summary dispatchLagMicros;
+        public final Histogram.Summary roundTripMicros;
+        /** Conexiones con control de flujo; los campos siguientes solo cuentan esas */
+        public final int flowConnections;
+        public final long bytesDelivered;
+        public final long goodputPerSecond;
+        public final long flowStalls;
+        public final long xoffs;
+
+        Snapshot(long bytesIn, long bytesOut, long reads, long writes, long framesIn, long framesOut,
+                 long bytesInPerSecond, long bytesOutPerSecond, int pendingBytes, int pendingMessages,
+                 long maxPendingBytes, int connections, long connectionsLost, long reconnects,
+                 Histogram.Summary readSizes, Histogram.Summary dispatchLagMicros,
+                 Histogram.Summary roundTripMicros, int flowConnections, long bytesDelivered,
+                 long goodputPerSecond, long flowStalls, long xoffs) {
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.reads = reads;
+            this.writes = writes;
+            this.framesIn = framesIn;
+            this.framesOut = framesOut;
+            this.bytesInPerSecond = bytesInPerSecond;
+            this.bytesOutPerSecond = bytesOutPerSecond;
+            this.pendingBytes = pendingBytes;
+            this.pendingMessages = pendingMessages;
+            this.maxPendingBytes = maxPendingBytes;
+            this.connections = connections;
+            this.connectionsLost = connectionsLost;
+            this.reconnects = reconnects;
+            this.readSizes = readSizes;
+            this.dispatchLagMicros = dispatchLagMicros;
+            this.roundTripMicros = roundTripMicros;
+            this.flowConnections = flowConnections;
+            this.bytesDelivered = bytesDelivered;
+            this.goodputPerSecond = goodputPerSecond;
+            this.flowStalls = flowStalls;
+            this.xoffs = xoffs;
+        }
+
+        @Override
+        public String toString() {
+            String flow = flowConnections == 0 ? "" : "\nFlujo: " + bytesDelivered + " B confirmados, "
+                    + goodputPerSecond + " B/s, " + flowStalls + " esperas, " + xoffs + " XOFF";
+            return "Entrada: " + bytesIn + " B, " + bytesInPerSecond + " B/s, " + framesIn + " mensajes, "
+                    + reads + " lecturas\n"
+                    + "Salida: " + bytesOut + " B, " + bytesOutPerSecond + " B/s, " + framesOut + " mensajes, "
+                    + writes + " escrituras\n"
+                    + "Cola: " + pendingBytes + " B / " + pendingMessages + " mensajes, máx " + maxPendingBytes
+                    + " B\n"
+                    + "Lecturas (B): " + readSizes + "\n"
+                    + "Entrega (µs): " + dispatchLagMicros + "\n"
+                    + "Ida y vuelta (µs): " + roundTripMicros + "\n"
+                    + "Conexiones: " + connections + ", perdidas " + connectionsLost + ", reconexiones "
+                    + reconnects + flow;
+        }
+    }
+}
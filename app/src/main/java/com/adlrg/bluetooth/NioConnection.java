@@ -0,0 +1,473 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conexión atendida por un {@link NioEventLoop}. Lee con un
+ * {@link ByteBuffer} directo y copia a los buffers de {@link DataDispatcher},
+ * así que {@link StreamingListener#onData} recibe arreglos como con
+ * {@link SerialConnection}. La cola de salida es un anillo en un
+ * {@link ByteBuffer} directo que se escribe con una sola escritura
+ * agrupada ({@link GatheringByteChannel}) aunque los bytes den la vuelta al
+ * anillo.
+ * <p>
+ * Usa los mismos estados que {@link SerialConnection}, pero no reconecta:
+ * un fallo al abrir o escribir cierra la conexión con onError y
+ * onDisconnected, y el fin de flujo solo con onDisconnected. Los callbacks de
+ * escritura se llaman en el hilo del selector.
+ */
+public class NioConnection implements SerialSession {
+
+    private static final int MAX_READS_PER_EVENT = 4;
+    private static final IOException CLOSED = new IOException("Connection closed");
+
+    private final NioEventLoop loop;
+    private final ChannelTransport transport;
+    private final StreamingListener listener;
+    private final Executor callbackExecutor;
+    private final DataDispatcher dispatcher;
+    private final ConnectStats connectStats = new ConnectStats();
+    private final AtomicInteger state = new AtomicInteger(SerialConnection.IDLE);
+    private volatile LinkMetrics linkMetrics;
+    private volatile FanOutHub fanOutHub;
+
+    // solo las usa el hilo del selector
+    private final ByteBuffer readBuffer;
+    private final ByteBuffer[] slices;
+    private final WritePipeline.WriteCallback[] completed;
+    private ReadableByteChannel source;
+    private GatheringByteChannel sink;
+    private SelectionKey readKey;
+    private SelectionKey writeKey;
+    private long connectStart;
+
+    private final Object lock = new Object();
+    private final ByteBuffer ring;
+    private final ByteBuffer ringWriter;
+    private int head;
+    private int count;
+    private final int[] messageLength;
+    private final WritePipeline.WriteCallback[] messageCallback;
+    private int messageHead;
+    private int messageCount;
+    private boolean flushScheduled;
+
+    NioConnection(NioEventLoop loop, ChannelTransport transport, StreamingListener listener,
+                  Executor callbackExecutor, DataDispatcher dispatcher, int writeCapacity, int maxMessages) {
+        this.loop = loop;
+        this.transport = transport;
+        this.listener = listener;
+        this.callbackExecutor = callbackExecutor;
+        this.dispatcher = dispatcher;
+        readBuffer = ByteBuffer.allocateDirect(dispatcher.getMaxReadSize());
+        ring = ByteBuffer.allocateDirect(writeCapacity);
+        ringWriter = ring.duplicate();
+        slices = new ByteBuffer[]{ring.duplicate(), ring.duplicate()};
+        messageLength = new int[maxMessages];
+        messageCallback = new WritePipeline.WriteCallback[maxMessages];
+        completed = new WritePipeline.WriteCallback[maxMessages];
+    }
+
+    boolean open() {
+        if (!state.compareAndSet(SerialConnection.IDLE, SerialConnection.CONNECTING)) return false;
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+        return true;
+    }
+
+    public void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+        dispatcher.setDispatchLag(linkMetrics != null ? linkMetrics.getDispatchLag() : null);
+    }
+
+    @Override
+    public void setFanOutHub(FanOutHub hub) {
+        fanOutHub = hub;
+    }
+
+    public ChannelTransport getTransport() {
+        return transport;
+    }
+
+    public DataDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    @Override
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    /**
+     * @return los estados de {@link SerialConnection}
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return isOpen(state.get());
+    }
+
+    /**
+     * @return bytes en la cola de salida
+     */
+    public int getPendingBytes() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    @Override
+    public boolean write(byte[] buffer) {
+        return write(buffer, 0, buffer.length, null);
+    }
+
+    /**
+     * Encola bytes; mientras se conecta esperan en la cola. Si se cierra
+     * justo mientras se encola regresa <code>true</code> y el callback
+     * recibe el error.
+     */
+    @Override
+    public boolean write(byte[] buffer, int offset, int length, WritePipeline.WriteCallback callback) {
+        if (!isOpen(state.get())) return false;
+        if (length == 0) {
+            if (callback != null) callback.onComplete();
+            return true;
+        }
+        boolean schedule;
+        int pending;
+        synchronized (lock) {
+            if (length > ring.capacity() - count || messageCount == messageLength.length) return false;
+            int tail = (head + count) % ring.capacity();
+            int first = Math.min(length, ring.capacity() - tail);
+            ringWriter.clear();
+            ringWriter.position(tail);
+            ringWriter.put(buffer, offset, first);
+            if (first < length) {
+                ringWriter.position(0);
+                ringWriter.put(buffer, offset + first, length - first);
+            }
+            count += length;
+            pending = count;
+            int slot = (messageHead + messageCount) % messageLength.length;
+            messageLength[slot] = length;
+            messageCallback[slot] = callback;
+            messageCount++;
+            schedule = !flushScheduled;
+            flushScheduled = true;
+        }
+        LinkMetrics metrics = linkMetrics;
+        if (metrics != null) metrics.onQueued(pending);
+        if (schedule) loop.execute(flushRunnable);
+        if (!isOpen(state.get())) {
+            // close() vació la cola mientras se encolaba; no debe quedar nada pendiente
+            failPending(CLOSED);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        return shutdown(null);
+    }
+
+    private static boolean isOpen(int state) {
+        return state == SerialConnection.CONNECTING || state == SerialConnection.CONNECTED;
+    }
+
+    /**
+     * Atiende un evento del selector
+     */
+    void onReady(SelectionKey key) {
+        if (!key.isValid() || !isOpen(state.get())) return;
+        int ready = key.readyOps();
+        if ((ready & SelectionKey.OP_READ) != 0 && key == readKey) {
+            try {
+                read();
+            } catch (IOException e) {
+                // como en SerialConnection, un fallo de lectura es un cierre del otro extremo
+                shutdown(null);
+                return;
+            }
+        }
+        try {
+            if ((ready & SelectionKey.OP_CONNECT) != 0)
+                finishConnect();
+            if ((ready & SelectionKey.OP_WRITE) != 0 && key == writeKey)
+                flush();
+        } catch (IOException e) {
+            shutdown(e);
+        }
+    }
+
+    /**
+     * Vuelve a leer después de que el anillo de lectura estuvo lleno
+     */
+    void resumeRead() {
+        if (state.get() == SerialConnection.CONNECTED && readKey.isValid())
+            readKey.interestOps(readKey.interestOps() | SelectionKey.OP_READ);
+    }
+
+    private void connect() {
+        if (state.get() != SerialConnection.CONNECTING) return;
+        connectStats.onAttempt();
+        connectStart = System.nanoTime();
+        try {
+            boolean connected = transport.open();
+            SelectableChannel in = transport.getReadChannel();
+            SelectableChannel out = transport.getWriteChannel();
+            source = (ReadableByteChannel) in;
+            sink = (GatheringByteChannel) out;
+            readKey = in.register(loop.selector(), 0, this);
+            writeKey = out == in ? readKey : out.register(loop.selector(), 0, this);
+            if (connected)
+                onOpened();
+            else
+                writeKey.interestOps(SelectionKey.OP_CONNECT);
+        } catch (IOException e) {
+            connectStats.onFailure();
+            shutdown(e);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (!transport.finishOpen()) return;
+        writeKey.interestOps(writeKey.interestOps() & ~SelectionKey.OP_CONNECT);
+        onOpened();
+    }
+
+    private void onOpened() throws IOException {
+        if (!state.compareAndSet(SerialConnection.CONNECTING, SerialConnection.CONNECTED)) return;
+        connectStats.onConnect(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+        readKey.interestOps(readKey.interestOps() | SelectionKey.OP_READ);
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onConnected();
+            }
+        });
+        flush();
+    }
+
+    private void read() throws IOException {
+        for (int i = 0; i < MAX_READS_PER_EVENT; i++) {
+            ReadBufferPool.ReadBuffer buffer = dispatcher.tryObtain(dispatcher.getReadSize());
+            if (buffer == null) {
+                readKey.interestOps(readKey.interestOps() & ~SelectionKey.OP_READ);
+                loop.pause(this);
+                return;
+            }
+            readBuffer.clear();
+            readBuffer.limit(Math.min(buffer.data.length, readBuffer.capacity()));
+            int n;
+            try {
+                n = source.read(readBuffer);
+            } catch (IOException e) {
+                dispatcher.recycle(buffer);
+                throw e;
+            }
+            if (n <= 0) {
+                dispatcher.recycle(buffer);
+                if (n < 0) throw new IOException("End of stream");
+                return;
+            }
+            readBuffer.flip();
+            readBuffer.get(buffer.data, 0, n);
+            LinkMetrics metrics = linkMetrics;
+            if (metrics != null) metrics.onRead(n);
+            FanOutHub hub = fanOutHub;
+            if (hub != null) hub.publish(buffer.data, 0, n);
+            dispatcher.dispatch(buffer, n);
+            if (n < readBuffer.limit()) return;
+        }
+    }
+
+    /**
+     * Escribe lo encolado; si el canal no acepta todo, espera OP_WRITE
+     */
+    private void flush() throws IOException {
+        synchronized (lock) {
+            flushScheduled = false;
+        }
+        if (state.get() != SerialConnection.CONNECTED) return;
+        int capacity = ring.capacity();
+        while (true) {
+            int start;
+            int n;
+            synchronized (lock) {
+                start = head;
+                n = count;
+            }
+            if (n == 0) {
+                if (writeKey.isValid())
+                    writeKey.interestOps(writeKey.interestOps() & ~SelectionKey.OP_WRITE);
+                return;
+            }
+            int first = Math.min(n, capacity - start);
+            slices[0].clear();
+            slices[0].position(start);
+            slices[0].limit(start + first);
+            int parts = 1;
+            if (first < n) {
+                slices[1].clear();
+                slices[1].limit(n - first);
+                parts = 2;
+            }
+            int written = (int) sink.write(slices, 0, parts);
+            if (written > 0) {
+                int done;
+                synchronized (lock) {
+                    // si se cerró durante la escritura la cola ya se vació
+                    if (state.get() != SerialConnection.CONNECTED) return;
+                    head = (head + written) % capacity;
+                    count -= written;
+                    // los lugares de los mensajes se liberan junto con sus bytes
+                    done = release(written);
+                }
+                LinkMetrics metrics = linkMetrics;
+                if (metrics != null) metrics.onWrite(written);
+                complete(done);
+            }
+            if (written < n) {
+                writeKey.interestOps(writeKey.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Saca de la cola los mensajes que quedaron completamente escritos y
+     * guarda sus callbacks en {@code completed}. Se llama con {@code lock}.
+     *
+     * @return mensajes completos
+     */
+    private int release(int written) {
+        int done = 0;
+        while (written > 0 && messageCount > 0) {
+            int length = messageLength[messageHead];
+            if (length > written) {
+                messageLength[messageHead] = length - written;
+                break;
+            }
+            written -= length;
+            completed[done++] = messageCallback[messageHead];
+            messageCallback[messageHead] = null;
+            messageHead = (messageHead + 1) % messageLength.length;
+            messageCount--;
+        }
+        return done;
+    }
+
+    /**
+     * Avisa a los mensajes que devolvió {@link #release}
+     */
+    private void complete(int done) {
+        LinkMetrics metrics = linkMetrics;
+        for (int i = 0; i < done; i++) {
+            WritePipeline.WriteCallback callback = completed[i];
+            completed[i] = null;
+            if (metrics != null) metrics.onFrameSent();
+            if (callback != null) callback.onComplete();
+        }
+    }
+
+    /**
+     * Descarta todo lo pendiente y avisa el error a cada mensaje
+     */
+    private void failPending(Exception e) {
+        while (true) {
+            WritePipeline.WriteCallback callback;
+            synchronized (lock) {
+                if (messageCount == 0) {
+                    head = 0;
+                    count = 0;
+                    return;
+                }
+                callback = messageCallback[messageHead];
+                messageCallback[messageHead] = null;
+                messageHead = (messageHead + 1) % messageLength.length;
+                messageCount--;
+            }
+            if (callback != null) callback.onError(e);
+        }
+    }
+
+    /**
+     * Única salida de los estados abiertos; libera los canales en el hilo del selector
+     *
+     * @param error se avisa con onError antes de onDisconnected; puede ser null
+     */
+    private boolean shutdown(final Exception error) {
+        final int previous;
+        while (true) {
+            int current = state.get();
+            if (!isOpen(current)) return false;
+            if (state.compareAndSet(current, SerialConnection.CLOSING)) {
+                previous = current;
+                break;
+            }
+        }
+        Runnable release = new Runnable() {
+            @Override
+            public void run() {
+                if (readKey != null) readKey.cancel();
+                if (writeKey != null) writeKey.cancel();
+                try {
+                    transport.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                loop.remove(NioConnection.this);
+                failPending(CLOSED);
+                state.set(SerialConnection.IDLE);
+                if (error != null) {
+                    error.printStackTrace();
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onError(error);
+                        }
+                    });
+                }
+                if (previous == SerialConnection.CONNECTED) {
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onDisconnected();
+                        }
+                    });
+                }
+            }
+        };
+        if (loop.inLoop())
+            release.run();
+        else
+            loop.execute(release);
+        return true;
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                shutdown(e);
+            }
+        }
+    };
+}
@@ -0,0 +1,153 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Un solo hilo con un {@link Selector} que atiende las lecturas, escrituras
+ * y aperturas de muchas {@link NioConnection}. Es la variante no bloqueante
+ * de {@link SerialConnectionManager} para transportes que ofrecen canales
+ * (puentes TCP, emuladores, tuberías); el socket RFCOMM de Android solo
+ * tiene flujos bloqueantes y sigue usando {@link SerialConnection}.
+ * <p>
+ * Cuando el anillo de lectura de una conexión se llena, deja de leerla y
+ * vuelve a intentar cada {@link #PAUSE_MILLIS}, sin bloquear a las demás.
+ */
+public class NioEventLoop {
+
+    public static final long PAUSE_MILLIS = 1;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<NioConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<NioConnection, Boolean>());
+    // conexiones que esperan buffers de lectura; solo las usa el hilo del selector
+    private final List<NioConnection> paused = new ArrayList<NioConnection>();
+    private final List<NioConnection> resuming = new ArrayList<NioConnection>();
+    private volatile LinkMetrics linkMetrics;
+    private volatile boolean running = true;
+
+    public NioEventLoop() throws IOException {
+        this("serial-nio");
+    }
+
+    public NioEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Crea una conexión sobre el transporte y empieza a abrirla en el hilo del selector
+     *
+     * @param dispatcher entrega de los datos leídos
+     */
+    public NioConnection open(ChannelTransport transport, StreamingListener listener, Executor callbackExecutor,
+                              DataDispatcher dispatcher) {
+        NioConnection connection = new NioConnection(this, transport, listener, callbackExecutor, dispatcher,
+                WritePipeline.DEFAULT_CAPACITY, WritePipeline.DEFAULT_MAX_MESSAGES);
+        connection.setLinkMetrics(linkMetrics);
+        connections.add(connection);
+        connection.open();
+        return connection;
+    }
+
+    /**
+     * Mide las conexiones que se abran después
+     *
+     * @param linkMetrics null para dejar de medir
+     */
+    public void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+    }
+
+    /**
+     * @return conexiones abiertas o abriéndose
+     */
+    public int getConnectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * Cierra todas las conexiones y detiene el hilo
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Ejecuta la tarea en el hilo del selector
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread)
+            selector.wakeup();
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    void pause(NioConnection connection) {
+        paused.add(connection);
+    }
+
+    void remove(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    private void loop() {
+        while (running) {
+            try {
+                selector.select(paused.isEmpty() ? 0 : PAUSE_MILLIS);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                ((NioConnection) key.attachment()).onReady(key);
+            }
+            if (!paused.isEmpty()) {
+                resuming.addAll(paused);
+                paused.clear();
+                for (NioConnection connection : resuming)
+                    connection.resumeRead();
+                resuming.clear();
+            }
+        }
+        for (NioConnection connection : connections)
+            connection.close();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Transporte no bloqueante en memoria formado por dos {@link Pipe}. El lado
+ * del dispositivo ({@link #getDeviceSource()} y {@link #getDeviceSink()}) lo
+ * usa una prueba o un simulador; esos canales quedan en modo bloqueante.
+ */
+public class PipeChannelTransport implements ChannelTransport {
+
+    private final String name;
+    private Pipe toClient;
+    private Pipe toDevice;
+
+    public PipeChannelTransport(String name) throws IOException {
+        this.name = name;
+        toClient = Pipe.open();
+        toDevice = Pipe.open();
+    }
+
+    /**
+     * Si el transporte se cerró antes, se crean tuberías nuevas.
+     */
+    @Override
+    public synchronized boolean open() throws IOException {
+        if (!toClient.source().isOpen() || !toDevice.sink().isOpen()) {
+            toClient = Pipe.open();
+            toDevice = Pipe.open();
+        }
+        toClient.source().configureBlocking(false);
+        toDevice.sink().configureBlocking(false);
+        return true;
+    }
+
+    @Override
+    public boolean finishOpen() {
+        return true;
+    }
+
+    @Override
+    public synchronized SelectableChannel getReadChannel() {
+        return toClient.source();
+    }
+
+    @Override
+    public synchronized SelectableChannel getWriteChannel() {
+        return toDevice.sink();
+    }
+
+    /**
+     * @return el canal con los bytes que escribió el cliente
+     */
+    public synchronized Pipe.SourceChannel getDeviceSource() {
+        return toDevice.source();
+    }
+
+    /**
+     * @return el canal por el que el dispositivo simulado envía datos al cliente
+     */
+    public synchronized Pipe.SinkChannel getDeviceSink() {
+        return toClient.sink();
+    }
+
+    /**
+     * Cierra el lado del cliente; el dispositivo ve fin de flujo
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        toClient.source().close();
+        toDevice.sink().close();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,182 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Transporte en memoria formado por dos tuberías acotadas. El lado del
+ * dispositivo ({@link #getDeviceInputStream()} y {@link #getDeviceOutputStream()})
+ * lo usa una prueba o un simulador para hacerse pasar por el Arduino.
+ */
+public class PipedTransport implements SerialTransport {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final int capacity;
+    private Pipe toClient;
+    private Pipe toDevice;
+
+    public PipedTransport() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PipedTransport(int capacity) {
+        this.capacity = capacity;
+        toClient = new Pipe(capacity);
+        toDevice = new Pipe(capacity);
+    }
+
+    /**
+     * Si el transporte se cerró antes, se crean tuberías nuevas.
+     */
+    @Override
+    public synchronized void open() throws IOException {
+        if (toClient.isClosed() || toDevice.isClosed()) {
+            toClient = new Pipe(capacity);
+            toDevice = new Pipe(capacity);
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() {
+        return toClient.in;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() {
+        return toDevice.out;
+    }
+
+    /**
+     * @return el flujo con los bytes que escribió el cliente
+     */
+    public synchronized InputStream getDeviceInputStream() {
+        return toDevice.in;
+    }
+
+    /**
+     * @return el flujo por el que el dispositivo simulado envía datos al cliente
+     */
+    public synchronized OutputStream getDeviceOutputStream() {
+        return toClient.out;
+    }
+
+    @Override
+    public synchronized void close() {
+        toClient.close();
+        toDevice.close();
+    }
+
+    @Override
+    public String getName() {
+        return "pipe";
+    }
+
+    /**
+     * Buffer circular de bytes con un solo escritor y un solo lector.
+     * Al cerrarse, el lector recibe fin de flujo y el escritor una excepción.
+     */
+    private static class Pipe {
+        private final byte[] ring;
+        private int readPos;
+        private int count;
+        private boolean closed;
+
+        final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() throws IOException {
+                synchronized (Pipe.this) {
+                    // igual que un socket cerrado, para que los lectores sin bloqueo noten el cierre
+                    if (closed && count == 0) throw new IOException("Pipe closed");
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int capacity) {
+            ring = new byte[capacity];
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (count == 0 && !closed)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if (count == 0) return -1;
+            int n = Math.min(len, count);
+            int first = Math.min(n, ring.length - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            readPos = (readPos + n) % ring.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                try {
+                    while (count == ring.length && !closed)
+                        wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (closed) throw new IOException("Pipe closed");
+                int writePos = (readPos + count) % ring.length;
+                int n = Math.min(len, Math.min(ring.length - count, ring.length - writePos));
+                System.arraycopy(b, off, ring, writePos, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+    }
+}
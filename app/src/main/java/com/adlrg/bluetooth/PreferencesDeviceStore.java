@@ -0,0 +1,36 @@
+package com.adlrg.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Guarda la caché de {@link DeviceRegistry} en las preferencias compartidas.
+ * La escritura se hace con {@link SharedPreferences.Editor#apply()} y no
+ * bloquea el hilo principal.
+ */
+public class PreferencesDeviceStore implements DeviceRegistry.Store {
+
+    private static final String PREFERENCES = "bluetooth_devices";
+    private static final String KEY = "devices";
+
+    private final SharedPreferences preferences;
+
+    public PreferencesDeviceStore(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public Set<String> load() {
+        // el conjunto devuelto no se debe modificar
+        return new HashSet<String>(preferences.getStringSet(KEY, Collections.<String>emptySet()));
+    }
+
+    @Override
+    public void save(Set<String> records) {
+        preferences.edit().putStringSet(KEY, records).apply();
+    }
+}
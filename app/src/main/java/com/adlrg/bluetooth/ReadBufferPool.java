@@ -0,0 +1,223 @@
+package com.adlrg.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Anillo fijo de buffers de lectura. El lector toma un buffer, lo llena y lo
+ * entrega como {@link Runnable}; al terminar {@link StreamingListener#onData}
+ * el buffer vuelve al anillo, así que en régimen estable no se reserva memoria.
+ * Si el consumidor se atrasa y no quedan buffers, el lector espera.
+ * <p>
+ * Los buffers vienen en clases de tamaño, de {@code minSize} a
+ * {@code maxSize} multiplicando por {@link #GROWTH}; cada clase tiene la
+ * mitad de buffers que la anterior. El tamaño de la siguiente lectura se
+ * adapta a lo que se ha leído: si una lectura llena el buffer se pasa a la
+ * clase siguiente, y cuando el promedio de las lecturas cabe holgado en una
+ * clase menor se regresa a ella. Así una ráfaga se lee en pocas lecturas
+ * grandes y un enlace tranquilo usa los buffers chicos.
+ */
+public class ReadBufferPool {
+
+    public static final int GROWTH = 4;
+
+    private static final int MIN_CLASS_BUFFERS = 2;
+
+    private final int[] sizes;
+    private final List<ArrayBlockingQueue<ReadBuffer>> free;
+    private final Semaphore permits;
+    private final int capacity;
+    private final int totalBytes;
+    private volatile Histogram dispatchLag;
+
+    // estado de la adaptación; solo lo usa el hilo lector
+    private int averageRead;
+    private int target;
+
+    public ReadBufferPool(StreamingListener listener, int buffers, int bufferSize) {
+        this(listener, buffers, bufferSize, bufferSize);
+    }
+
+    /**
+     * @param buffers buffers de la clase más chica
+     * @param minSize tamaño de la clase más chica
+     * @param maxSize tamaño de la clase más grande
+     */
+    public ReadBufferPool(StreamingListener listener, int buffers, int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize)
+            throw new IllegalArgumentException("Invalid buffer sizes " + minSize + ".." + maxSize);
+        List<Integer> classSizes = new ArrayList<Integer>();
+        for (int size = minSize; ; size = Math.min(size * GROWTH, maxSize)) {
+            classSizes.add(size);
+            if (size >= maxSize) break;
+        }
+        sizes = new int[classSizes.size()];
+        free = new ArrayList<ArrayBlockingQueue<ReadBuffer>>(sizes.length);
+        int count = buffers;
+        int total = 0;
+        int bytes = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = classSizes.get(i);
+            ArrayBlockingQueue<ReadBuffer> queue = new ArrayBlockingQueue<ReadBuffer>(count);
+            for (int j = 0; j < count; j++)
+                queue.add(new ReadBuffer(this, listener, sizes[i], i));
+            free.add(queue);
+            total += count;
+            bytes += count * sizes[i];
+            count = Math.max(MIN_CLASS_BUFFERS, count / 2);
+        }
+        capacity = total;
+        totalBytes = bytes;
+        permits = new Semaphore(total);
+    }
+
+    /**
+     * Toma un buffer libre, esperando si todos están en uso
+     *
+     * @param wanted bytes que se espera leer; se prefiere la clase más chica
+     *               donde caben y si no hay se usa otra
+     */
+    public ReadBuffer acquire(int wanted) throws InterruptedException {
+        permits.acquire();
+        return take(classFor(wanted));
+    }
+
+    public ReadBuffer acquire() throws InterruptedException {
+        return acquire(nextSize());
+    }
+
+    /**
+     * Toma un buffer libre sin esperar
+     *
+     * @return null si todos están en uso
+     */
+    public ReadBuffer tryAcquire(int wanted) {
+        if (!permits.tryAcquire()) return null;
+        return take(classFor(wanted));
+    }
+
+    public ReadBuffer tryAcquire() {
+        return tryAcquire(nextSize());
+    }
+
+    public void release(ReadBuffer buffer) {
+        buffer.length = 0;
+        free.get(buffer.sizeClass).offer(buffer);
+        permits.release();
+    }
+
+    public int available() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * @return número total de buffers
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return bytes de todos los buffers juntos
+     */
+    public int getTotalBytes() {
+        return totalBytes;
+    }
+
+    public int getMaxSize() {
+        return sizes[sizes.length - 1];
+    }
+
+    /**
+     * @return tamaño sugerido para la siguiente lectura, según las anteriores
+     */
+    public int nextSize() {
+        return sizes[target];
+    }
+
+    /**
+     * Ajusta el tamaño de las siguientes lecturas. Se llama en el hilo lector.
+     *
+     * @param length   bytes leídos
+     * @param capacity tamaño del buffer en el que se leyeron
+     */
+    void onRead(int length, int capacity) {
+        averageRead = (averageRead * 3 + length) / 4;
+        if (length >= capacity && capacity >= sizes[target]) {
+            // el buffer se llenó, seguramente quedan más bytes esperando
+            if (target < sizes.length - 1) target++;
+        } else {
+            int fit = classFor(averageRead * 2);
+            if (fit < target) target = fit;
+        }
+    }
+
+    /**
+     * @param dispatchLag registra los microsegundos entre la lectura y onData; null para no medir
+     */
+    void setDispatchLag(Histogram dispatchLag) {
+        this.dispatchLag = dispatchLag;
+    }
+
+    Histogram getDispatchLag() {
+        return dispatchLag;
+    }
+
+    /**
+     * @return la clase más chica donde caben {@code bytes}, o la más grande
+     */
+    private int classFor(int bytes) {
+        for (int i = 0; i < sizes.length; i++)
+            if (sizes[i] >= bytes) return i;
+        return sizes.length - 1;
+    }
+
+    /**
+     * Saca un buffer de la clase preferida o, si no hay, de la más cercana;
+     * el permiso ya tomado garantiza que alguna tiene uno libre
+     */
+    private ReadBuffer take(int preferred) {
+        while (true) {
+            for (int i = preferred; i < sizes.length; i++) {
+                ReadBuffer buffer = free.get(i).poll();
+                if (buffer != null) return buffer;
+            }
+            for (int i = preferred - 1; i >= 0; i--) {
+                ReadBuffer buffer = free.get(i).poll();
+                if (buffer != null) return buffer;
+            }
+        }
+    }
+
+    public static final class ReadBuffer implements Runnable {
+        public final byte[] data;
+        public int length;
+        long readAt;
+        final int sizeClass;
+        private final ReadBufferPool pool;
+        private final StreamingListener listener;
+
+        ReadBuffer(ReadBufferPool pool, StreamingListener listener, int size, int sizeClass) {
+            this.pool = pool;
+            this.listener = listener;
+            this.sizeClass = sizeClass;
+            data = new byte[size];
+        }
+
+        /**
+         * Entrega los datos al listener y regresa el buffer al anillo
+         */
+        @Override
+        public void run() {
+            Histogram lag = pool.dispatchLag;
+            if (lag != null) lag.record((System.nanoTime() - readAt) / 1000);
+            try {
+                listener.onData(data, length);
+            } finally {
+                pool.release(this);
+            }
+        }
+    }
+}
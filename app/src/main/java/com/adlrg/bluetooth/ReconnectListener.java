@@ -0,0 +1,21 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Eventos de reconexión automática de una {@link SerialConnection} con
+ * {@link ReconnectPolicy}. Mientras se reconecta la conexión sigue abierta y
+ * lo que se escribe se guarda para enviarlo al recuperar el enlace.
+ */
+public interface ReconnectListener {
+    /**
+     * Se perdió el enlace o falló un intento; el intento {@code attempt} se
+     * hará en {@code delayMillis} ms
+     */
+    void onReconnecting(int attempt, long delayMillis);
+
+    /**
+     * El enlace se recuperó
+     *
+     * @param stats tiempos de conexión acumulados, incluido el corte que acaba de terminar
+     */
+    void onReconnected(ConnectStats stats);
+}
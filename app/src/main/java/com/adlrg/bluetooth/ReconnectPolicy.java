@@ -0,0 +1,64 @@
+package com.adlrg.bluetooth;
+
+import java.util.Random;
+
+/**
+ * Esperas entre intentos de reconexión: crecen al doble en cada intento, desde
+ * {@code initialDelay} hasta {@code maxDelay}, y a cada una se le resta una
+ * parte al azar para que varios dispositivos que se cayeron juntos no
+ * reintenten al mismo tiempo. El primer intento es casi inmediato, así que
+ * una caída breve se recupera en milisegundos.
+ */
+public class ReconnectPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY = 25;
+    public static final long DEFAULT_MAX_DELAY = 5000;
+    public static final float DEFAULT_JITTER = 0.5f;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final float jitter;
+    private final int maxAttempts;
+    private final Random random = new Random();
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * @param initialDelay espera antes del primer intento en ms
+     * @param maxDelay     espera máxima en ms
+     * @param jitter       fracción de la espera que puede quitarse al azar, de 0 a 1
+     * @param maxAttempts  intentos antes de rendirse; 0 para no rendirse nunca
+     */
+    public ReconnectPolicy(long initialDelay, long maxDelay, float jitter, int maxAttempts) {
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param attempt número de intento, desde 1
+     * @return ms que hay que esperar antes de ese intento
+     */
+    public long getDelay(int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++)
+            delay *= 2;
+        delay = Math.min(delay, maxDelay);
+        return delay - (long) (delay * jitter * random.nextFloat());
+    }
+
+    /**
+     * @return <code>true</code> si todavía se permite el intento {@code attempt}
+     */
+    public boolean allows(int attempt) {
+        return maxAttempts == 0 || attempt <= maxAttempts;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
@@ -0,0 +1,118 @@
+package com.adlrg.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transporte que reproduce lo recibido en una grabación de
+ * {@link SessionRecorder}, al ritmo original o tan rápido como se pueda. Lo
+ * que el cliente escribe se descarta y solo se cuenta.
+ */
+public class ReplayTransport implements SerialTransport {
+
+    private final File recording;
+    private final float speed;
+    private final boolean closeAtEnd;
+    private final PipedTransport pipe = new PipedTransport();
+    private volatile Thread replayThread;
+    private volatile long bytesReplayed;
+    private volatile long bytesDiscarded;
+
+    /**
+     * @param speed      1 para el ritmo original, 2 para el doble, 0 para sin esperas
+     * @param closeAtEnd <code>true</code> para cerrar el flujo al terminar la grabación
+     */
+    public ReplayTransport(File recording, float speed, boolean closeAtEnd) {
+        this.recording = recording;
+        this.speed = speed;
+        this.closeAtEnd = closeAtEnd;
+    }
+
+    @Override
+    public void open() throws IOException {
+        final SessionReader reader = new SessionReader(recording);
+        pipe.open();
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay(reader);
+            }
+        }, "replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return pipe.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return sink;
+    }
+
+    @Override
+    public void close() {
+        Thread thread = replayThread;
+        if (thread != null) thread.interrupt();
+        pipe.close();
+    }
+
+    @Override
+    public String getName() {
+        return recording.getName();
+    }
+
+    public long getBytesReplayed() {
+        return bytesReplayed;
+    }
+
+    public long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+
+    private void replay(SessionReader reader) {
+        OutputStream out = pipe.getDeviceOutputStream();
+        long startNanos = System.nanoTime();
+        try {
+            while (reader.next()) {
+                if (reader.getType() != SessionRecorder.RECEIVED) continue;
+                if (speed > 0) {
+                    long dueNanos = startNanos + (long) (reader.getTimeMicros() * 1000 / speed);
+                    long waitNanos = dueNanos - System.nanoTime();
+                    if (waitNanos > 0)
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+                out.write(reader.getPayload(), 0, reader.getLength());
+                bytesReplayed += reader.getLength();
+            }
+            if (closeAtEnd) pipe.close();
+        } catch (InterruptedException e) {
+            // close() detuvo la reproducción
+        } catch (IOException e) {
+            e.printStackTrace();
+            pipe.close();
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final OutputStream sink = new OutputStream() {
+        @Override
+        public void write(int b) {
+            bytesDiscarded++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytesDiscarded += len;
+        }
+    };
+}
@@ -0,0 +1,441 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Peticiones y respuestas encimadas sobre una {@link SerialSession}. Cada
+ * petición sale como un mensaje de {@link BinaryFrameEncoder} con su número de
+ * secuencia, y la respuesta que trae el mismo número completa su
+ * {@link Request}. Hasta {@code window} peticiones pueden esperar respuesta al
+ * mismo tiempo; las demás esperan su turno en una cola acotada. Así los viajes
+ * redondos se traslapan en lugar de sumarse.
+ * <p>
+ * Los datos recibidos deben pasarse a {@link #feed} desde
+ * {@link StreamingListener#onData}; los callbacks se llaman en ese hilo, o en
+ * el del temporizador cuando vence el plazo. El plazo cuenta desde que la
+ * petición se envía. Un número de secuencia liberado por plazo o cancelación
+ * no se vuelve a usar hasta dar la vuelta a los 256, así que una respuesta
+ * tardía no completa otra petición.
+ */
+public class RequestPipeline implements BinaryFrameDecoder.FrameListener {
+
+    public static final int DEFAULT_WINDOW = 8;
+    public static final int DEFAULT_MAX_QUEUED = 64;
+    public static final long DEFAULT_TIMEOUT = 1000;
+    public static final int DEFAULT_MAX_PAYLOAD = 256;
+
+    private static final int SEQUENCES = 256;
+
+    public interface ResponseCallback {
+        /**
+         * Llegó la respuesta. El arreglo solo es válido durante la llamada.
+         */
+        void onResponse(int type, byte[] buffer, int offset, int length);
+
+        /**
+         * La petición falló: {@link TimeoutException}, {@link CancellationException},
+         * {@link RejectedExecutionException} si la cola estaba llena o el
+         * error de escritura
+         */
+        void onFailure(Exception e);
+    }
+
+    private final SerialSession connection;
+    private final ScheduledExecutorService timer;
+    private final int window;
+    private final int maxQueued;
+    private final long timeoutMillis;
+    private final BinaryFrameEncoder encoder;
+    private final BinaryFrameDecoder decoder;
+    private final Object lock = new Object();
+
+    private final Request[] inFlight = new Request[SEQUENCES];
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private int inFlightCount;
+    private int nextSequence;
+
+    private volatile BinaryFrameDecoder.FrameListener unsolicitedListener;
+    private volatile LinkMetrics linkMetrics;
+
+    private long completed;
+    private long timeouts;
+    private long cancelled;
+    private long failed;
+
+    public RequestPipeline(SerialSession connection, ScheduledExecutorService timer) {
+        this(connection, timer, true, DEFAULT_MAX_PAYLOAD, DEFAULT_WINDOW, DEFAULT_MAX_QUEUED, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param timer         donde vencen los plazos
+     * @param cobs          formato de los mensajes, igual en ambos lados
+     * @param maxPayload    tamaño máximo de los datos de una petición o respuesta
+     * @param window        peticiones esperando respuesta al mismo tiempo, de 1 a 255
+     * @param maxQueued     peticiones que pueden esperar turno para enviarse
+     * @param timeoutMillis plazo de cada petición desde que se envía
+     */
+    public RequestPipeline(SerialSession connection, ScheduledExecutorService timer, boolean cobs,
+                           int maxPayload, int window, int maxQueued, long timeoutMillis) {
+        if (window < 1 || window >= SEQUENCES)
+            throw new IllegalArgumentException("window must be between 1 and " + (SEQUENCES - 1));
+        this.connection = connection;
+        this.timer = timer;
+        this.window = window;
+        this.maxQueued = maxQueued;
+        this.timeoutMillis = timeoutMillis;
+        encoder = new BinaryFrameEncoder(cobs, maxPayload);
+        decoder = new BinaryFrameDecoder(cobs, maxPayload, this);
+    }
+
+    /**
+     * Recibe los mensajes cuyo número de secuencia no corresponde a ninguna
+     * petición, por ejemplo avisos que el dispositivo manda por su cuenta
+     */
+    public void setUnsolicitedListener(BinaryFrameDecoder.FrameListener unsolicitedListener) {
+        this.unsolicitedListener = unsolicitedListener;
+    }
+
+    /**
+     * @param linkMetrics cuenta los mensajes recibidos y registra los tiempos de ida y vuelta
+     */
+    public void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+    }
+
+    public Request send(int type, byte[] payload) {
+        return send(type, payload, 0, payload.length, null);
+    }
+
+    /**
+     * Envía una petición o la deja en cola si la ventana está llena. Los datos se copian.
+     *
+     * @param callback recibe la respuesta o el error; puede ser null y usar el {@link Request}
+     */
+    public Request send(int type, byte[] payload, int offset, int length, ResponseCallback callback) {
+        if (length > encoder.getMaxPayload())
+            throw new IllegalArgumentException("Payload of " + length + " bytes > " + encoder.getMaxPayload());
+        byte[] copy = new byte[length];
+        System.arraycopy(payload, offset, copy, 0, length);
+        Request request = new Request(type, copy, callback);
+        Exception rejected = null;
+        synchronized (lock) {
+            if (inFlightCount < window && queue.isEmpty()) {
+                if (!transmit(request))
+                    rejected = new IOException("Connection not writable");
+            } else if (queue.size() < maxQueued) {
+                queue.add(request);
+            } else {
+                rejected = new RejectedExecutionException("Request queue full");
+            }
+            if (rejected != null) failed++;
+        }
+        if (rejected != null) request.finish(rejected);
+        return request;
+    }
+
+    /**
+     * Procesa bytes recibidos por la conexión
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        decoder.feed(buffer, offset, length);
+    }
+
+    @Override
+    public void onFrame(int type, int sequence, byte[] buffer, int offset, int length) {
+        LinkMetrics metrics = linkMetrics;
+        if (metrics != null) metrics.onFrameReceived();
+        Request request;
+        synchronized (lock) {
+            request = inFlight[sequence];
+            if (request != null) {
+                release(request);
+                completed++;
+            }
+        }
+        if (request == null) {
+            BinaryFrameDecoder.FrameListener listener = unsolicitedListener;
+            if (listener != null) listener.onFrame(type, sequence, buffer, offset, length);
+            return;
+        }
+        request.respond(type, buffer, offset, length);
+        if (metrics != null) metrics.recordRoundTrip(request.getRoundTripMicros());
+        pump();
+    }
+
+    @Override
+    public void onCorruptFrame() {
+        BinaryFrameDecoder.FrameListener listener = unsolicitedListener;
+        if (listener != null) listener.onCorruptFrame();
+    }
+
+    /**
+     * Falla todas las peticiones pendientes, por ejemplo al desconectar
+     */
+    public void failAll(Exception e) {
+        while (true) {
+            Request request = null;
+            synchronized (lock) {
+                if (!queue.isEmpty()) {
+                    request = queue.poll();
+                } else {
+                    for (int i = 0; i < SEQUENCES && request == null; i++)
+                        if (inFlight[i] != null) {
+                            request = inFlight[i];
+                            release(request);
+                        }
+                }
+                if (request == null) return;
+                failed++;
+            }
+            request.finish(e);
+        }
+    }
+
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlightCount;
+        }
+    }
+
+    public int getQueued() {
+        synchronized (lock) {
+            return queue.size();
+        }
+    }
+
+    public long getCompleted() {
+        synchronized (lock) {
+            return completed;
+        }
+    }
+
+    public long getTimeouts() {
+        synchronized (lock) {
+            return timeouts;
+        }
+    }
+
+    public long getCancelled() {
+        synchronized (lock) {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return peticiones rechazadas o que fallaron al escribirse
+     */
+    public long getFailed() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+
+    /**
+     * Envía las peticiones en cola mientras haya lugar en la ventana
+     */
+    private void pump() {
+        while (true) {
+            Request request;
+            synchronized (lock) {
+                if (inFlightCount >= window || queue.isEmpty()) return;
+                request = queue.poll();
+                if (transmit(request)) continue;
+                failed++;
+            }
+            request.finish(new IOException("Connection not writable"));
+        }
+    }
+
+    /**
+     * Asigna un número de secuencia y escribe el mensaje; se llama con el candado tomado
+     *
+     * @return <code>false</code> si la conexión no aceptó el mensaje
+     */
+    private boolean transmit(final Request request) {
+        int sequence = nextSequence;
+        while (inFlight[sequence] != null)
+            sequence = (sequence + 1) % SEQUENCES;
+        nextSequence = (sequence + 1) % SEQUENCES;
+        request.sequence = sequence;
+        inFlight[sequence] = request;
+        inFlightCount++;
+        request.sentAt = System.nanoTime();
+        int n = encoder.encode(request.type, sequence, request.payload, 0, request.payload.length);
+        if (!connection.write(encoder.getBuffer(), 0, n, request.writeCallback)) {
+            release(request);
+            return false;
+        }
+        if (timeoutMillis > 0) {
+            request.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    abort(request, new TimeoutException("No response after " + timeoutMillis + " ms"));
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    private void release(Request request) {
+        inFlight[request.sequence] = null;
+        inFlightCount--;
+    }
+
+    /**
+     * Quita una petición en cola o en espera y la termina con el error
+     *
+     * @return <code>false</code> si ya había terminado
+     */
+    private boolean abort(Request request, Exception e) {
+        synchronized (lock) {
+            if (queue.remove(request)) {
+                // todavía no se enviaba
+            } else if (request.sequence >= 0 && inFlight[request.sequence] == request) {
+                release(request);
+            } else {
+                return false;
+            }
+            if (e instanceof TimeoutException) timeouts++;
+            else if (e instanceof CancellationException) cancelled++;
+            else failed++;
+        }
+        request.finish(e);
+        pump();
+        return true;
+    }
+
+    /**
+     * Una petición. Como {@link Future}, {@link #get()} regresa una copia de
+     * los datos de la respuesta.
+     */
+    public final class Request implements Future<byte[]> {
+        final int type;
+        final byte[] payload;
+        private final ResponseCallback callback;
+        private final CountDownLatch done = new CountDownLatch(1);
+        int sequence = -1;
+        long sentAt;
+        volatile ScheduledFuture<?> timeout;
+
+        private byte[] response;
+        private int responseType;
+        private long roundTripMicros;
+        private Exception error;
+
+        final WritePipeline.WriteCallback writeCallback = new WritePipeline.WriteCallback() {
+            @Override
+            public void onComplete() {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                abort(Request.this, e);
+            }
+        };
+
+        Request(int type, byte[] payload, ResponseCallback callback) {
+            this.type = type;
+            this.payload = payload;
+            this.callback = callback;
+        }
+
+        void respond(int type, byte[] buffer, int offset, int length) {
+            byte[] copy = new byte[length];
+            System.arraycopy(buffer, offset, copy, 0, length);
+            synchronized (this) {
+                if (done.getCount() == 0) return;
+                response = copy;
+                responseType = type;
+                roundTripMicros = (System.nanoTime() - sentAt) / 1000;
+            }
+            cancelTimeout();
+            done.countDown();
+            if (callback != null) callback.onResponse(type, buffer, offset, length);
+        }
+
+        void finish(Exception e) {
+            synchronized (this) {
+                if (done.getCount() == 0) return;
+                error = e;
+            }
+            cancelTimeout();
+            done.countDown();
+            if (callback != null) callback.onFailure(e);
+        }
+
+        private void cancelTimeout() {
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) scheduled.cancel(false);
+        }
+
+        /**
+         * @return número de secuencia con el que se envió, o -1 si no se ha enviado
+         */
+        public int getSequence() {
+            synchronized (lock) {
+                return sequence;
+            }
+        }
+
+        public synchronized int getResponseType() {
+            return responseType;
+        }
+
+        /**
+         * @return microsegundos entre el envío y la respuesta
+         */
+        public synchronized long getRoundTripMicros() {
+            return roundTripMicros;
+        }
+
+        /**
+         * Quita la petición de la cola o deja de esperar su respuesta
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return abort(this, new CancellationException("Request cancelled"));
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return error instanceof CancellationException;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit))
+                throw new TimeoutException();
+            return result();
+        }
+
+        private synchronized byte[] result() throws ExecutionException {
+            if (error instanceof CancellationException)
+                throw (CancellationException) error;
+            if (error != null)
+                throw new ExecutionException(error);
+            return response;
+        }
+    }
+}
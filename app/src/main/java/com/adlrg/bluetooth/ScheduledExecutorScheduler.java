@@ -0,0 +1,31 @@
+package com.adlrg.bluetooth;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DispatchScheduler} sobre un {@link ScheduledExecutorService}, para
+ * entregar en un hilo consumidor fuera de Android o en pruebas.
+ */
+public class ScheduledExecutorScheduler implements DispatchScheduler {
+
+    private final ScheduledExecutorService executor;
+
+    public ScheduledExecutorScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    @Override
+    public void executeDelayed(Runnable command, long delayMillis) {
+        executor.schedule(command, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
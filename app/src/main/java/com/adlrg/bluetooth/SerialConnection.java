@@ -0,0 +1,503 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Conexión serial sobre un {@link SerialTransport}. Contiene las rutas de
+ * lectura y escritura; los eventos se entregan al {@link StreamingListener}
+ * a través del ejecutor de callbacks (el hilo principal en Android).
+ * <p>
+ * Con una {@link ReconnectPolicy} los fallos al abrir, leer o escribir no
+ * cierran la conexión: el transporte se vuelve a abrir con esperas
+ * crecientes y lo encolado en {@link WritePipeline} se envía al recuperarlo.
+ * <p>
+ * El estado es una máquina {@link #IDLE} → {@link #CONNECTING} →
+ * {@link #CONNECTED} → {@link #CLOSING} → {@link #IDLE} cuyas transiciones se
+ * hacen con compare-and-set, así que las rutas de lectura y escritura lo
+ * consultan sin candados. Los flujos se publican juntos en un objeto
+ * inmutable y cada {@link StreamingListener#onConnected} tiene su
+ * {@link StreamingListener#onDisconnected}.
+ */
+public class SerialConnection implements SerialSession {
+
+    /** Cerrada; se puede abrir */
+    public static final int IDLE = 0;
+    /** Abriendo el transporte por primera vez o reconectando */
+    public static final int CONNECTING = 1;
+    public static final int CONNECTED = 2;
+    /** Cerrándose; pasa a {@link #IDLE} al terminar */
+    public static final int CLOSING = 3;
+
+    private static final IOException CLOSED = new IOException("Connection closed");
+
+    /**
+     * Flujos de una apertura del transporte. Al ser inmutable, quien lo lee
+     * de {@link #link} ve ambos flujos completos.
+     */
+    private static final class Link {
+        final InputStream in;
+        final OutputStream out;
+
+        Link(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    private final SerialTransport transport;
+    private final StreamingListener listener;
+    private final Executor callbackExecutor;
+    private final ExecutorService readExecutor;
+    private final ScheduledExecutorService writeExecutor;
+    private final ScheduledExecutorService connectExecutor;
+    private final DataDispatcher dispatcher;
+    private final WritePipeline writePipeline;
+    private final ConnectStats connectStats = new ConnectStats();
+
+    private final AtomicInteger state = new AtomicInteger(IDLE);
+    private volatile Link link;
+    /** Cambia con cada {@link #open()}, para que los intentos de una apertura anterior no sigan */
+    private volatile int session;
+    private volatile boolean everConnected;
+    private volatile long lostAt;
+    private volatile TrafficTap trafficTap;
+    private volatile FanOutHub fanOutHub;
+    private volatile LinkMetrics linkMetrics;
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile ReconnectListener reconnectListener;
+
+    public SerialConnection(SerialTransport transport, StreamingListener listener, Executor callbackExecutor,
+                            ExecutorService readExecutor, ScheduledExecutorService writeExecutor) {
+        this(transport, listener, callbackExecutor, readExecutor, writeExecutor,
+                new DataDispatcher(listener, callbackExecutor));
+    }
+
+    /**
+     * @param dispatcher decide cómo y en qué hilo llegan los datos al listener;
+     *                   los demás eventos siempre pasan por callbackExecutor
+     */
+    public SerialConnection(SerialTransport transport, StreamingListener listener, Executor callbackExecutor,
+                            ExecutorService readExecutor, ScheduledExecutorService writeExecutor,
+                            DataDispatcher dispatcher) {
+        this(transport, listener, callbackExecutor, readExecutor, writeExecutor, dispatcher,
+                new WritePipeline(writeExecutor));
+    }
+
+    /**
+     * Los ejecutores pueden compartirse con otras conexiones: el ciclo de
+     * lectura ocupa un hilo de readExecutor mientras la conexión está
+     * establecida y writeExecutor puede ser un pool
+     *
+     * @param writePipeline cola de salida; debe escribir en writeExecutor
+     */
+    public SerialConnection(SerialTransport transport, StreamingListener listener, Executor callbackExecutor,
+                            ExecutorService readExecutor, ScheduledExecutorService writeExecutor,
+                            DataDispatcher dispatcher, WritePipeline writePipeline) {
+        this(transport, listener, callbackExecutor, readExecutor, writeExecutor, writeExecutor, dispatcher,
+                writePipeline);
+    }
+
+    /**
+     * @param connectExecutor donde se abre el transporte y se agendan los
+     *                        reintentos. Abrir bloquea hasta que el dispositivo
+     *                        responde, así que con un pool de escritura compartido
+     *                        conviene uno aparte para no frenar a las demás conexiones.
+     */
+    public SerialConnection(SerialTransport transport, StreamingListener listener, Executor callbackExecutor,
+                            ExecutorService readExecutor, ScheduledExecutorService writeExecutor,
+                            ScheduledExecutorService connectExecutor, DataDispatcher dispatcher,
+                            WritePipeline writePipeline) {
+        this.transport = transport;
+        this.listener = listener;
+        this.callbackExecutor = callbackExecutor;
+        this.readExecutor = readExecutor;
+        this.writeExecutor = writeExecutor;
+        this.connectExecutor = connectExecutor;
+        this.dispatcher = dispatcher;
+        this.writePipeline = writePipeline;
+        writePipeline.setErrorListener(new WritePipeline.ErrorListener() {
+            @Override
+            public void onWriteError(OutputStream out, IOException e) {
+                Link current = link;
+                if (current != null && current.out == out)
+                    connectionLost(current, e, true);
+            }
+        });
+    }
+
+    /**
+     * Abre el transporte en el ejecutor de apertura y empieza a leer
+     *
+     * @return <code>false</code> si la conexión no estaba cerrada
+     */
+    public boolean open() {
+        if (!state.compareAndSet(IDLE, CONNECTING)) return false;
+        everConnected = false;
+        final int opened = ++session;
+        connectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connectTransport(opened, 0);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Reconecta automáticamente cuando se pierde el enlace
+     *
+     * @param reconnectPolicy null para cerrar la conexión al primer fallo
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    public void setReconnectListener(ReconnectListener reconnectListener) {
+        this.reconnectListener = reconnectListener;
+    }
+
+    @Override
+    public ConnectStats getConnectStats() {
+        return connectStats;
+    }
+
+    /**
+     * @return {@link #IDLE}, {@link #CONNECTING}, {@link #CONNECTED} o {@link #CLOSING}
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * @return <code>true</code> mientras se intenta recuperar el enlace
+     */
+    public boolean isReconnecting() {
+        return state.get() == CONNECTING && everConnected;
+    }
+
+    @Override
+    public boolean write(byte[] buffer) {
+        return write(buffer, 0, buffer.length, null);
+    }
+
+    /**
+     * Encola bytes para enviarlos. Se copian, así que el arreglo puede
+     * reutilizarse. Mientras se conecta o reconecta los bytes esperan en la cola.
+     *
+     * @param callback recibe la confirmación de escritura o el error; puede ser null
+     * @return <code>false</code> si la conexión está cerrada o la cola de salida
+     * está llena. Si se cierra justo mientras se encola regresa <code>true</code>
+     * y el callback recibe el error, como cualquier mensaje pendiente.
+     * @throws IllegalArgumentException si el mensaje es más grande que la cola
+     * ({@link WritePipeline#getCapacity()})
+     */
+    @Override
+    public boolean write(byte[] buffer, int offset, int length, WritePipeline.WriteCallback callback) {
+        if (!isOpen(state.get())) return false;
+        if (!writePipeline.offer(buffer, offset, length, callback)) return false;
+        if (!isOpen(state.get())) {
+            // close() vació la cola mientras se encolaba; no debe quedar nada pendiente
+            writePipeline.fail(CLOSED);
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> desde {@link #open()} hasta {@link #close()},
+     * también mientras se conecta o reconecta
+     */
+    @Override
+    public boolean isConnected() {
+        return isOpen(state.get());
+    }
+
+    public SerialTransport getTransport() {
+        return transport;
+    }
+
+    public DataDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public WritePipeline getWritePipeline() {
+        return writePipeline;
+    }
+
+    /**
+     * @param trafficTap observa lo que se lee y se escribe; null para quitarlo
+     */
+    public void setTrafficTap(TrafficTap trafficTap) {
+        this.trafficTap = trafficTap;
+        writePipeline.setTrafficTap(trafficTap);
+    }
+
+    @Override
+    public void setFanOutHub(FanOutHub hub) {
+        fanOutHub = hub;
+    }
+
+    /**
+     * Limita la escritura a lo que el dispositivo puede recibir y quita de lo
+     * leído sus créditos y XON/XOFF
+     *
+     * @param flowController null para escribir sin control de flujo
+     */
+    public void setFlowController(FlowController flowController) {
+        writePipeline.setFlowController(flowController);
+    }
+
+    public FlowController getFlowController() {
+        return writePipeline.getFlowController();
+    }
+
+    /**
+     * @param linkMetrics contadores del enlace; null para dejar de medir
+     */
+    public void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+        writePipeline.setLinkMetrics(linkMetrics);
+        dispatcher.setDispatchLag(linkMetrics != null ? linkMetrics.getDispatchLag() : null);
+    }
+
+    /**
+     * Cierra el transporte y avisa onDisconnected si la conexión llegó a establecerse
+     *
+     * @return <code>true</code> si la conexión estaba abierta y se cerró
+     * <code>false</code> si ya estaba cerrada
+     */
+    @Override
+    public boolean close() {
+        return shutdown(null);
+    }
+
+    private static boolean isOpen(int state) {
+        return state == CONNECTING || state == CONNECTED;
+    }
+
+    /**
+     * Única salida de los estados abiertos. Solo el hilo que gana la
+     * transición a {@link #CLOSING} libera los recursos y avisa.
+     *
+     * @param error se avisa con onError antes de onDisconnected; puede ser null
+     */
+    private boolean shutdown(Exception error) {
+        int current;
+        do {
+            current = state.get();
+            if (!isOpen(current)) return false;
+        } while (!state.compareAndSet(current, CLOSING));
+        writePipeline.fail(CLOSED);
+        closeTransport();
+        link = null;
+        boolean notifyDisconnect = everConnected;
+        state.set(IDLE);
+        if (error != null) {
+            error.printStackTrace();
+            callErrorEvent(error);
+        }
+        if (notifyDisconnect) callDisconnectedEvent();
+        return true;
+    }
+
+    /**
+     * Abre el transporte; se llama en el ejecutor de apertura
+     *
+     * @param opened  sesión que pidió la apertura
+     * @param attempt 0 para la apertura inicial, o el número de intento de reconexión
+     */
+    private void connectTransport(int opened, int attempt) {
+        if (opened != session || state.get() != CONNECTING) return;
+        connectStats.onAttempt();
+        long start = System.nanoTime();
+        Link fresh;
+        try {
+            transport.open();
+            fresh = new Link(transport.getInputStream(), transport.getOutputStream());
+        } catch (IOException e) {
+            connectStats.onFailure();
+            if (attempt == 0)
+                lostAt = System.nanoTime();
+            retryOrClose(opened, attempt, e);
+            return;
+        }
+        connectStats.onConnect(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        // los flujos se publican antes de anunciar CONNECTED
+        link = fresh;
+        FlowController flow = writePipeline.getFlowController();
+        if (flow != null) flow.reset(System.nanoTime());
+        writePipeline.setOutputStream(fresh.out);
+        if (opened != session || !state.compareAndSet(CONNECTING, CONNECTED)) {
+            // close() ganó mientras se abría el transporte; shutdown() ya
+            // soltó los flujos, no hay que dejar publicados los de este enlace
+            if (link == fresh) {
+                link = null;
+                writePipeline.setOutputStream(null);
+            }
+            writePipeline.fail(CLOSED);
+            closeTransport();
+            return;
+        }
+        if (!everConnected) {
+            everConnected = true;
+            callConnectedEvent();
+        } else {
+            connectStats.onReconnect(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt));
+            LinkMetrics metrics = linkMetrics;
+            if (metrics != null) metrics.onReconnect();
+            callReconnectedEvent();
+        }
+        readExecutor.execute(readRunnable);
+    }
+
+    /**
+     * Se perdió el enlace. Sin política de reconexión la conexión se cierra;
+     * con ella se suelta el transporte y se agenda el primer intento.
+     *
+     * @param failed flujos que fallaron; si ya no son los actuales no se hace nada
+     * @param notify avisar onError si la conexión se cierra
+     */
+    private void connectionLost(Link failed, IOException e, boolean notify) {
+        if (failed != link) return;
+        LinkMetrics metrics = linkMetrics;
+        if (metrics != null) metrics.onConnectionLost();
+        if (reconnectPolicy == null) {
+            shutdown(notify ? e : null);
+            return;
+        }
+        if (!state.compareAndSet(CONNECTED, CONNECTING)) return;
+        lostAt = System.nanoTime();
+        writePipeline.setOutputStream(null);
+        closeTransport();
+        retryOrClose(session, 0, e);
+    }
+
+    private void retryOrClose(final int opened, int attempt, IOException e) {
+        ReconnectPolicy policy = reconnectPolicy;
+        final int next = attempt + 1;
+        if (policy == null || !policy.allows(next)) {
+            shutdown(e);
+            return;
+        }
+        long delay = policy.getDelay(next);
+        callReconnectingEvent(next, delay);
+        connectExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connectTransport(opened, next);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void closeTransport() {
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void deliver(ReadBufferPool.ReadBuffer buffer, int readBytes) {
+        TrafficTap tap = trafficTap;
+        if (tap != null && readBytes > 0) tap.onReceived(buffer.data, 0, readBytes);
+        LinkMetrics metrics = linkMetrics;
+        if (metrics != null && readBytes > 0) metrics.onRead(readBytes);
+        // la grabación conserva los bytes de control; el hub y el listener solo ven datos
+        FlowController flow = writePipeline.getFlowController();
+        if (flow != null && readBytes > 0) readBytes = flow.onReceived(buffer.data, 0, readBytes);
+        FanOutHub hub = fanOutHub;
+        if (hub != null && readBytes > 0) hub.publish(buffer.data, 0, readBytes);
+        dispatcher.dispatch(buffer, readBytes);
+    }
+
+    private void callConnectedEvent() {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onConnected();
+            }
+        });
+    }
+
+    private void callDisconnectedEvent() {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDisconnected();
+            }
+        });
+    }
+
+    private void callReconnectingEvent(final int attempt, final long delayMillis) {
+        final ReconnectListener listener = reconnectListener;
+        if (listener == null) return;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onReconnecting(attempt, delayMillis);
+            }
+        });
+    }
+
+    private void callReconnectedEvent() {
+        final ReconnectListener listener = reconnectListener;
+        if (listener == null) return;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onReconnected(connectStats);
+            }
+        });
+    }
+
+    private void callErrorEvent(final Exception e) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Ciclo de lectura de larga duración. Ocupa el hilo de lectura mientras
+     * los flujos con los que empezó sigan vigentes y reutiliza los buffers de
+     * {@link #dispatcher}.
+     */
+    private Runnable readRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Link reading = link;
+            if (reading == null) return;
+            try {
+                while (state.get() == CONNECTED && reading == link) {
+                    ReadBufferPool.ReadBuffer buffer = dispatcher.obtain();
+                    int readBytes;
+                    try {
+                        readBytes = reading.in.read(buffer.data);
+                    } catch (IOException e) {
+                        dispatcher.recycle(buffer);
+                        throw e;
+                    }
+                    if (readBytes < 0) {
+                        dispatcher.recycle(buffer);
+                        throw new IOException("End of stream");
+                    }
+                    deliver(buffer, readBytes);
+                }
+            } catch (InterruptedException e) {
+                close();
+            } catch (IOException e) {
+                connectionLost(reading, e, false);
+            } catch (Exception e) {
+                shutdown(e);
+            }
+        }
+    };
+}
@@ -0,0 +1,232 @@
+package com.adlrg.bluetooth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mantiene varias conexiones independientes, cada una con su transporte,
+ * sus flujos y su listener, identificadas por una clave (la dirección MAC en
+ * bluetooth). Todas comparten un pool de escritura pequeño. Cada conexión
+ * abierta ocupa un hilo de lectura bloqueado en su flujo, así que no consume
+ * CPU mientras no llegan datos y nota enseguida un cierre del otro extremo;
+ * los hilos se reutilizan entre conexiones y terminan tras un minuto sin uso.
+ * <p>
+ * Las aperturas del transporte, que bloquean hasta que el dispositivo
+ * responde, y las demás tareas de fondo van a un pool propio
+ * ({@link #getScheduler()}), así que una conexión lenta no frena las
+ * escrituras de las que ya están abiertas.
+ */
+public class SerialConnectionManager {
+
+    public static final int DEFAULT_WRITE_THREADS = 2;
+    public static final int DEFAULT_BACKGROUND_THREADS = 2;
+
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor readExecutor;
+    private final ScheduledThreadPoolExecutor writeExecutor;
+    private final ScheduledThreadPoolExecutor backgroundExecutor;
+    private final Map<String, SerialConnection> connections = new ConcurrentHashMap<String, SerialConnection>();
+    private volatile TrafficTap trafficTap;
+    private volatile LinkMetrics linkMetrics;
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile FlowController.Mode flowMode;
+    private volatile int flowWindow = FlowController.DEFAULT_WINDOW;
+
+    public SerialConnectionManager(Executor callbackExecutor) {
+        this(callbackExecutor, DEFAULT_WRITE_THREADS);
+    }
+
+    /**
+     * @param callbackExecutor donde se entregan los eventos de todas las conexiones
+     * @param writeThreads     hilos para escribir
+     */
+    public SerialConnectionManager(Executor callbackExecutor, int writeThreads) {
+        this.callbackExecutor = callbackExecutor;
+        readExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "serial-read-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        writeExecutor = new ScheduledThreadPoolExecutor(writeThreads);
+        backgroundExecutor = new ScheduledThreadPoolExecutor(DEFAULT_BACKGROUND_THREADS);
+    }
+
+    /**
+     * Abre una conexión con la configuración de entrega por defecto
+     *
+     * @see #open(String, SerialTransport, StreamingListener, DataDispatcher)
+     */
+    public SerialConnection open(String key, SerialTransport transport, StreamingListener listener) {
+        return open(key, transport, listener, new DataDispatcher(listener, callbackExecutor));
+    }
+
+    /**
+     * Abre una conexión nueva. Las demás conexiones no se tocan; solo si ya
+     * había una con la misma clave, esa se cierra primero.
+     *
+     * Si el listener también implementa {@link ReconnectListener} recibe los
+     * eventos de reconexión.
+     *
+     * @param key        identifica la conexión, por ejemplo la dirección del dispositivo
+     * @param dispatcher entrega de datos de esta conexión
+     */
+    public SerialConnection open(String key, SerialTransport transport, StreamingListener listener,
+                                 DataDispatcher dispatcher) {
+        SerialConnection connection = new SerialConnection(transport, listener, callbackExecutor,
+                readExecutor, writeExecutor, backgroundExecutor, dispatcher, new WritePipeline(writeExecutor));
+        connection.setTrafficTap(trafficTap);
+        connection.setLinkMetrics(linkMetrics);
+        connection.setReconnectPolicy(reconnectPolicy);
+        FlowController.Mode mode = flowMode;
+        if (mode != null) {
+            int window = flowWindow;
+            connection.setFlowController(new FlowController(mode, window,
+                    Math.min(FlowController.DEFAULT_CREDIT_UNIT, window), FlowController.DEFAULT_CREDIT_TIMEOUT));
+        }
+        if (listener instanceof ReconnectListener)
+            connection.setReconnectListener((ReconnectListener) listener);
+        SerialConnection previous = connections.put(key, connection);
+        if (previous != null)
+            previous.close();
+        connection.open();
+        return connection;
+    }
+
+    /**
+     * Política de reconexión para las conexiones que se abran después
+     *
+     * @param reconnectPolicy null para cerrar las conexiones al primer fallo
+     */
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * Control de flujo para las conexiones que se abran después; cada una
+     * tiene su propio {@link FlowController}, que se puede ajustar con
+     * {@link SerialConnection#getFlowController()}
+     *
+     * @param mode   null para escribir sin control de flujo
+     * @param window bytes del buffer de recepción del dispositivo
+     */
+    public void setFlowControl(FlowController.Mode mode, int window) {
+        flowWindow = window;
+        flowMode = mode;
+    }
+
+    /**
+     * Observa el tráfico de todas las conexiones, las abiertas y las siguientes
+     *
+     * @param trafficTap null para dejar de observar
+     */
+    public void setTrafficTap(TrafficTap trafficTap) {
+        this.trafficTap = trafficTap;
+        for (SerialConnection connection : connections.values())
+            connection.setTrafficTap(trafficTap);
+    }
+
+    /**
+     * Mide todas las conexiones, las abiertas y las siguientes, con los mismos contadores
+     *
+     * @param linkMetrics null para dejar de medir
+     */
+    public void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+        for (SerialConnection connection : connections.values())
+            connection.setLinkMetrics(linkMetrics);
+    }
+
+    /**
+     * @return fotografía de los contadores con la cola de escritura de las conexiones abiertas,
+     * o null si no se están midiendo
+     */
+    public LinkMetrics.Snapshot snapshotMetrics() {
+        LinkMetrics metrics = linkMetrics;
+        return metrics != null ? metrics.snapshot(getConnections()) : null;
+    }
+
+    /**
+     * @return la conexión abierta con esa clave o null
+     */
+    public SerialConnection get(String key) {
+        SerialConnection connection = connections.get(key);
+        return connection != null && connection.isConnected() ? connection : null;
+    }
+
+    /**
+     * @return las conexiones abiertas; las que se cerraron se olvidan
+     */
+    public List<SerialConnection> getConnections() {
+        List<SerialConnection> open = new ArrayList<SerialConnection>(connections.size());
+        Iterator<SerialConnection> iterator = connections.values().iterator();
+        while (iterator.hasNext()) {
+            SerialConnection connection = iterator.next();
+            if (connection.isConnected())
+                open.add(connection);
+            else
+                iterator.remove();
+        }
+        return open;
+    }
+
+    public int size() {
+        return getConnections().size();
+    }
+
+    /**
+     * @return <code>true</code> si había una conexión abierta con esa clave y se cerró
+     */
+    public boolean close(String key) {
+        SerialConnection connection = connections.remove(key);
+        return connection != null && connection.close();
+    }
+
+    public void closeAll() {
+        for (SerialConnection connection : connections.values())
+            connection.close();
+        connections.clear();
+    }
+
+    /**
+     * Cierra todas las conexiones y detiene los hilos compartidos
+     */
+    public void shutdown() {
+        closeAll();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+        backgroundExecutor.shutdownNow();
+    }
+
+    /**
+     * @return hilos bloqueados leyendo, uno por conexión establecida
+     */
+    public int getReadingThreads() {
+        return readExecutor.getActiveCount();
+    }
+
+    /**
+     * @return el pool de fondo donde se abren los transportes, para tareas
+     * que pueden bloquear, como leer la caché de dispositivos, y para tareas
+     * con retardo como los plazos de {@link RequestPipeline}. Nunca escribe.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return backgroundExecutor;
+    }
+}
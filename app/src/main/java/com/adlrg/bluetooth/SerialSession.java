@@ -0,0 +1,38 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Lo que un {@link BluetoothSerialClient.BluetoothStreamingHandler} necesita
+ * de una conexión abierta, sin importar si la atienden hilos bloqueantes
+ * ({@link SerialConnection}) o un selector ({@link NioConnection}).
+ */
+public interface SerialSession {
+
+    boolean write(byte[] buffer);
+
+    /**
+     * Encola bytes para enviarlos; se copian
+     *
+     * @param callback recibe la confirmación de escritura o el error; puede ser null
+     * @return <code>false</code> si la conexión está cerrada o la cola de salida está llena
+     */
+    boolean write(byte[] buffer, int offset, int length, WritePipeline.WriteCallback callback);
+
+    /**
+     * @return <code>true</code> si estaba abierta y se cerró
+     */
+    boolean close();
+
+    /**
+     * @return <code>true</code> desde que se abre hasta que se cierra
+     */
+    boolean isConnected();
+
+    ConnectStats getConnectStats();
+
+    /**
+     * Publica lo recibido en el hub desde el hilo lector, antes de entregarlo al handler
+     *
+     * @param hub null para dejar de publicar
+     */
+    void setFanOutHub(FanOutHub hub);
+}
@@ -0,0 +1,35 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Medio sobre el que viaja una conexión serial. Permite cambiar el socket
+ * bluetooth por un socket TCP o por tuberías en memoria sin tocar las rutas
+ * de lectura y escritura de {@link SerialConnection}.
+ */
+public interface SerialTransport {
+
+    /**
+     * Abre la conexión. La llamada es bloqueante y se ejecuta fuera del hilo principal.
+     *
+     * @throws IOException si no se pudo establecer la conexión
+     */
+    void open() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Cierra la conexión. Las lecturas bloqueadas deben terminar con una
+     * excepción o con fin de flujo.
+     */
+    void close() throws IOException;
+
+    /**
+     * @return un nombre legible del otro extremo, útil para registros
+     */
+    String getName();
+}
@@ -0,0 +1,98 @@
+package com.adlrg.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lee una grabación hecha con {@link SessionRecorder}, registro por registro.
+ * Los datos de cada registro se copian a un arreglo que se reutiliza.
+ */
+public class SessionReader {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final long startTimeMillis;
+    private byte[] payload = new byte[256];
+
+    private byte type;
+    private long timeMicros;
+    private int length;
+
+    public SessionReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        if (buffer.remaining() < SessionRecorder.HEADER_SIZE || buffer.getInt() != SessionRecorder.MAGIC) {
+            file.close();
+            throw new IOException("Not a session recording: " + path);
+        }
+        buffer.getInt();
+        startTimeMillis = buffer.getLong();
+    }
+
+    /**
+     * Avanza al siguiente registro
+     *
+     * @return <code>false</code> al llegar al final
+     */
+    public boolean next() throws IOException {
+        if (!buffer.hasRemaining()) return false;
+        type = buffer.get();
+        if (type == 0) return false;
+        timeMicros += getVarint();
+        length = (int) getVarint();
+        if (length > buffer.remaining())
+            throw new IOException("Truncated record");
+        if (payload.length < length)
+            payload = new byte[Math.max(length, payload.length * 2)];
+        buffer.get(payload, 0, length);
+        return true;
+    }
+
+    /**
+     * @return {@link SessionRecorder#RECEIVED} o {@link SessionRecorder#SENT}
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * @return microsegundos desde el inicio de la grabación
+     */
+    public long getTimeMicros() {
+        return timeMicros;
+    }
+
+    /**
+     * @return los datos del registro actual; válidos hasta el siguiente {@link #next()}
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long getVarint() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
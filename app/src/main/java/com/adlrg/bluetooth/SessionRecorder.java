@@ -0,0 +1,121 @@
+package com.adlrg.bluetooth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Graba el tráfico de una conexión en un archivo mapeado en memoria, solo
+ * agregando al final. Formato:
+ * <pre>
+ *   cabecera: magic (4) | reservado (4) | inicio en ms desde epoch (8)
+ *   registro: tipo (1) | µs desde el registro anterior (varint) | longitud (varint) | datos
+ * </pre>
+ * Un byte de tipo 0 marca el final. El archivo se mapea por segmentos, así que
+ * grabar no pasa por llamadas al sistema salvo al abrir un segmento nuevo.
+ */
+public class SessionRecorder implements TrafficTap {
+
+    public static final int MAGIC = 0x4D445231;
+    public static final int HEADER_SIZE = 16;
+    public static final byte RECEIVED = 1;
+    public static final byte SENT = 2;
+
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10 + 5;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long startNanos;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private long lastMicros;
+    private long records;
+    private long closedSize;
+    private boolean closed;
+
+    public SessionRecorder(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        startNanos = System.nanoTime();
+        map(0, SEGMENT_SIZE);
+        segment.putInt(MAGIC);
+        segment.putInt(0);
+        segment.putLong(System.currentTimeMillis());
+    }
+
+    @Override
+    public void onReceived(byte[] buffer, int offset, int length) {
+        record(RECEIVED, buffer, offset, length);
+    }
+
+    @Override
+    public void onSent(byte[] buffer, int offset, int length) {
+        record(SENT, buffer, offset, length);
+    }
+
+    public synchronized void record(byte type, byte[] buffer, int offset, int length) {
+        if (closed) return;
+        long micros = (System.nanoTime() - startNanos) / 1000;
+        try {
+            if (segment.remaining() < MAX_RECORD_OVERHEAD + length + 1)
+                map(segmentStart + segment.position(), Math.max(SEGMENT_SIZE, MAX_RECORD_OVERHEAD + length + 1));
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+            return;
+        }
+        segment.put(type);
+        putVarint(micros - lastMicros);
+        putVarint(length);
+        segment.put(buffer, offset, length);
+        lastMicros = micros;
+        records++;
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return bytes grabados incluida la cabecera
+     */
+    public synchronized long getSize() {
+        return closed ? closedSize : segmentStart + segment.position();
+    }
+
+    /**
+     * Deja el archivo del tamaño exacto de lo grabado y lo cierra
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            closedSize = segmentStart + segment.position();
+            segment.force();
+            segment = null;
+            channel.truncate(closedSize);
+            channel.close();
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void map(long start, int size) throws IOException {
+        if (segment != null) segment.force();
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        segmentStart = start;
+    }
+
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            segment.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        segment.put((byte) value);
+    }
+}
@@ -0,0 +1,65 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transporte no bloqueante sobre un {@link SocketChannel}, para un puente
+ * TCP-serial o un emulador del Arduino.
+ */
+public class SocketChannelTransport implements ChannelTransport {
+
+    private final String host;
+    private final int port;
+    private SocketChannel channel;
+
+    public SocketChannelTransport(int port) {
+        this(TcpLoopbackTransport.LOOPBACK_HOST, port);
+    }
+
+    public SocketChannelTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public boolean open() throws IOException {
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            return channel.connect(new InetSocketAddress(host, port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean finishOpen() throws IOException {
+        return channel.finishConnect();
+    }
+
+    @Override
+    public SelectableChannel getReadChannel() {
+        return channel;
+    }
+
+    @Override
+    public SelectableChannel getWriteChannel() {
+        return channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,19 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Eventos de una {@link SerialConnection}. No depende de Android, por lo que
+ * puede implementarse en pruebas que corren en una JVM normal.
+ */
+public interface StreamingListener {
+    void onError(Exception e);
+
+    void onConnected();
+
+    void onDisconnected();
+
+    /**
+     * Recibe los bytes leídos. El arreglo se reutiliza al regresar de este
+     * método, así que quien necesite conservar los datos debe copiarlos.
+     */
+    void onData(byte[] buffer, int length);
+}
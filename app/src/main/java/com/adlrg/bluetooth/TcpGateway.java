@@ -0,0 +1,156 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Comparte por TCP lo que recibe un {@link FanOutHub}: cada cliente que se
+ * conecta es un suscriptor más y recibe los bytes tal como llegan del
+ * dispositivo. Se escribe al socket directamente desde el anillo del hub,
+ * sin copias por cliente. Un cliente que no lee a tiempo se desconecta; lo
+ * que los clientes envían se ignora.
+ */
+public class TcpGateway {
+
+    public static final int DEFAULT_PORT = 5555;
+    public static final int MAX_CLIENTS = 8;
+
+    private final FanOutHub hub;
+    private final ServerSocket server;
+    private final Thread acceptThread;
+    private final CopyOnWriteArrayList<Client> clients = new CopyOnWriteArrayList<Client>();
+    private volatile boolean running = true;
+
+    /**
+     * Escucha solo en la interfaz local
+     */
+    public TcpGateway(FanOutHub hub, int port) throws IOException {
+        this(hub, new InetSocketAddress(InetAddress.getByName(null), port));
+    }
+
+    /**
+     * @param address puerto 0 elige uno libre
+     */
+    public TcpGateway(FanOutHub hub, InetSocketAddress address) throws IOException {
+        this.hub = hub;
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "tcp-gateway");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Deja de aceptar clientes y desconecta a los que hay
+     */
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // cerrar el socket destraba al hilo si está bloqueado escribiendo
+        for (Client client : clients) {
+            if (client.subscription != null) client.subscription.close();
+            closeQuietly(client.socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (running) e.printStackTrace();
+                return;
+            }
+            if (clients.size() >= MAX_CLIENTS) {
+                closeQuietly(socket);
+                continue;
+            }
+            try {
+                subscribe(socket);
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static final class Client {
+        final Socket socket;
+        volatile FanOutHub.Subscription subscription;
+
+        Client(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    private void subscribe(final Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.shutdownInput();
+        final OutputStream out = socket.getOutputStream();
+        // un hilo por cliente: la escritura al socket puede bloquear sin frenar a los demás
+        final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tcp-gateway-" + socket.getPort());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final Client client = new Client(socket);
+        clients.add(client);
+        client.subscription = hub.subscribe(new FanOutHub.Sink() {
+            @Override
+            public void onData(byte[] buffer, int offset, int length) throws IOException {
+                out.write(buffer, offset, length);
+            }
+
+            @Override
+            public void onSkipped(long bytes) {
+            }
+
+            @Override
+            public void onClosed() {
+                clients.remove(client);
+                closeQuietly(socket);
+                writer.shutdown();
+            }
+        }, writer, FanOutHub.Overflow.DROP);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (SocketException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transporte sobre un socket TCP. Sirve para hablar con un puente TCP-serial,
+ * con un emulador del Arduino o con un servidor de eco en la misma máquina.
+ */
+public class TcpLoopbackTransport implements SerialTransport {
+
+    public static final String LOOPBACK_HOST = "127.0.0.1";
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private Socket socket;
+
+    public TcpLoopbackTransport(int port) {
+        this(LOOPBACK_HOST, port);
+    }
+
+    public TcpLoopbackTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null)
+            socket.close();
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+}
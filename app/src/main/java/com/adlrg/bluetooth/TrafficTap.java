@@ -0,0 +1,12 @@
+package com.adlrg.bluetooth;
+
+/**
+ * Observa los bytes que pasan por una {@link SerialConnection}. Se llama en
+ * el hilo de lectura o de escritura, así que debe ser rápido y no quedarse
+ * con los arreglos.
+ */
+public interface TrafficTap {
+    void onReceived(byte[] buffer, int offset, int length);
+
+    void onSent(byte[] buffer, int offset, int length);
+}
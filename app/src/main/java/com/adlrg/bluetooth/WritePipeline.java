@@ -0,0 +1,459 @@
+package com.adlrg.bluetooth;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cola de salida de una conexión. Los mensajes se copian a un anillo de bytes
+ * acotado y se escriben juntos, en bloques de hasta {@code batchSize} bytes,
+ * con una sola llamada a {@link OutputStream#write}. El primer mensaje espera
+ * hasta {@code lingerMillis} para dar oportunidad a que lleguen más, salvo que
+ * ya se haya juntado un bloque completo.
+ * <p>
+ * Cuando el anillo está lleno {@link #offer} regresa <code>false</code> y se
+ * avisa al {@link BackpressureListener}; la cola nunca crece. Un mensaje más
+ * grande que el anillo no cabría nunca y se rechaza con una excepción.
+ * <p>
+ * Si una escritura falla, los mensajes que estaban en ese bloque se descartan
+ * y reciben el error aunque parte de sus bytes haya llegado: el dispositivo
+ * los recibe a lo sumo una vez. Lo que seguía en la cola se escribe en el
+ * siguiente enlace.
+ * <p>
+ * Con un {@link FlowController} cada escritura se limita a lo que el
+ * dispositivo puede recibir; mientras tanto lo pendiente espera en el anillo
+ * y se sigue escribiendo cuando llega un crédito, un XON o se cumple el ritmo.
+ */
+public class WritePipeline {
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    public static final int DEFAULT_MAX_MESSAGES = 256;
+    public static final int DEFAULT_BATCH_SIZE = 512;
+    public static final long DEFAULT_LINGER = 2;
+
+    public interface WriteCallback {
+        /**
+         * El mensaje se escribió completo en el flujo de salida. Se llama en el hilo de escritura.
+         */
+        void onComplete();
+
+        void onError(Exception e);
+    }
+
+    public interface BackpressureListener {
+        void onQueueFull(int pendingBytes, int pendingMessages);
+    }
+
+    interface ErrorListener {
+        /**
+         * @param out flujo en el que falló la escritura
+         */
+        void onWriteError(OutputStream out, IOException e);
+    }
+
+    private final ScheduledExecutorService executor;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final Object lock = new Object();
+
+    private final byte[] ring;
+    private int head;
+    private int count;
+
+    private final int[] messageLength;
+    private final WriteCallback[] messageCallback;
+    private int messageHead;
+    private int messageCount;
+
+    private boolean scheduled;
+    private boolean running;
+    private boolean flowBlocked;
+    /** llegó un crédito o XON mientras se escribía */
+    private boolean resumePending;
+    private OutputStream os;
+
+    private ErrorListener errorListener;
+    private BackpressureListener backpressureListener;
+    private volatile TrafficTap trafficTap;
+    private volatile LinkMetrics linkMetrics;
+    private volatile FlowController flowController;
+
+    private long bytesWritten;
+    private long writes;
+    private long messages;
+    private long rejected;
+
+    public WritePipeline(ScheduledExecutorService executor) {
+        this(executor, DEFAULT_CAPACITY, DEFAULT_MAX_MESSAGES, DEFAULT_BATCH_SIZE, DEFAULT_LINGER);
+    }
+
+    /**
+     * @param executor     hilo donde se hacen las escrituras
+     * @param capacity     bytes que caben en la cola
+     * @param maxMessages  mensajes que caben en la cola
+     * @param batchSize    bytes máximos por escritura
+     * @param lingerMillis espera máxima antes de escribir un bloque incompleto
+     */
+    public WritePipeline(ScheduledExecutorService executor, int capacity, int maxMessages,
+                         int batchSize, long lingerMillis) {
+        this.executor = executor;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        ring = new byte[capacity];
+        messageLength = new int[maxMessages];
+        messageCallback = new WriteCallback[maxMessages];
+    }
+
+    public void setBackpressureListener(BackpressureListener backpressureListener) {
+        this.backpressureListener = backpressureListener;
+    }
+
+    void setErrorListener(ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    void setTrafficTap(TrafficTap trafficTap) {
+        this.trafficTap = trafficTap;
+    }
+
+    void setLinkMetrics(LinkMetrics linkMetrics) {
+        this.linkMetrics = linkMetrics;
+    }
+
+    /**
+     * @param flowController null para escribir todo lo que acepte el flujo
+     */
+    void setFlowController(FlowController flowController) {
+        FlowController previous = this.flowController;
+        if (previous != null) previous.setResumeListener(null);
+        this.flowController = flowController;
+        if (flowController != null) flowController.setResumeListener(resumeRunnable);
+        resume();
+    }
+
+    FlowController getFlowController() {
+        return flowController;
+    }
+
+    /**
+     * Define el flujo destino y escribe lo que se haya encolado mientras no
+     * había uno. Con null la cola sigue aceptando mensajes hasta llenarse,
+     * pero no escribe nada.
+     */
+    void setOutputStream(OutputStream os) {
+        boolean schedule;
+        synchronized (lock) {
+            this.os = os;
+            if (os != null && flowBlocked) {
+                // la espera era del flujo anterior
+                flowBlocked = false;
+                scheduled = false;
+            }
+            schedule = os != null && count > 0 && !scheduled;
+            if (schedule) scheduled = true;
+        }
+        if (schedule) executor.execute(drainRunnable);
+    }
+
+    /**
+     * Encola un mensaje. Los bytes se copian, así que el arreglo puede reutilizarse.
+     *
+     * @param callback se avisa cuando el mensaje se escribió o falló; puede ser null
+     * @return <code>false</code> si la cola está llena
+     * @throws IllegalArgumentException si el mensaje es más grande que la cola
+     */
+    public boolean offer(byte[] data, int offset, int length, WriteCallback callback) {
+        if (length > ring.length)
+            throw new IllegalArgumentException("Message of " + length + " bytes > " + ring.length);
+        long delay = -1;
+        boolean accepted;
+        int pendingBytes;
+        int pendingMessages;
+        synchronized (lock) {
+            accepted = length > 0 && length <= ring.length - count && messageCount < messageLength.length;
+            pendingBytes = count;
+            pendingMessages = messageCount;
+            if (accepted) {
+                int tail = (head + count) % ring.length;
+                int first = Math.min(length, ring.length - tail);
+                System.arraycopy(data, offset, ring, tail, first);
+                System.arraycopy(data, offset + first, ring, 0, length - first);
+                count += length;
+                int slot = (messageHead + messageCount) % messageLength.length;
+                messageLength[slot] = length;
+                messageCallback[slot] = callback;
+                messageCount++;
+                if (os != null && !scheduled) {
+                    scheduled = true;
+                    delay = count >= batchSize ? 0 : lingerMillis;
+                } else if (os != null && !running && !flowBlocked && count >= batchSize) {
+                    delay = 0;
+                }
+            } else if (length > 0) {
+                rejected++;
+            }
+        }
+        if (length == 0) {
+            if (callback != null) callback.onComplete();
+            return true;
+        }
+        if (!accepted) {
+            BackpressureListener listener = backpressureListener;
+            if (listener != null) listener.onQueueFull(pendingBytes, pendingMessages);
+            return false;
+        }
+        LinkMetrics metrics = linkMetrics;
+        if (metrics != null) metrics.onQueued(pendingBytes + length);
+        if (delay == 0)
+            executor.execute(drainRunnable);
+        else if (delay > 0)
+            executor.schedule(drainRunnable, delay, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Suelta el flujo, descarta todo lo pendiente y avisa el error a cada mensaje
+     */
+    void fail(Exception e) {
+        synchronized (lock) {
+            os = null;
+        }
+        while (true) {
+            WriteCallback callback;
+            synchronized (lock) {
+                if (messageCount == 0) {
+                    head = 0;
+                    count = 0;
+                    return;
+                }
+                callback = messageCallback[messageHead];
+                messageCallback[messageHead] = null;
+                messageHead = (messageHead + 1) % messageLength.length;
+                messageCount--;
+            }
+            if (callback != null) callback.onError(e);
+        }
+    }
+
+    /**
+     * @return bytes que caben en la cola; ningún mensaje puede ser más grande
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public int getPendingBytes() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    public int getPendingMessages() {
+        synchronized (lock) {
+            return messageCount;
+        }
+    }
+
+    public long getBytesWritten() {
+        synchronized (lock) {
+            return bytesWritten;
+        }
+    }
+
+    /**
+     * @return llamadas a {@link OutputStream#write}
+     */
+    public long getWrites() {
+        synchronized (lock) {
+            return writes;
+        }
+    }
+
+    public long getMessages() {
+        synchronized (lock) {
+            return messages;
+        }
+    }
+
+    /**
+     * @return mensajes rechazados por tener la cola llena
+     */
+    public long getRejected() {
+        synchronized (lock) {
+            return rejected;
+        }
+    }
+
+    private void drain() {
+        OutputStream out;
+        synchronized (lock) {
+            if (running) return;
+            out = os;
+            if (out == null) {
+                scheduled = false;
+                return;
+            }
+            running = true;
+        }
+        int inFlight = 0;
+        try {
+            while (true) {
+                int start;
+                int n;
+                synchronized (lock) {
+                    if (out != os) {
+                        // el flujo cambió mientras se escribía; se vuelve a empezar con el nuevo
+                        running = false;
+                        scheduled = os != null && count > 0;
+                        if (scheduled) executor.execute(drainRunnable);
+                        return;
+                    }
+                    if (count == 0) {
+                        running = false;
+                        scheduled = false;
+                        return;
+                    }
+                    start = head;
+                    n = Math.min(Math.min(count, batchSize), ring.length - head);
+                    resumePending = false;
+                }
+                FlowController flow = flowController;
+                if (flow != null) {
+                    long now = System.nanoTime();
+                    int allowed = flow.acquire(n, now);
+                    if (allowed == 0) {
+                        if (waitForFlow(flow.getWaitNanos(now))) return;
+                        continue;
+                    }
+                    n = allowed;
+                }
+                // la región [start, start + n) no se libera hasta terminar la escritura
+                inFlight = n;
+                out.write(ring, start, n);
+                inFlight = 0;
+                TrafficTap tap = trafficTap;
+                if (tap != null) tap.onSent(ring, start, n);
+                LinkMetrics metrics = linkMetrics;
+                if (metrics != null) metrics.onWrite(n);
+                synchronized (lock) {
+                    // si se llamó a fail() durante la escritura el anillo ya se vació
+                    if (out != os) continue;
+                    head = (head + n) % ring.length;
+                    count -= n;
+                    bytesWritten += n;
+                    writes++;
+                }
+                complete(n);
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                running = false;
+                scheduled = false;
+            }
+            if (inFlight > 0) failInFlight(out, inFlight, e);
+            ErrorListener listener = errorListener;
+            if (listener != null) listener.onWriteError(out, e);
+        }
+    }
+
+    /**
+     * Avisa a los mensajes que quedaron completamente escritos
+     */
+    private void complete(int written) {
+        while (written > 0) {
+            WriteCallback callback;
+            synchronized (lock) {
+                if (messageCount == 0) return;
+                int length = messageLength[messageHead];
+                if (length > written) {
+                    messageLength[messageHead] = length - written;
+                    return;
+                }
+                written -= length;
+                callback = messageCallback[messageHead];
+                messageCallback[messageHead] = null;
+                messageHead = (messageHead + 1) % messageLength.length;
+                messageCount--;
+                messages++;
+            }
+            LinkMetrics metrics = linkMetrics;
+            if (metrics != null) metrics.onFrameSent();
+            if (callback != null) callback.onComplete();
+        }
+    }
+
+    /**
+     * Descarta los mensajes del bloque que falló, completos aunque solo una
+     * parte estuviera en el bloque, para no repetir en el siguiente enlace
+     * bytes que el dispositivo ya pudo haber recibido
+     */
+    private void failInFlight(OutputStream out, int written, IOException e) {
+        while (written > 0) {
+            WriteCallback callback;
+            synchronized (lock) {
+                // si se llamó a fail() la cola ya se vació
+                if (out != os || messageCount == 0) return;
+                int length = messageLength[messageHead];
+                head = (head + length) % ring.length;
+                count -= length;
+                written -= length;
+                callback = messageCallback[messageHead];
+                messageCallback[messageHead] = null;
+                messageHead = (messageHead + 1) % messageLength.length;
+                messageCount--;
+            }
+            if (callback != null) callback.onError(e);
+        }
+    }
+
+    /**
+     * Suelta el hilo hasta que el control de flujo deje seguir
+     *
+     * @param waitNanos espera antes de reintentar, -1 para esperar un aviso
+     * @return <code>false</code> si el aviso llegó después de {@link FlowController#acquire}
+     * y hay que reintentar en lugar de esperar
+     */
+    private boolean waitForFlow(long waitNanos) {
+        synchronized (lock) {
+            if (resumePending) {
+                resumePending = false;
+                return false;
+            }
+            running = false;
+            flowBlocked = true;
+        }
+        if (waitNanos >= 0)
+            executor.schedule(resumeRunnable, waitNanos, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Vuelve a escribir si se estaba esperando al control de flujo
+     */
+    private void resume() {
+        synchronized (lock) {
+            if (!flowBlocked) {
+                // drain() lo ve antes de soltar el hilo
+                if (running) resumePending = true;
+                return;
+            }
+            flowBlocked = false;
+        }
+        executor.execute(drainRunnable);
+    }
+
+    private final Runnable resumeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            resume();
+        }
+    };
+
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+}
@@ -0,0 +1,51 @@
+package com.adlrg.morse;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.adlrg.bluetooth.DeviceRegistry;
+
+import adlrg.com.morse.R;
+
+/**
+ * Muestra un {@link DeviceRegistry} en un ListView. Los dispositivos
+ * conservan su posición al actualizarse, así que un escaneo solo vuelve a
+ * acomodar las vistas visibles.
+ */
+public class DeviceListAdapter extends BaseAdapter {
+
+    private final DeviceRegistry registry;
+    private final LayoutInflater inflater;
+
+    public DeviceListAdapter(LayoutInflater inflater, DeviceRegistry registry) {
+        this.inflater = inflater;
+        this.registry = registry;
+    }
+
+    @Override
+    public int getCount() {
+        return registry.size();
+    }
+
+    @Override
+    public DeviceRegistry.Entry getItem(int position) {
+        return registry.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null)
+            view = (TextView) inflater.inflate(R.layout.item_device, parent, false);
+        view.setText(registry.get(position).toString());
+        return view;
+    }
+}
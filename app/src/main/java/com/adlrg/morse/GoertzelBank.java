@@ -0,0 +1,168 @@
+package com.adlrg.morse;
+
+/**
+ * Banco de filtros Goertzel sobre audio PCM. Mide la amplitud de varias
+ * frecuencias equiespaciadas en bloques de {@code blockSize} muestras con
+ * ventana de Hann y pasa cada bloque a los {@link ToneChannel} agregados.
+ * <p>
+ * El estado de los filtros sigue de una llamada a otra, así que el audio se
+ * procesa en el arreglo del caller, en trozos de cualquier tamaño y sin
+ * copiarlo ni reservar memoria. No es seguro usarlo desde varios hilos.
+ */
+public class GoertzelBank {
+
+    public static final int DEFAULT_SAMPLE_RATE = 8000;
+    public static final int DEFAULT_BLOCK_SIZE = 80;
+    public static final float DEFAULT_MIN_HZ = 300;
+    public static final float DEFAULT_MAX_HZ = 1300;
+
+    private static final float SHORT_SCALE = 1f / 32768;
+
+    private final int sampleRate;
+    private final int blockSize;
+    private final float[] frequencies;
+    private final float[] coefficients;
+    private final float[] window;
+    private final float[] s1;
+    private final float[] s2;
+    private final float[] amplitudes;
+    private final float norm;
+    private ToneChannel[] channels = new ToneChannel[0];
+    private int filled;
+
+    /**
+     * 8000 Hz, bloques de 10 ms y un filtro cada 100 Hz entre 300 y 1300 Hz
+     */
+    public GoertzelBank() {
+        this(DEFAULT_SAMPLE_RATE, DEFAULT_BLOCK_SIZE, DEFAULT_MIN_HZ, DEFAULT_MAX_HZ);
+    }
+
+    /**
+     * Los filtros quedan separados por la resolución del bloque, {@code sampleRate / blockSize}
+     */
+    public GoertzelBank(int sampleRate, int blockSize, float minHz, float maxHz) {
+        if (blockSize <= 0 || minHz <= 0 || maxHz < minHz || maxHz >= sampleRate / 2f)
+            throw new IllegalArgumentException("invalid bank range");
+        this.sampleRate = sampleRate;
+        this.blockSize = blockSize;
+        float spacing = (float) sampleRate / blockSize;
+        int first = (int) Math.ceil(minHz / spacing);
+        int last = (int) Math.floor(maxHz / spacing);
+        int bins = Math.max(1, last - first + 1);
+        frequencies = new float[bins];
+        coefficients = new float[bins];
+        for (int b = 0; b < bins; b++) {
+            frequencies[b] = (first + b) * spacing;
+            coefficients[b] = (float) (2 * Math.cos(2 * Math.PI * frequencies[b] / sampleRate));
+        }
+        window = new float[blockSize];
+        float sum = 0;
+        for (int i = 0; i < blockSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / blockSize));
+            sum += window[i];
+        }
+        // una senoidal de amplitud 1 en un filtro da amplitud 1
+        norm = 2 / sum;
+        s1 = new float[bins];
+        s2 = new float[bins];
+        amplitudes = new float[bins];
+    }
+
+    /**
+     * Agrega un canal; sus frecuencias deben estar dentro del banco
+     */
+    public void addChannel(ToneChannel channel) {
+        ToneChannel[] grown = new ToneChannel[channels.length + 1];
+        System.arraycopy(channels, 0, grown, 0, channels.length);
+        grown[channels.length] = channel;
+        channels = grown;
+    }
+
+    /**
+     * Procesa muestras de 16 bits; un bloque puede quedar partido entre dos llamadas
+     */
+    public void process(short[] pcm, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(end - offset, blockSize - filled);
+            for (int b = 0; b < coefficients.length; b++) {
+                float c = coefficients[b];
+                float q1 = s1[b];
+                float q2 = s2[b];
+                for (int i = 0; i < n; i++) {
+                    float q0 = pcm[offset + i] * SHORT_SCALE * window[filled + i] + c * q1 - q2;
+                    q2 = q1;
+                    q1 = q0;
+                }
+                s1[b] = q1;
+                s2[b] = q2;
+            }
+            offset += n;
+            filled += n;
+            if (filled == blockSize) finishBlock();
+        }
+    }
+
+    /**
+     * Procesa muestras entre -1 y 1
+     */
+    public void process(float[] pcm, int offset, int length) {
+        int end = offset + length;
+        while (offset < end) {
+            int n = Math.min(end - offset, blockSize - filled);
+            for (int b = 0; b < coefficients.length; b++) {
+                float c = coefficients[b];
+                float q1 = s1[b];
+                float q2 = s2[b];
+                for (int i = 0; i < n; i++) {
+                    float q0 = pcm[offset + i] * window[filled + i] + c * q1 - q2;
+                    q2 = q1;
+                    q1 = q0;
+                }
+                s1[b] = q1;
+                s2[b] = q2;
+            }
+            offset += n;
+            filled += n;
+            if (filled == blockSize) finishBlock();
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBinCount() {
+        return frequencies.length;
+    }
+
+    public float getFrequency(int bin) {
+        return frequencies[bin];
+    }
+
+    /**
+     * @return el filtro más cercano a la frecuencia
+     */
+    public int binOf(float hz) {
+        int bin = Math.round((hz - frequencies[0]) * blockSize / sampleRate);
+        return Math.max(0, Math.min(frequencies.length - 1, bin));
+    }
+
+    private void finishBlock() {
+        for (int b = 0; b < coefficients.length; b++) {
+            float q1 = s1[b];
+            float q2 = s2[b];
+            float power = q1 * q1 + q2 * q2 - coefficients[b] * q1 * q2;
+            amplitudes[b] = (float) Math.sqrt(Math.max(0, power)) * norm;
+            s1[b] = 0;
+            s2[b] = 0;
+        }
+        filled = 0;
+        for (ToneChannel channel : channels)
+            channel.onBlock(amplitudes, blockSize);
+    }
+}
@@ -0,0 +1,66 @@
+package com.adlrg.morse;
+
+/**
+ * Formato en el cable de los paquetes de manipulación. El paquete empieza
+ * con {@link #FRAME_TYPE} y cada tramo (tecla abajo o arriba durante cierto
+ * tiempo) ocupa dos bytes:
+ * <pre>
+ *   110s dddd   10dd dddd   s = 1 tecla abajo, d = duración en ms (10 bits)
+ * </pre>
+ * Ningún byte vale 0, así que un paquete puede viajar por el protocolo de
+ * texto terminado en '\0' y el receptor se resincroniza con el siguiente
+ * byte de cabecera. Las cabeceras tienen la forma de un primer byte UTF-8 de
+ * dos bytes ("á", "ñ"), por eso un paquete se reconoce por
+ * {@link #FRAME_TYPE} y no por su primer tramo. Los tramos más largos que
+ * {@link #MAX_RUN_MILLIS} se parten en varios del mismo estado.
+ */
+public final class KeyingPacket {
+
+    /** SYN: un carácter de control con el que no empieza ningún texto */
+    public static final byte FRAME_TYPE = 0x16;
+    public static final int RUN_BYTES = 2;
+    public static final int MAX_RUN_MILLIS = 0x3FF;
+
+    private static final int HEAD_MASK = 0xE0;
+    private static final int HEAD = 0xC0;
+    private static final int KEY_DOWN = 0x10;
+    private static final int TAIL_MASK = 0xC0;
+    private static final int TAIL = 0x80;
+
+    private KeyingPacket() {
+    }
+
+    /**
+     * Escribe un tramo de como mucho {@link #MAX_RUN_MILLIS}
+     *
+     * @return bytes escritos
+     */
+    public static int writeRun(byte[] out, int offset, boolean keyDown, int millis) {
+        out[offset] = (byte) (HEAD | (keyDown ? KEY_DOWN : 0) | ((millis >> 6) & 0x0F));
+        out[offset + 1] = (byte) (TAIL | (millis & 0x3F));
+        return RUN_BYTES;
+    }
+
+    /**
+     * @param buffer un mensaje completo, sin el '\0' final
+     */
+    public static boolean isFrame(byte[] buffer, int offset, int length) {
+        return length > 0 && buffer[offset] == FRAME_TYPE;
+    }
+
+    public static boolean isHead(byte b) {
+        return (b & HEAD_MASK) == HEAD;
+    }
+
+    public static boolean isTail(byte b) {
+        return (b & TAIL_MASK) == TAIL;
+    }
+
+    public static boolean isKeyDown(byte head) {
+        return (head & KEY_DOWN) != 0;
+    }
+
+    public static int millis(byte head, byte tail) {
+        return ((head & 0x0F) << 6) | (tail & 0x3F);
+    }
+}
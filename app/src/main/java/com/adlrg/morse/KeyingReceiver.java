@@ -0,0 +1,62 @@
+package com.adlrg.morse;
+
+/**
+ * Separa los paquetes de manipulación de los mensajes de texto que llegan
+ * por el mismo protocolo terminado en '\0' y arma palabras con lo que
+ * decodifica el {@link MorseDecoder}.
+ * <p>
+ * {@link MorseEncoder} escribe los espacios antes del carácter siguiente, así
+ * que un paquete nunca termina con espacio: al final de cada paquete se da
+ * por terminado el carácter y la palabra en curso para no esperar al
+ * siguiente envío. No es seguro usar la misma instancia desde varios hilos.
+ */
+public class KeyingReceiver {
+
+    public interface Listener {
+        /**
+         * @param wpm velocidad estimada al terminar la palabra
+         */
+        void onWord(String word, int wpm);
+    }
+
+    private final Listener listener;
+    private final MorseDecoder decoder;
+    private final StringBuilder word = new StringBuilder();
+
+    public KeyingReceiver(int wpm, Listener listener) {
+        this.listener = listener;
+        decoder = new MorseDecoder(wpm, new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(char c) {
+                if (c != ' ')
+                    word.append(c);
+                else
+                    endWord();
+            }
+        });
+    }
+
+    /**
+     * @param buffer un mensaje completo, sin el '\0' final
+     * @return <code>false</code> si el mensaje es texto y no se procesó
+     */
+    public boolean onFrame(byte[] buffer, int offset, int length) {
+        if (!KeyingPacket.isFrame(buffer, offset, length)) return false;
+        decoder.feed(buffer, offset + 1, length - 1);
+        decoder.flush();
+        endWord();
+        return true;
+    }
+
+    public void reset() {
+        decoder.reset();
+        word.setLength(0);
+    }
+
+    private void endWord() {
+        if (word.length() == 0) return;
+        String text = word.toString();
+        word.setLength(0);
+        listener.onWord(text, decoder.getWpm());
+    }
+}
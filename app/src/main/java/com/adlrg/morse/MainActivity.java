@@ -1,86 +1,160 @@
 package com.adlrg.morse;
 
+import android.Manifest;
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.Toolbar;
-import android.text.method.ScrollingMovementMethod;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.nio.ByteBuffer;
-import java.util.LinkedList;
-import java.util.Set;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import com.adlrg.bluetooth.BluetoothSerialClient;
 import com.adlrg.bluetooth.BluetoothSerialClient.BluetoothStreamingHandler;
 import com.adlrg.bluetooth.BluetoothSerialClient.BluetoothUpListener;
+import com.adlrg.bluetooth.BluetoothSerialClient.DevicesListener;
 import com.adlrg.bluetooth.BluetoothSerialClient.ScanListener;
+import com.adlrg.bluetooth.ConnectStats;
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.DeviceRegistry;
+import com.adlrg.bluetooth.FanOutHub;
+import com.adlrg.bluetooth.FlowController;
+import com.adlrg.bluetooth.FrameDecoder;
+import com.adlrg.bluetooth.LinkMetrics;
+import com.adlrg.bluetooth.SessionRecorder;
+import com.adlrg.bluetooth.TcpGateway;
+import com.adlrg.bluetooth.WritePipeline;
 
 import adlrg.com.morse.R;
 
 public class MainActivity extends AppCompatActivity {
 
-    private LinkedList<BluetoothDevice> btDevices = new LinkedList<BluetoothDevice>();
-    private ArrayAdapter<String> deviceArrayAdapter;
+    private static final int MAX_FRAME_SIZE = 4096;
+    private static final int MORSE_WPM = 20;
+    private static final int TERMINAL_LINES = 2000;
+    private static final long FRAME_MILLIS = 16;
+    private static final long METRICS_MILLIS = 1000;
+    private static final int HISTORY_PAGE = 100;
+    private static final int REQUEST_RECORD_AUDIO = 1;
+    private static final float AUDIO_MIN_HZ = 400;
+    private static final float AUDIO_MAX_HZ = 1000;
+    private static final String TRACE_TAG = "StartupTrace";
+
+    // desde que se crea la actividad y desde cada onResume
+    private final StartupTrace startupTrace = new StartupTrace();
+    private StartupTrace resumeTrace;
+
+    private DeviceListAdapter deviceListAdapter;
+    private boolean deviceRefreshPending;
 
     private EditText editText;
-    private TextView textView;
+    private ListView terminalView;
+    private TerminalBuffer terminalBuffer = new TerminalBuffer(TERMINAL_LINES);
+    private TerminalAdapter terminalAdapter;
+    private boolean terminalRefreshPending;
+    private MessageStore messageStore;
+    private long historyFirst = MessageStore.LATEST;
+    private boolean historyLoading;
     private Button btnSend;
+    private TextView metricsView;
     private ProgressDialog pgdLoading;
     private AlertDialog deviceListDialog;
     private Menu menu;
 
     private BluetoothSerialClient client;
+    private boolean morseMode;
+    private boolean flowControl;
+    private SessionRecorder recorder;
+    private TcpGateway gateway;
+    private MorseEncoder morseEncoder = new MorseEncoder(new MorseTiming(MORSE_WPM));
+    private Sidetone sidetone;
+    private MicrophoneSource microphone;
+    // los usa el hilo del micrófono
+    private ToneChannel audioChannel;
+    private MorseDecoder audioDecoder;
+    private StringBuilder audioWord = new StringBuilder();
+    private byte[] morsePacket = new byte[WritePipeline.DEFAULT_BATCH_SIZE];
+    private KeyingReceiver keyingReceiver = new KeyingReceiver(MORSE_WPM, new KeyingReceiver.Listener() {
+        @Override
+        public void onWord(String word, int wpm) {
+            addText(deviceName() + " (Morse " + wpm + " ppm) : " + word + '\n');
+        }
+    });
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_main);
-        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
-        setSupportActionBar(toolbar);
         client = BluetoothSerialClient.getInstance();
 
         if (client == null) {
             Toast.makeText(getApplicationContext(), "No se puede utilizar el dispositivo bluetooth.", Toast.LENGTH_SHORT).show();
             finish();
+            return;
+        } else {
+            client.setDataDelivery(true, DataDispatcher.FRAME_INTERVAL, false);
+            // la caché, los emparejados y la reconexión avanzan mientras se arma la pantalla
+            client.loadDevices(this, savedInstanceState == null ? btHandler : null, devicesListener);
         }
-        initProgressDialog();
-        initDeviceListDialog();
+        setContentView(R.layout.activity_main);
+        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
         initWidget();
+        messageStore = MessageStore.getInstance(new File(getFilesDir(), "historial"));
+        loadHistory();
+        trace(StartupTrace.CONTENT);
+    }
+
+    /**
+     * Los diálogos se crean la primera vez que se muestran
+     */
+    private ProgressDialog getProgressDialog() {
+        if (pgdLoading == null) {
+            pgdLoading = new ProgressDialog(this);
+            pgdLoading.setCancelable(false);
+        }
+        return pgdLoading;
+    }
 
+    private void cancelProgressDialog() {
+        if (pgdLoading != null) pgdLoading.cancel();
     }
 
-    private void initProgressDialog() {
-        pgdLoading = new ProgressDialog(this);
-        pgdLoading.setCancelable(false);
+    private AlertDialog getDeviceListDialog() {
+        if (deviceListDialog == null) initDeviceListDialog();
+        return deviceListDialog;
     }
 
     private void initDeviceListDialog() {
-        deviceArrayAdapter = new ArrayAdapter<String>(getApplicationContext(), R.layout.item_device);
+        deviceListAdapter = new DeviceListAdapter(getLayoutInflater(), client.getDeviceRegistry());
         ListView listView = new ListView(getApplicationContext());
-        listView.setAdapter(deviceArrayAdapter);
+        listView.setAdapter(deviceListAdapter);
         listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                String item = (String) parent.getItemAtPosition(position);
-                for (BluetoothDevice device : btDevices) {
-                    if (item.contains(device.getAddress())) {
-                        connect(device);
-                        deviceListDialog.cancel();
-                    }
-                }
+                DeviceRegistry.Entry entry = deviceListAdapter.getItem(position);
+                connect(client.getDevice(entry.getAddress()));
+                deviceListDialog.cancel();
             }
         });
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -97,9 +171,21 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void initWidget() {
-        textView = (TextView) findViewById(R.id.textViewTerminal);
-        textView.setMovementMethod(new ScrollingMovementMethod());
+        terminalView = (ListView) findViewById(R.id.listViewTerminal);
+        terminalAdapter = new TerminalAdapter(getLayoutInflater(), terminalBuffer);
+        terminalView.setAdapter(terminalAdapter);
+        terminalView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                if (firstVisibleItem == 0 && totalItemCount > 0) loadHistory();
+            }
+        });
         editText = (EditText) findViewById(R.id.editText);
+        metricsView = (TextView) findViewById(R.id.metricsOverlay);
         btnSend = (Button) findViewById(R.id.btnSend);
         btnSend.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -110,23 +196,33 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    private void addDeviceToArrayAdapter(BluetoothDevice device) {
-        if (btDevices.contains(device)) {
-            btDevices.remove(device);
-            deviceArrayAdapter.remove(device.getName() + "\n" + device.getAddress());
+    /**
+     * Refresca la lista de dispositivos como máximo una vez por cuadro
+     * aunque un escaneo encuentre muchos seguidos
+     */
+    private void refreshDeviceList() {
+        if (!deviceRefreshPending) {
+            deviceRefreshPending = true;
+            terminalView.postDelayed(deviceRefresh, FRAME_MILLIS);
         }
-        btDevices.add(device);
-        deviceArrayAdapter.add(device.getName() + "\n" + device.getAddress());
-        deviceArrayAdapter.notifyDataSetChanged();
-
     }
 
+    private Runnable deviceRefresh = new Runnable() {
+        @Override
+        public void run() {
+            deviceRefreshPending = false;
+            // sin diálogo todavía no hay nada que refrescar; el adaptador lee el registro al crearse
+            if (!client.getDeviceRegistry().takeChanges().isEmpty() && deviceListAdapter != null)
+                deviceListAdapter.notifyDataSetChanged();
+        }
+    };
+
     private void enableBluetooth() {
         client.enableBluetooth(this, new BluetoothUpListener() {
             @Override
             public void onBluetoothUp(boolean success) {
                 if (success) {
-                    getPairedDevices();
+                    client.loadDevices(MainActivity.this, null, devicesListener);
                 } else {
                     finish();
                 }
@@ -134,24 +230,100 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    /**
+     * Agrega texto a la terminal. La lista se actualiza como máximo una vez
+     * por cuadro aunque lleguen muchos mensajes seguidos.
+     */
     private void addText(String text) {
-        textView.append(text);
-        final int scrollAmount = textView.getLayout().getLineTop(textView.getLineCount()) - textView.getHeight();
-        if (scrollAmount > 0)
-            textView.scrollTo(0, scrollAmount);
-        else
-            textView.scrollTo(0, 0);
+        terminalBuffer.append(text);
+        messageStore.append(text);
+        if (!terminalRefreshPending) {
+            terminalRefreshPending = true;
+            terminalView.postDelayed(terminalRefresh, FRAME_MILLIS);
+        }
+    }
+
+    private Runnable terminalRefresh = new Runnable() {
+        @Override
+        public void run() {
+            terminalRefreshPending = false;
+            terminalAdapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * Pide la página del historial anterior a las líneas visibles, mientras
+     * quede historial y lugar en la terminal
+     */
+    private void loadHistory() {
+        if (historyLoading || historyFirst == 0 || terminalBuffer.size() == terminalBuffer.capacity()) return;
+        historyLoading = true;
+        messageStore.loadPage(historyFirst, HISTORY_PAGE, new MessageStore.PageListener() {
+            @Override
+            public void onPage(long first, List<MessageStore.Message> messages) {
+                historyLoading = false;
+                historyFirst = first;
+                List<String> texts = new ArrayList<String>(messages.size());
+                for (MessageStore.Message message : messages)
+                    texts.add(message.text);
+                boolean empty = terminalBuffer.size() == 0;
+                int position = terminalView.getFirstVisiblePosition();
+                View top = terminalView.getChildAt(0);
+                int added = terminalBuffer.prepend(texts);
+                if (added == 0) return;
+                terminalAdapter.notifyDataSetChanged();
+                // la vista se queda en las mismas líneas
+                if (empty)
+                    terminalView.setSelection(terminalBuffer.size() - 1);
+                else
+                    terminalView.setSelectionFromTop(position + added, top != null ? top.getTop() : 0);
+            }
+        }, mainExecutor);
     }
 
+    private Executor mainExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            terminalView.post(command);
+        }
+    };
+
 
-    private void getPairedDevices() {
-        Set<BluetoothDevice> devices = client.getPairedDevices();
-        for (BluetoothDevice device : devices) {
-            addDeviceToArrayAdapter(device);
+    private DevicesListener devicesListener = new DevicesListener() {
+        @Override
+        public void onDevicesLoaded(BluetoothDevice reconnecting) {
+            trace(StartupTrace.DEVICES);
+            refreshDeviceList();
+            if (reconnecting != null)
+                addText("Mensaje : Conectando con " + reconnecting.getName() + "...\n");
         }
+    };
+
+    /**
+     * Anota un paso del arranque y de la vuelta a la pantalla; se ve con
+     * {@code adb logcat -s StartupTrace}
+     */
+    private void trace(String step) {
+        long millis = startupTrace.mark(step);
+        if (millis >= 0) Log.i(TRACE_TAG, "start " + step + " " + millis + " ms");
+        StartupTrace resume = resumeTrace;
+        if (resume != null && (millis = resume.mark(step)) >= 0)
+            Log.i(TRACE_TAG, "resume " + step + " " + millis + " ms");
+    }
+
+    StartupTrace getStartupTrace() {
+        return startupTrace;
+    }
+
+    StartupTrace getResumeTrace() {
+        return resumeTrace;
     }
 
     public void sendStringData(String data) {
+        if (morseMode) {
+            sendMorseData(data);
+            return;
+        }
         data += '\0';
         byte[] buffer = data.getBytes();
         if (btHandler.write(buffer)) {
@@ -159,17 +331,40 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Envía el texto como paquetes de manipulación Morse terminados en '\0',
+     * tantos elementos por paquete como quepan en un bloque de escritura
+     */
+    private void sendMorseData(String data) {
+        int start = 0;
+        while (start < data.length()) {
+            // tipo + tramos + '\0'
+            int consumed = morseEncoder.encode(data, start, data.length(), morsePacket, 1, morsePacket.length - 2);
+            int length = morseEncoder.getEncodedLength();
+            if (length > 0) {
+                morsePacket[0] = KeyingPacket.FRAME_TYPE;
+                morsePacket[length + 1] = '\0';
+                if (!btHandler.write(morsePacket, 0, length + 2)) return;
+                if (sidetone != null) sidetone.play(morsePacket, 1, length);
+            }
+            if (consumed == 0) break;
+            start += consumed;
+        }
+        addText("Yo (Morse) : " + data + '\n');
+    }
+
     private void scanDevices() {
         client.scanDevices(getApplicationContext(), new ScanListener() {
-            String message = "";
+            int found;
 
             @Override
             public void onStart() {
-                pgdLoading.show();
-                pgdLoading.setMessage("Buscando....");
-                pgdLoading.setCancelable(true);
-                pgdLoading.setCanceledOnTouchOutside(false);
-                pgdLoading.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                ProgressDialog progress = getProgressDialog();
+                progress.show();
+                progress.setMessage("Buscando....");
+                progress.setCancelable(true);
+                progress.setCanceledOnTouchOutside(false);
+                progress.setOnCancelListener(new DialogInterface.OnCancelListener() {
                     @Override
                     public void onCancel(DialogInterface dialog) {
                         BluetoothSerialClient btSet = client;
@@ -180,25 +375,36 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void onFoundDevice(BluetoothDevice bluetoothDevice) {
-                addDeviceToArrayAdapter(bluetoothDevice);
-                message += "\n" + bluetoothDevice.getName() + "\n" + bluetoothDevice.getAddress();
-                pgdLoading.setMessage(message);
+                found++;
+                getProgressDialog().setMessage("Buscando.... " + found + " encontrados\n" + bluetoothDevice.getName());
+                refreshDeviceList();
             }
 
             @Override
             public void onFinish() {
-                pgdLoading.cancel();
-                pgdLoading.setCancelable(false);
-                pgdLoading.setOnCancelListener(null);
-                deviceListDialog.show();
+                ProgressDialog progress = getProgressDialog();
+                progress.cancel();
+                progress.setCancelable(false);
+                progress.setOnCancelListener(null);
+                getDeviceListDialog().show();
             }
         });
     }
 
+    /**
+     * Nombre del dispositivo de la conexión; sigue disponible para los
+     * mensajes que se terminan de entregar después de desconectar
+     */
+    private String deviceName() {
+        BluetoothDevice device = btHandler.getDevice();
+        return device != null ? device.getName() : "?";
+    }
+
     private void connect(BluetoothDevice device) {
-        pgdLoading.setMessage("Connecting....");
-        pgdLoading.setCancelable(false);
-        pgdLoading.show();
+        ProgressDialog progress = getProgressDialog();
+        progress.setMessage("Connecting....");
+        progress.setCancelable(false);
+        progress.show();
         BluetoothSerialClient btSet =  client;
         btSet.connect(getApplicationContext(), device, btHandler);
     }
@@ -206,14 +412,48 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_main, menu);
+        this.menu = menu;
+        // la conexión automática pudo terminar antes que el menú
+        setConnectTitle(client.isConnected());
         return true;
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.mnuGrabar) {
+            item.setChecked(toggleRecording());
+            return true;
+        }
+        if (item.getItemId() == R.id.mnuMetricas) {
+            item.setChecked(toggleMetrics());
+            return true;
+        }
+        if (item.getItemId() == R.id.mnuCompartir) {
+            item.setChecked(toggleGateway());
+            return true;
+        }
+        if (item.getItemId() == R.id.mnuAudio) {
+            item.setChecked(toggleAudioDecoding());
+            return true;
+        }
+        if (item.getItemId() == R.id.mnuFlujo) {
+            flowControl = !item.isChecked();
+            item.setChecked(flowControl);
+            client.setFlowControl(flowControl ? FlowController.Mode.CREDITS : null, FlowController.DEFAULT_WINDOW);
+            addText("Mensaje : Control de flujo " + (flowControl ? "activado" : "desactivado")
+                    + " desde la próxima conexión.\n");
+            return true;
+        }
+        if (item.getItemId() == R.id.mnuMorse) {
+            morseMode = !item.isChecked();
+            item.setChecked(morseMode);
+            morseEncoder.reset();
+            setSidetone(morseMode);
+            return true;
+        }
         boolean connect = client.isConnected();
             if (!connect) {
-                deviceListDialog.show();
+                getDeviceListDialog().show();
             } else {
                 btHandler.close();
             }
@@ -221,6 +461,178 @@ public class MainActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Decodifica Morse del audio del micrófono, por ejemplo el parlante de
+     * un receptor, y lo muestra en la terminal junto a lo que llega por
+     * bluetooth
+     *
+     * @return <code>true</code> si quedó escuchando
+     */
+    private boolean toggleAudioDecoding() {
+        if (microphone != null) {
+            microphone.release();
+            microphone = null;
+            addText("Mensaje : Se dejó de escuchar.\n");
+            return false;
+        }
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.RECORD_AUDIO},
+                    REQUEST_RECORD_AUDIO);
+            return false;
+        }
+        GoertzelBank bank = new GoertzelBank();
+        audioWord.setLength(0);
+        audioDecoder = new MorseDecoder(MORSE_WPM, new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(char c) {
+                if (c != ' ') {
+                    audioWord.append(c);
+                    return;
+                }
+                final String text = "Audio " + Math.round(audioChannel.getPitch()) + " Hz (Morse " +
+                        audioDecoder.getWpm() + " ppm) : " + audioWord + '\n';
+                audioWord.setLength(0);
+                terminalView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        addText(text);
+                    }
+                });
+            }
+        });
+        audioChannel = new ToneChannel(bank, AUDIO_MIN_HZ, AUDIO_MAX_HZ, new ToneChannel.KeyListener() {
+            @Override
+            public void onKey(boolean keyDown, int millis) {
+                audioDecoder.sample(keyDown, millis);
+            }
+        });
+        try {
+            microphone = new MicrophoneSource(bank);
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            addText("Mensaje : No se pudo usar el micrófono - " + e.toString() + "\n");
+            return false;
+        }
+        microphone.start();
+        addText("Mensaje : Escuchando Morse por el micrófono.\n");
+        return true;
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_RECORD_AUDIO && grantResults.length > 0
+                && grantResults[0] == PackageManager.PERMISSION_GRANTED && menu != null) {
+            menu.findItem(R.id.mnuAudio).setChecked(toggleAudioDecoding());
+        }
+    }
+
+    /**
+     * Escuchar lo que se envía en Morse con el mismo tiempo que el paquete
+     */
+    private void setSidetone(boolean enabled) {
+        if (enabled && sidetone == null) {
+            sidetone = new Sidetone(new SidetoneSynth(morseEncoder.getTiming()));
+        } else if (!enabled && sidetone != null) {
+            sidetone.release();
+            sidetone = null;
+        }
+    }
+
+    /**
+     * Empieza o termina la grabación del tráfico en un archivo privado de la app
+     *
+     * @return <code>true</code> si quedó grabando
+     */
+    private boolean toggleRecording() {
+        if (recorder != null) {
+            client.setTrafficTap(null);
+            recorder.close();
+            addText("Mensaje : Grabación terminada, " + recorder.getRecords() + " registros.\n");
+            recorder = null;
+            return false;
+        }
+        File file = new File(getFilesDir(), "sesion-" + System.currentTimeMillis() + ".mdr");
+        try {
+            recorder = new SessionRecorder(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            addText("Mensaje : No se pudo grabar - " + e.toString() + "\n");
+            return false;
+        }
+        client.setTrafficTap(recorder);
+        addText("Mensaje : Grabando en " + file.getName() + "\n");
+        return true;
+    }
+
+    /**
+     * Comparte lo que se recibe del dispositivo con clientes TCP locales,
+     * por ejemplo un monitor conectado con adb forward
+     *
+     * @return <code>true</code> si quedó compartiendo
+     */
+    private boolean toggleGateway() {
+        if (gateway != null) {
+            btHandler.setFanOutHub(null);
+            gateway.close();
+            gateway = null;
+            addText("Mensaje : Se dejó de compartir.\n");
+            return false;
+        }
+        FanOutHub hub = new FanOutHub();
+        try {
+            gateway = new TcpGateway(hub, TcpGateway.DEFAULT_PORT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            addText("Mensaje : No se pudo compartir - " + e.toString() + "\n");
+            return false;
+        }
+        btHandler.setFanOutHub(hub);
+        addText("Mensaje : Compartiendo en el puerto " + gateway.getPort() + "\n");
+        return true;
+    }
+
+    /**
+     * Muestra u oculta los contadores del enlace sobre la terminal
+     *
+     * @return <code>true</code> si quedaron visibles
+     */
+    private boolean toggleMetrics() {
+        if (metricsView.getVisibility() == View.VISIBLE) {
+            client.setMetricsListener(null, 0);
+            metricsView.setVisibility(View.GONE);
+            return false;
+        }
+        metricsView.setText(client.getMetricsSnapshot().toString());
+        metricsView.setVisibility(View.VISIBLE);
+        client.setMetricsListener(new LinkMetrics.Listener() {
+            @Override
+            public void onMetrics(LinkMetrics.Snapshot snapshot) {
+                metricsView.setText(snapshot.toString());
+            }
+        }, METRICS_MILLIS);
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        client.setMetricsListener(null, 0);
+        // al rotar la actividad nueva sigue con el mismo historial
+        if (isFinishing()) messageStore.close();
+        if (recorder != null) {
+            client.setTrafficTap(null);
+            recorder.close();
+        }
+        if (gateway != null) {
+            btHandler.setFanOutHub(null);
+            gateway.close();
+        }
+        setSidetone(false);
+        if (microphone != null) microphone.release();
+        super.onDestroy();
+    }
+
     @Override
     protected void onPause() {
         client.cancelScan(getApplicationContext());
@@ -230,47 +642,82 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onResume() {
         super.onResume();
+        resumeTrace = new StartupTrace();
+        final ViewTreeObserver observer = terminalView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (observer.isAlive()) observer.removeOnPreDrawListener(this);
+                trace(StartupTrace.FIRST_FRAME);
+                return true;
+            }
+        });
         enableBluetooth();
     }
 
+    private void setConnectTitle(boolean connected) {
+        if (menu != null)
+            menu.getItem(0).setTitle(connected ? R.string.action_disconnect : R.string.action_connect);
+    }
+
+    private FrameDecoder frameDecoder = new FrameDecoder(FrameDecoder.Framing.NUL, MAX_FRAME_SIZE,
+            new FrameDecoder.FrameListener() {
+                @Override
+                public void onFrame(byte[] buffer, int offset, int length) {
+                    client.getLinkMetrics().onFrameReceived();
+                    if (keyingReceiver.onFrame(buffer, offset, length)) return;
+                    addText(deviceName() + " : " +
+                            new String(buffer, offset, length) + '\n');
+                }
+
+                @Override
+                public void onOversizedFrame() {
+                    addText("Mensaje : Mensaje demasiado largo, descartado.\n");
+                }
+            });
+
     private BluetoothStreamingHandler btHandler = new BluetoothStreamingHandler() {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(1024);
 
         @Override
         public void onError(Exception e) {
-            pgdLoading.cancel();
+            cancelProgressDialog();
             addText("Mensaje : Error de conexión - " + e.toString() + "\n");
-            menu.getItem(0).setTitle(R.string.action_connect);
+            setConnectTitle(false);
         }
 
         @Override
         public void onDisconnected() {
-            menu.getItem(0).setTitle(R.string.action_connect);
-            pgdLoading.cancel();
+            setConnectTitle(false);
+            cancelProgressDialog();
             addText("Mensaje : Desconectado.\n");
         }
 
         @Override
         public void onData(byte[] buffer, int length) {
-            if (length == 0) return;
-            if (byteBuffer.position() + length >= byteBuffer.capacity()) {
-                ByteBuffer newBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
-                newBuffer.put(byteBuffer.array(), 0, byteBuffer.position());
-                byteBuffer = newBuffer;
-            }
-            byteBuffer.put(buffer, 0, length);
-            if (buffer[length - 1] == '\0') {
-                addText(client.getConnectedDevice().getName() + " : " +
-                        new String(byteBuffer.array(), 0, byteBuffer.position()) + '\n');
-                byteBuffer.clear();
-            }
+            trace(StartupTrace.FIRST_BYTE);
+            frameDecoder.feed(buffer, 0, length);
+        }
+
+        @Override
+        public void onReconnecting(int attempt, long delayMillis) {
+            if (attempt == 1 && getConnectStats().getConnects() > 0)
+                addText("Mensaje : Enlace perdido, reconectando...\n");
+        }
+
+        @Override
+        public void onReconnected(ConnectStats stats) {
+            frameDecoder.reset();
+            addText("Mensaje : Reconectado en " + stats.getLastOutageMillis() + " ms.\n");
         }
 
         @Override
         public void onConnected() {
-            addText("Mensaje : Conectado. " + client.getConnectedDevice().getName() + "\n");
-            pgdLoading.cancel();
-            menu.getItem(0).setTitle(R.string.action_disconnect);
+            frameDecoder.reset();
+            keyingReceiver.reset();
+            addText("Mensaje : Conectado. " + deviceName() + "\n");
+            trace(StartupTrace.CONNECTED);
+            cancelProgressDialog();
+            setConnectTitle(true);
         }
     };
 
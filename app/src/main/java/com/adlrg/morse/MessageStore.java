@@ -0,0 +1,359 @@
+package com.adlrg.morse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Historial de la conversación en disco, solo agregando al final. Formato:
+ * <pre>
+ *   cabecera: magic (4) | reservado (4)
+ *   registro: longitud (4) | ms desde epoch (8) | texto UTF-8
+ * </pre>
+ * Un índice aparte guarda la posición de uno de cada {@link #INDEX_INTERVAL}
+ * registros, así que leer una página cuesta lo mismo al principio que al
+ * final del historial y abrirlo no recorre el archivo completo.
+ * <p>
+ * Escrituras, lecturas y la apertura corren en un hilo propio; quien agrega
+ * mensajes desde el hilo principal o el de recepción solo encola.
+ * <p>
+ * Hay una sola instancia por archivo en todo el proceso
+ * ({@link #getInstance}), así que una actividad recreada al rotar sigue
+ * escribiendo con la misma. Si se pide el archivo después de
+ * {@link #close()}, la nueva instancia lo abre recién cuando la anterior
+ * terminó de cerrarlo.
+ */
+public class MessageStore {
+
+    public static final int MAGIC = 0x4D444D31;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_HEADER_SIZE = 4 + 8;
+    public static final int INDEX_INTERVAL = 64;
+    public static final long LATEST = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long CLOSE_TIMEOUT = 10;
+
+    /** Última instancia de cada archivo, por ruta absoluta */
+    private static final Map<String, MessageStore> instances = new HashMap<String, MessageStore>();
+
+    public static final class Message {
+        public final long time;
+        public final String text;
+
+        public Message(long time, String text) {
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    public interface PageListener {
+        /**
+         * @param first    número del primer mensaje de la página; 0 si ya no hay más viejos
+         * @param messages del más viejo al más nuevo
+         */
+        void onPage(long first, List<Message> messages);
+    }
+
+    /**
+     * Expone el arreglo interno para escribirlo sin copiarlo
+     */
+    private static final class Bytes extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    private final ExecutorService executor;
+    private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<Message>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong appended = new AtomicLong();
+    private volatile boolean closed;
+
+    // solo los usa el hilo del historial
+    private MessageStore previous;
+    private final Bytes batch = new Bytes();
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+    private RandomAccessFile data;
+    private RandomAccessFile indexData;
+    private long[] index;
+    private int indexSize;
+    private long end;
+    private long count;
+    private long openedCount;
+    private boolean failed;
+
+    /**
+     * Historial de ese archivo, compartido por todo el proceso. No toca el
+     * disco; el archivo se abre en el hilo del historial.
+     *
+     * @param file el índice se guarda junto, con extensión ".idx"
+     */
+    public static MessageStore getInstance(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (instances) {
+            MessageStore store = instances.get(key);
+            if (store == null || store.closed) {
+                store = new MessageStore(file, store);
+                instances.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * @param previous instancia cerrada del mismo archivo que hay que esperar; puede ser null
+     */
+    private MessageStore(File file, MessageStore previous) {
+        this.previous = previous;
+        dataFile = file;
+        indexFile = new File(file.getPath() + ".idx");
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "message-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Encola el mensaje; se escribe junto con los que lleguen mientras tanto
+     */
+    public void append(String text) {
+        pending.add(new Message(System.currentTimeMillis(), text));
+        appended.incrementAndGet();
+        if (drainScheduled.compareAndSet(false, true)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Lee hasta <code>max</code> mensajes anteriores a <code>before</code>
+     *
+     * @param before   número del mensaje siguiente a la página, o {@link #LATEST}
+     *                 para los últimos agregados antes de esta llamada
+     * @param executor donde se entrega la página
+     */
+    public void loadPage(final long before, final int max, final PageListener listener, final Executor executor) {
+        final long appendedBefore = appended.get();
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                long first = 0;
+                List<Message> messages = Collections.emptyList();
+                if (!failed) {
+                    long last = Math.min(count, before == LATEST ? openedCount + appendedBefore : before);
+                    first = Math.max(0, last - max);
+                    try {
+                        messages = read(first, (int) (last - first));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        first = 0;
+                    }
+                }
+                final long pageFirst = first;
+                final List<Message> page = messages;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onPage(pageFirst, page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Escribe lo pendiente, cierra los archivos y detiene el hilo. Después
+     * {@link #getInstance} devuelve una instancia nueva.
+     */
+    public void close() {
+        synchronized (instances) {
+            if (closed) return;
+            closed = true;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+                try {
+                    if (data != null) data.close();
+                    if (indexData != null) indexData.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                failed = true;
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        if (!ensureOpen()) {
+            pending.clear();
+            return;
+        }
+        int oldIndexSize = indexSize;
+        long position = end;
+        batch.reset();
+        try {
+            Message message;
+            while ((message = pending.poll()) != null) {
+                byte[] text = message.text.getBytes(UTF8);
+                batchOut.writeInt(text.length);
+                batchOut.writeLong(message.time);
+                batchOut.write(text);
+                position += RECORD_HEADER_SIZE + text.length;
+                if (++count % INDEX_INTERVAL == 0) addIndex(position);
+            }
+            if (batch.size() == 0) return;
+            data.seek(end);
+            data.write(batch.array(), 0, batch.size());
+            end = position;
+            // el índice se escribe después de los registros a los que apunta
+            writeIndex(oldIndexSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+    }
+
+    private boolean ensureOpen() {
+        if (data != null || failed) return !failed;
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed = true;
+        }
+        return !failed;
+    }
+
+    private void open() throws IOException {
+        if (previous != null) {
+            // la instancia anterior todavía puede estar escribiendo lo último
+            try {
+                if (!previous.executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS))
+                    throw new IOException("El historial anterior no se cerró: " + dataFile);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            previous = null;
+        }
+        data = new RandomAccessFile(dataFile, "rw");
+        long length = data.length();
+        if (length < HEADER_SIZE) {
+            data.setLength(0);
+            data.writeInt(MAGIC);
+            data.writeInt(0);
+            length = HEADER_SIZE;
+        } else if (data.readInt() != MAGIC) {
+            throw new IOException("No es un historial: " + dataFile);
+        }
+
+        indexData = new RandomAccessFile(indexFile, "rw");
+        int entries = (int) (indexData.length() / 8);
+        index = new long[Math.max(16, entries + 16)];
+        index[0] = HEADER_SIZE;
+        indexSize = 1;
+        if (entries > 0 && indexData.readLong() == HEADER_SIZE) {
+            // se descartan las entradas que apunten más allá de los datos
+            for (int i = 1; i < entries; i++) {
+                long offset = indexData.readLong();
+                if (offset <= index[indexSize - 1] || offset > length) break;
+                index[indexSize++] = offset;
+            }
+        }
+        indexData.setLength(0);
+        writeIndex(0);
+
+        // se recorren solo los registros posteriores a la última entrada
+        count = (long) (indexSize - 1) * INDEX_INTERVAL;
+        end = index[indexSize - 1];
+        int oldIndexSize = indexSize;
+        while (end + RECORD_HEADER_SIZE <= length) {
+            data.seek(end);
+            int size = data.readInt();
+            if (size < 0 || end + RECORD_HEADER_SIZE + size > length) break;
+            end += RECORD_HEADER_SIZE + size;
+            if (++count % INDEX_INTERVAL == 0) addIndex(end);
+        }
+        writeIndex(oldIndexSize);
+        // un registro a medias de una escritura interrumpida
+        if (end < length) data.setLength(end);
+        openedCount = count;
+    }
+
+    private List<Message> read(long first, int size) throws IOException {
+        List<Message> messages = new ArrayList<Message>(size);
+        if (size == 0) return messages;
+        int block = (int) (first / INDEX_INTERVAL);
+        int lastBlock = (int) ((first + size - 1) / INDEX_INTERVAL);
+        long start = index[block];
+        long stop = lastBlock + 1 < indexSize ? index[lastBlock + 1] : end;
+        byte[] span = new byte[(int) (stop - start)];
+        data.seek(start);
+        data.readFully(span);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(span));
+        for (long i = (long) block * INDEX_INTERVAL; i < first + size; i++) {
+            int length = in.readInt();
+            long time = in.readLong();
+            if (i < first) {
+                in.skipBytes(length);
+                continue;
+            }
+            byte[] text = new byte[length];
+            in.readFully(text);
+            messages.add(new Message(time, new String(text, UTF8)));
+        }
+        return messages;
+    }
+
+    private void addIndex(long offset) {
+        if (indexSize == index.length) {
+            long[] grown = new long[index.length * 2];
+            System.arraycopy(index, 0, grown, 0, indexSize);
+            index = grown;
+        }
+        index[indexSize++] = offset;
+    }
+
+    private void writeIndex(int from) throws IOException {
+        if (from == indexSize) return;
+        batch.reset();
+        for (int i = from; i < indexSize; i++)
+            batchOut.writeLong(index[i]);
+        indexData.seek((long) from * 8);
+        indexData.write(batch.array(), 0, batch.size());
+    }
+}
@@ -0,0 +1,68 @@
+package com.adlrg.morse;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+/**
+ * Pasa el audio del micrófono a un {@link GoertzelBank} desde un hilo propio.
+ * Lee en el mismo arreglo cada vez; los listeners de los canales se llaman
+ * en ese hilo.
+ */
+public class MicrophoneSource {
+
+    private final GoertzelBank bank;
+    private final AudioRecord record;
+    private final short[] buffer;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @throws IllegalStateException si el micrófono no está disponible
+     */
+    public MicrophoneSource(GoertzelBank bank) {
+        this.bank = bank;
+        int minBuffer = AudioRecord.getMinBufferSize(bank.getSampleRate(), AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        record = new AudioRecord(MediaRecorder.AudioSource.MIC, bank.getSampleRate(), AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(minBuffer, 4 * bank.getBlockSize() * 2));
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            throw new IllegalStateException("AudioRecord not initialized");
+        }
+        buffer = new short[bank.getBlockSize()];
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        record.startRecording();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    int n = record.read(buffer, 0, buffer.length);
+                    if (n < 0) break;
+                    bank.process(buffer, 0, n);
+                }
+            }
+        }, "microphone");
+        thread.start();
+    }
+
+    /**
+     * Detiene la lectura y libera el micrófono
+     */
+    public synchronized void release() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record.stop();
+        }
+        record.release();
+    }
+}
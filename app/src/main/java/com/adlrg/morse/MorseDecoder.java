@@ -0,0 +1,160 @@
+package com.adlrg.morse;
+
+/**
+ * Decodificador Morse incremental. Recibe tramos de tecla abajo/arriba con su
+ * duración (directamente, como paquetes {@link KeyingPacket} o como muestras
+ * de encendido/apagado) y entrega caracteres en cuanto el espacio que sigue
+ * los termina. La duración del punto se estima continuamente a partir de los
+ * puntos y rayas recibidos, así que sigue los cambios de velocidad.
+ * <p>
+ * Cada evento cuesta O(1) y no reserva memoria. No es seguro usar la misma
+ * instancia desde varios hilos.
+ */
+public class MorseDecoder {
+
+    public static final char UNKNOWN = '*';
+
+    private static final int MIN_DOT_MILLIS = 10;
+    private static final int MAX_DOT_MILLIS = 1200;
+
+    public interface Listener {
+        /**
+         * Recibe un carácter decodificado, ' ' al terminar una palabra o
+         * {@link #UNKNOWN} si la secuencia no corresponde a ningún símbolo
+         */
+        void onCharacter(char c);
+    }
+
+    private final Listener listener;
+    private float dotMillis;
+
+    private boolean runDown;
+    private int runMillis;
+    private int node = 1;
+    private int elements;
+    private boolean wordPending;
+    private byte pendingHead;
+    private boolean hasHead;
+
+    public MorseDecoder(int wpm, Listener listener) {
+        this.listener = listener;
+        dotMillis = new MorseTiming(wpm).dotMillis;
+    }
+
+    /**
+     * Tecla abajo durante {@code millis}. Los tramos seguidos del mismo estado se suman.
+     */
+    public void mark(int millis) {
+        addRun(true, millis);
+    }
+
+    /**
+     * Tecla arriba durante {@code millis}. Los tramos seguidos del mismo estado se suman.
+     */
+    public void space(int millis) {
+        addRun(false, millis);
+    }
+
+    /**
+     * Procesa una muestra cruda del estado de la tecla
+     *
+     * @param periodMillis tiempo que representa la muestra
+     */
+    public void sample(boolean keyDown, int periodMillis) {
+        addRun(keyDown, periodMillis);
+    }
+
+    /**
+     * Procesa bytes en formato {@link KeyingPacket}. Los bytes que no forman
+     * parte de un tramo (texto, delimitadores) se ignoran, y un tramo puede
+     * quedar partido entre dos llamadas.
+     */
+    public void feed(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (KeyingPacket.isHead(b)) {
+                pendingHead = b;
+                hasHead = true;
+            } else if (hasHead && KeyingPacket.isTail(b)) {
+                hasHead = false;
+                addRun(KeyingPacket.isKeyDown(pendingHead), KeyingPacket.millis(pendingHead, b));
+            } else {
+                hasHead = false;
+            }
+        }
+    }
+
+    /**
+     * Termina el carácter en curso como si hubiera llegado un espacio largo
+     */
+    public void flush() {
+        finishRun();
+        runDown = false;
+        runMillis = 0;
+        emitCharacter();
+    }
+
+    public void reset() {
+        runDown = false;
+        runMillis = 0;
+        node = 1;
+        elements = 0;
+        wordPending = false;
+        hasHead = false;
+    }
+
+    public int getDotMillis() {
+        return Math.round(dotMillis);
+    }
+
+    /**
+     * @return velocidad estimada en palabras por minuto
+     */
+    public int getWpm() {
+        return Math.round(1200f / dotMillis);
+    }
+
+    private void addRun(boolean down, int millis) {
+        if (down != runDown) {
+            finishRun();
+            runDown = down;
+            runMillis = 0;
+        }
+        runMillis += millis;
+        if (!down) {
+            if (runMillis >= 2 * dotMillis)
+                emitCharacter();
+            if (wordPending && runMillis >= 5 * dotMillis) {
+                wordPending = false;
+                listener.onCharacter(' ');
+            }
+        }
+    }
+
+    /**
+     * Clasifica la marca que acaba de terminar como punto o raya
+     */
+    private void finishRun() {
+        if (!runDown || runMillis <= 0) return;
+        boolean dash = runMillis >= 2 * dotMillis;
+        float estimate = dash ? runMillis / 3f : runMillis;
+        dotMillis += (estimate - dotMillis) / 4;
+        if (dotMillis < MIN_DOT_MILLIS) dotMillis = MIN_DOT_MILLIS;
+        if (dotMillis > MAX_DOT_MILLIS) dotMillis = MAX_DOT_MILLIS;
+        if (elements < MorseTable.MAX_ELEMENTS)
+            node = (node << 1) | (dash ? 1 : 0);
+        else
+            node = 0;
+        elements++;
+    }
+
+    private void emitCharacter() {
+        if (elements == 0) return;
+        char c = MorseTable.decode(node);
+        listener.onCharacter(c != 0 ? c : UNKNOWN);
+        node = 1;
+        elements = 0;
+        wordPending = true;
+    }
+}
@@ -0,0 +1,107 @@
+package com.adlrg.morse;
+
+/**
+ * Convierte texto en paquetes de manipulación ({@link KeyingPacket}) para que
+ * el Arduino solo tenga que subir y bajar una salida. El codificador recuerda
+ * el espacio pendiente entre llamadas, así que un texto largo puede enviarse
+ * en varios paquetes y varios textos seguidos quedan bien espaciados.
+ * <p>
+ * No reserva memoria; el caller provee el arreglo de salida.
+ */
+public class MorseEncoder {
+
+    private MorseTiming timing;
+    private int pendingGap;
+    private int encodedLength;
+
+    public MorseEncoder(MorseTiming timing) {
+        this.timing = timing;
+    }
+
+    public void setTiming(MorseTiming timing) {
+        this.timing = timing;
+    }
+
+    public MorseTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Codifica caracteres desde {@code start} mientras quepan en la salida.
+     * Los caracteres sin código Morse se ignoran y cualquier espacio en blanco
+     * se convierte en un espacio entre palabras.
+     *
+     * @return número de caracteres consumidos; los bytes escritos se obtienen
+     * con {@link #getEncodedLength()}
+     */
+    public int encode(CharSequence text, int start, int end, byte[] out, int offset, int length) {
+        int pos = offset;
+        int limit = offset + length;
+        int i = start;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ' ' || c == '\n' || c == '\t' || c == '\r') {
+                if (pendingGap > 0) pendingGap = timing.wordGapMillis;
+                continue;
+            }
+            int elements = MorseTable.length(c);
+            if (elements == 0) continue;
+            if (limit - pos < charBytes(elements)) break;
+            if (pendingGap > 0)
+                pos = writeRun(out, pos, false, pendingGap);
+            int pattern = MorseTable.pattern(c);
+            for (int e = elements - 1; e >= 0; e--) {
+                boolean dash = ((pattern >> e) & 1) != 0;
+                pos = writeRun(out, pos, true, dash ? timing.dashMillis : timing.dotMillis);
+                if (e > 0)
+                    pos = writeRun(out, pos, false, timing.elementGapMillis);
+            }
+            pendingGap = timing.charGapMillis;
+        }
+        encodedLength = pos - offset;
+        return i - start;
+    }
+
+    /**
+     * @return bytes escritos por la última llamada a {@link #encode}
+     */
+    public int getEncodedLength() {
+        return encodedLength;
+    }
+
+    /**
+     * @return bytes que puede ocupar un carácter en el peor caso con la
+     * velocidad actual; la salida de {@link #encode} debe tener al menos esto
+     */
+    public int maxCharBytes() {
+        int elements = MorseTable.MAX_ELEMENTS;
+        int runs = runs(timing.wordGapMillis) + elements * runs(timing.dashMillis)
+                + (elements - 1) * runs(timing.elementGapMillis);
+        return runs * KeyingPacket.RUN_BYTES;
+    }
+
+    /**
+     * Olvida el espacio pendiente; el siguiente carácter se envía sin pausa previa
+     */
+    public void reset() {
+        pendingGap = 0;
+    }
+
+    private int charBytes(int elements) {
+        int runs = runs(pendingGap) + elements * runs(timing.dashMillis)
+                + (elements - 1) * runs(timing.elementGapMillis);
+        return runs * KeyingPacket.RUN_BYTES;
+    }
+
+    private static int runs(int millis) {
+        return Math.max(1, (millis + KeyingPacket.MAX_RUN_MILLIS - 1) / KeyingPacket.MAX_RUN_MILLIS);
+    }
+
+    private static int writeRun(byte[] out, int pos, boolean keyDown, int millis) {
+        while (millis > KeyingPacket.MAX_RUN_MILLIS) {
+            pos += KeyingPacket.writeRun(out, pos, keyDown, KeyingPacket.MAX_RUN_MILLIS);
+            millis -= KeyingPacket.MAX_RUN_MILLIS;
+        }
+        return pos + KeyingPacket.writeRun(out, pos, keyDown, millis);
+    }
+}
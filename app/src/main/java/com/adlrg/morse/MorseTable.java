@@ -0,0 +1,70 @@
+package com.adlrg.morse;
+
+/**
+ * Tabla de código Morse indexada por carácter ASCII. Cada símbolo se guarda
+ * como bits (1 = raya, el primer elemento en el bit más alto) más su número
+ * de elementos, así que consultar un carácter no reserva memoria.
+ * <p>
+ * Para decodificar se usa un árbol binario guardado en un arreglo: la raíz es
+ * el índice 1, un punto lleva del nodo i al 2i y una raya al 2i + 1.
+ */
+public final class MorseTable {
+
+    public static final int MAX_ELEMENTS = 8;
+
+    private static final String[] SYMBOLS = {
+            "A.-", "B-...", "C-.-.", "D-..", "E.", "F..-.", "G--.", "H....", "I..", "J.---",
+            "K-.-", "L.-..", "M--", "N-.", "O---", "P.--.", "Q--.-", "R.-.", "S...", "T-",
+            "U..-", "V...-", "W.--", "X-..-", "Y-.--", "Z--..",
+            "0-----", "1.----", "2..---", "3...--", "4....-", "5.....", "6-....", "7--...",
+            "8---..", "9----.",
+            "..-.-.-", ",--..--", "?..--..", "'.----.", "!-.-.--", "/-..-.", "(-.--.", ")-.--.-",
+            "&.-...", ":---...", ";-.-.-.", "=-...-", "+.-.-.", "--....-", "_..--.-", "\".-..-.",
+            "$...-..-", "@.--.-."
+    };
+
+    private static final byte[] LENGTHS = new byte[128];
+    private static final byte[] PATTERNS = new byte[128];
+    private static final char[] TREE = new char[2 << MAX_ELEMENTS];
+
+    static {
+        for (String symbol : SYMBOLS) {
+            char c = symbol.charAt(0);
+            int pattern = 0;
+            for (int i = 1; i < symbol.length(); i++)
+                pattern = (pattern << 1) | (symbol.charAt(i) == '-' ? 1 : 0);
+            LENGTHS[c] = (byte) (symbol.length() - 1);
+            PATTERNS[c] = (byte) pattern;
+            TREE[(1 << LENGTHS[c]) | pattern] = c;
+            if (c >= 'A' && c <= 'Z') {
+                LENGTHS[c + ('a' - 'A')] = LENGTHS[c];
+                PATTERNS[c + ('a' - 'A')] = PATTERNS[c];
+            }
+        }
+    }
+
+    private MorseTable() {
+    }
+
+    /**
+     * @return número de elementos del carácter, 0 si no tiene código
+     */
+    public static int length(char c) {
+        return c < 128 ? LENGTHS[c] : 0;
+    }
+
+    /**
+     * @return los elementos del carácter; el bit {@code length(c) - 1} es el primero
+     */
+    public static int pattern(char c) {
+        return c < 128 ? PATTERNS[c] & 0xFF : 0;
+    }
+
+    /**
+     * @param node índice en el árbol, 1 para el símbolo vacío
+     * @return el carácter del nodo, 0 si no corresponde a ninguno
+     */
+    public static char decode(int node) {
+        return node > 0 && node < TREE.length ? TREE[node] : 0;
+    }
+}
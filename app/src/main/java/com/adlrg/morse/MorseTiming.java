@@ -0,0 +1,42 @@
+package com.adlrg.morse;
+
+/**
+ * Duraciones en milisegundos de los elementos Morse para una velocidad dada.
+ * Con espaciado Farnsworth los caracteres se envían a {@code wpm} palabras por
+ * minuto pero los espacios entre caracteres y palabras se alargan hasta lograr
+ * una velocidad efectiva de {@code farnsworthWpm}.
+ */
+public final class MorseTiming {
+
+    public final int wpm;
+    public final int farnsworthWpm;
+    public final int dotMillis;
+    public final int dashMillis;
+    public final int elementGapMillis;
+    public final int charGapMillis;
+    public final int wordGapMillis;
+
+    public MorseTiming(int wpm) {
+        this(wpm, wpm);
+    }
+
+    public MorseTiming(int wpm, int farnsworthWpm) {
+        if (wpm <= 0 || farnsworthWpm <= 0)
+            throw new IllegalArgumentException("wpm must be positive");
+        farnsworthWpm = Math.min(farnsworthWpm, wpm);
+        this.wpm = wpm;
+        this.farnsworthWpm = farnsworthWpm;
+        dotMillis = Math.round(1200f / wpm);
+        dashMillis = 3 * dotMillis;
+        elementGapMillis = dotMillis;
+        if (farnsworthWpm < wpm) {
+            // retraso total por palabra "PARIS" repartido en 19 unidades de espacio (ARRL)
+            float delay = (60f * wpm - 37.2f * farnsworthWpm) / (wpm * farnsworthWpm) * 1000f;
+            charGapMillis = Math.round(3 * delay / 19);
+            wordGapMillis = Math.round(7 * delay / 19);
+        } else {
+            charGapMillis = 3 * dotMillis;
+            wordGapMillis = 7 * dotMillis;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.adlrg.morse;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * Reproduce con un {@link AudioTrack} los paquetes de manipulación que se
+ * envían, en un hilo propio. El buffer del AudioTrack es el mínimo que
+ * acepta el dispositivo, así que el tono empieza pocos milisegundos después
+ * de encolar el paquete. Los tramos se guardan en un anillo de enteros y
+ * reproducir no reserva memoria.
+ */
+public class Sidetone {
+
+    public static final int MAX_RUNS = 1024;
+
+    private final SidetoneSynth synth;
+    private final AudioTrack track;
+    private final Thread thread;
+    // tramos pendientes: milisegundos, negativos con la tecla arriba
+    private final int[] runs = new int[MAX_RUNS];
+    private int first;
+    private int size;
+    private boolean running = true;
+
+    private final SidetoneSynth.PcmSink trackSink = new SidetoneSynth.PcmSink() {
+        @Override
+        public void write(short[] pcm, int offset, int length) {
+            track.write(pcm, offset, length);
+        }
+    };
+
+    public Sidetone(SidetoneSynth synth) {
+        this.synth = synth;
+        int minBuffer = AudioTrack.getMinBufferSize(synth.getSampleRate(), AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        track = new AudioTrack(AudioManager.STREAM_MUSIC, synth.getSampleRate(), AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, minBuffer, AudioTrack.MODE_STREAM);
+        track.play();
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "sidetone");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public SidetoneSynth getSynth() {
+        return synth;
+    }
+
+    /**
+     * Encola los tramos del paquete; si el anillo se llena se descartan los que no caben
+     *
+     * @return tramos encolados
+     */
+    public synchronized int play(byte[] packet, int offset, int length) {
+        int queued = 0;
+        int end = offset + length;
+        for (int i = offset; i + 1 < end && size < runs.length; i++) {
+            byte head = packet[i];
+            if (!KeyingPacket.isHead(head) || !KeyingPacket.isTail(packet[i + 1])) continue;
+            int millis = KeyingPacket.millis(head, packet[++i]);
+            runs[(first + size) % runs.length] = KeyingPacket.isKeyDown(head) ? millis : -millis;
+            size++;
+            queued++;
+        }
+        if (queued > 0) notifyAll();
+        return queued;
+    }
+
+    /**
+     * Descarta lo que falta por sonar
+     */
+    public synchronized void cancel() {
+        size = 0;
+    }
+
+    /**
+     * Detiene el hilo y libera el AudioTrack
+     */
+    public void release() {
+        synchronized (this) {
+            running = false;
+            size = 0;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        track.stop();
+        track.release();
+    }
+
+    private void loop() {
+        while (true) {
+            int run;
+            synchronized (this) {
+                while (running && size == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running) return;
+                run = runs[first];
+                first = (first + 1) % runs.length;
+                size--;
+            }
+            // write bloquea hasta que el AudioTrack tenga lugar
+            synth.renderRun(run > 0, Math.abs(run), trackSink);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.adlrg.morse;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Convierte paquetes de manipulación ({@link KeyingPacket}) en audio PCM de
+ * 16 bits para escuchar lo que se envía. Cada tono es una tabla calculada de
+ * antemano con subida y bajada de coseno alzado, así que no hay clics; los
+ * silencios salen de un arreglo de ceros. Las tablas se guardan por tono y
+ * velocidad, y dibujar un paquete solo pasa arreglos ya hechos al
+ * {@link PcmSink}, un elemento por escritura, sin reservar memoria.
+ */
+public class SidetoneSynth {
+
+    public static final int DEFAULT_SAMPLE_RATE = 22050;
+    public static final int DEFAULT_PITCH = 700;
+    public static final int RAMP_MILLIS = 5;
+    public static final int MAX_VOICES = 8;
+    public static final short AMPLITUDE = 12000;
+
+    /**
+     * Recibe el audio, por ejemplo un AudioTrack o un buffer en memoria
+     */
+    public interface PcmSink {
+        /**
+         * El arreglo es una tabla compartida; no se debe modificar
+         */
+        void write(short[] pcm, int offset, int length);
+    }
+
+    /**
+     * Tablas de un tono para una velocidad: punto, raya y, si aparecen, otras duraciones
+     */
+    static final class Voice {
+        final int pitch;
+        final int dotMillis;
+        final short[] dot;
+        final short[] dash;
+        final Map<Integer, short[]> others = new HashMap<Integer, short[]>();
+
+        Voice(int sampleRate, int pitch, int dotMillis) {
+            this.pitch = pitch;
+            this.dotMillis = dotMillis;
+            dot = tone(sampleRate, pitch, dotMillis);
+            dash = tone(sampleRate, pitch, 3 * dotMillis);
+        }
+    }
+
+    private final int sampleRate;
+    private final short[] silence;
+    private final LinkedHashMap<Long, Voice> voices = new LinkedHashMap<Long, Voice>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Voice> eldest) {
+            return size() > MAX_VOICES;
+        }
+    };
+    private Voice voice;
+
+    public SidetoneSynth(MorseTiming timing) {
+        this(DEFAULT_SAMPLE_RATE, DEFAULT_PITCH, timing);
+    }
+
+    public SidetoneSynth(int sampleRate, int pitch, MorseTiming timing) {
+        this.sampleRate = sampleRate;
+        // un tramo nunca pasa de MAX_RUN_MILLIS: cada silencio es una sola escritura
+        silence = new short[samples(sampleRate, KeyingPacket.MAX_RUN_MILLIS)];
+        setVoice(pitch, timing);
+    }
+
+    /**
+     * Cambia el tono o la velocidad; las tablas se calculan solo la primera vez
+     */
+    public synchronized void setVoice(int pitch, MorseTiming timing) {
+        long key = ((long) pitch << 32) | timing.dotMillis;
+        Voice cached = voices.get(key);
+        if (cached == null) {
+            cached = new Voice(sampleRate, pitch, timing.dotMillis);
+            voices.put(key, cached);
+        }
+        voice = cached;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public synchronized int getPitch() {
+        return voice.pitch;
+    }
+
+    /**
+     * Dibuja los tramos de un paquete; se ignoran los bytes que no son tramos, como el '\0' final
+     *
+     * @return muestras escritas
+     */
+    public int render(byte[] packet, int offset, int length, PcmSink sink) {
+        int written = 0;
+        int end = offset + length;
+        for (int i = offset; i + 1 < end; i++) {
+            byte head = packet[i];
+            if (!KeyingPacket.isHead(head) || !KeyingPacket.isTail(packet[i + 1])) continue;
+            written += renderRun(KeyingPacket.isKeyDown(head), KeyingPacket.millis(head, packet[++i]), sink);
+        }
+        return written;
+    }
+
+    /**
+     * Dibuja un tramo completo: un tono con sus flancos o un silencio
+     *
+     * @return muestras escritas
+     */
+    public int renderRun(boolean keyDown, int millis, PcmSink sink) {
+        if (millis <= 0) return 0;
+        if (keyDown) {
+            short[] table = toneFor(millis);
+            sink.write(table, 0, table.length);
+            return table.length;
+        }
+        int remaining = samples(sampleRate, millis);
+        int written = remaining;
+        while (remaining > 0) {
+            int n = Math.min(remaining, silence.length);
+            sink.write(silence, 0, n);
+            remaining -= n;
+        }
+        return written;
+    }
+
+    private synchronized short[] toneFor(int millis) {
+        Voice current = voice;
+        if (millis == current.dotMillis) return current.dot;
+        if (millis == 3 * current.dotMillis) return current.dash;
+        short[] table = current.others.get(millis);
+        if (table == null) {
+            table = tone(sampleRate, current.pitch, millis);
+            current.others.put(millis, table);
+        }
+        return table;
+    }
+
+    static int samples(int sampleRate, int millis) {
+        return (int) ((long) millis * sampleRate / 1000);
+    }
+
+    /**
+     * Seno con subida y bajada de coseno alzado; empieza y termina en cero.
+     * Los flancos ocupan como mucho un cuarto del tono para que los puntos
+     * rápidos conserven su volumen.
+     */
+    static short[] tone(int sampleRate, int pitch, int millis) {
+        short[] table = new short[samples(sampleRate, millis)];
+        int ramp = Math.max(1, Math.min(samples(sampleRate, RAMP_MILLIS), table.length / 4));
+        double step = 2 * Math.PI * pitch / sampleRate;
+        for (int i = 0; i < table.length; i++) {
+            double envelope = 1;
+            if (i < ramp)
+                envelope = 0.5 * (1 - Math.cos(Math.PI * i / ramp));
+            else if (i >= table.length - ramp)
+                envelope = 0.5 * (1 - Math.cos(Math.PI * (table.length - 1 - i) / ramp));
+            table[i] = (short) Math.round(AMPLITUDE * envelope * Math.sin(step * i));
+        }
+        return table;
+    }
+}
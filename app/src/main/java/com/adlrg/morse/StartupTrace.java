@@ -0,0 +1,65 @@
+package com.adlrg.morse;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Marcas de tiempo del arranque o de la vuelta a la pantalla, medidas desde
+ * que se crea la traza. Cada marca se guarda solo la primera vez, así que se
+ * puede marcar desde callbacks que se repiten. Se puede marcar desde
+ * cualquier hilo.
+ */
+public class StartupTrace {
+
+    public static final String CONTENT = "content";
+    public static final String FIRST_FRAME = "first_frame";
+    public static final String DEVICES = "devices";
+    public static final String CONNECTED = "connected";
+    public static final String FIRST_BYTE = "first_byte";
+
+    private final long startNanos;
+    private final Map<String, Long> marks = new LinkedHashMap<String, Long>();
+
+    public StartupTrace() {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param startNanos origen de la traza según {@link System#nanoTime()}
+     */
+    public StartupTrace(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @return milisegundos desde el inicio, o -1 si la marca ya estaba
+     */
+    public long mark(String name) {
+        return mark(name, System.nanoTime());
+    }
+
+    synchronized long mark(String name, long nowNanos) {
+        if (marks.containsKey(name)) return -1;
+        long millis = (nowNanos - startNanos) / 1000000;
+        marks.put(name, millis);
+        return millis;
+    }
+
+    /**
+     * @return milisegundos desde el inicio hasta la marca, o -1 si todavía no ocurre
+     */
+    public synchronized long getMillis(String name) {
+        Long millis = marks.get(name);
+        return millis != null ? millis : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> mark : marks.entrySet()) {
+            if (text.length() > 0) text.append(", ");
+            text.append(mark.getKey()).append(' ').append(mark.getValue()).append(" ms");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,48 @@
+package com.adlrg.morse;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import adlrg.com.morse.R;
+
+/**
+ * Muestra un {@link TerminalBuffer} en un ListView. Solo se crean y acomodan
+ * las vistas de las líneas visibles y se reciclan al desplazarse.
+ */
+public class TerminalAdapter extends BaseAdapter {
+
+    private final TerminalBuffer buffer;
+    private final LayoutInflater inflater;
+
+    public TerminalAdapter(LayoutInflater inflater, TerminalBuffer buffer) {
+        this.inflater = inflater;
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int getCount() {
+        return buffer.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return buffer.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null)
+            view = (TextView) inflater.inflate(R.layout.item_terminal_line, parent, false);
+        view.setText(buffer.get(position));
+        return view;
+    }
+}
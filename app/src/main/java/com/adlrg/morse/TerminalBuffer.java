@@ -0,0 +1,116 @@
+package com.adlrg.morse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Líneas de la terminal en un anillo de capacidad fija. Al llenarse se
+ * descartan las más viejas, así que la memoria no crece con la duración de
+ * la sesión. Se usa solo desde el hilo principal.
+ */
+public class TerminalBuffer {
+
+    private final String[] lines;
+    private int first;
+    private int size;
+    private boolean lastLineOpen;
+    private long dropped;
+
+    public TerminalBuffer(int capacity) {
+        lines = new String[capacity];
+    }
+
+    /**
+     * Agrega texto. Cada '\n' termina una línea; si el texto no termina en
+     * '\n' la siguiente llamada continúa la última línea.
+     */
+    public void append(String text) {
+        int start = 0;
+        int length = text.length();
+        while (start < length) {
+            int end = text.indexOf('\n', start);
+            boolean closed = end >= 0;
+            if (!closed) end = length;
+            String piece = text.substring(start, end);
+            if (lastLineOpen)
+                set(size - 1, get(size - 1) + piece);
+            else
+                add(piece);
+            lastLineOpen = !closed;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Agrega al principio texto más viejo que el que ya hay, por ejemplo una
+     * página del historial. Solo ocupa el espacio libre: si no cabe todo se
+     * conservan las líneas más recientes del texto.
+     *
+     * @param texts del más viejo al más nuevo; cada uno empieza una línea
+     * @return líneas agregadas
+     */
+    public int prepend(List<String> texts) {
+        List<String> older = new ArrayList<String>();
+        for (String text : texts) {
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) end = text.length();
+                older.add(text.substring(start, end));
+                start = end + 1;
+            }
+        }
+        int added = Math.min(lines.length - size, older.size());
+        for (int i = older.size() - 1; i >= older.size() - added; i--) {
+            first = (first - 1 + lines.length) % lines.length;
+            lines[first] = older.get(i);
+            size++;
+        }
+        return added;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * @param index 0 es la línea más vieja que se conserva
+     */
+    public String get(int index) {
+        return lines[(first + index) % lines.length];
+    }
+
+    /**
+     * @return líneas descartadas por falta de espacio
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public void clear() {
+        for (int i = 0; i < lines.length; i++)
+            lines[i] = null;
+        first = 0;
+        size = 0;
+        lastLineOpen = false;
+    }
+
+    private void add(String line) {
+        if (size == lines.length) {
+            lines[first] = line;
+            first = (first + 1) % lines.length;
+            dropped++;
+        } else {
+            lines[(first + size) % lines.length] = line;
+            size++;
+        }
+    }
+
+    private void set(int index, String line) {
+        lines[(first + index) % lines.length] = line;
+    }
+}
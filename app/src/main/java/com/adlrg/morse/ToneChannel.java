@@ -0,0 +1,128 @@
+package com.adlrg.morse;
+
+/**
+ * Convierte un rango de frecuencias de un {@link GoertzelBank} en estados de
+ * la tecla. Sigue el tono más fuerte del rango, así que no hace falta
+ * conocer el tono exacto del transmisor, y decide si la tecla está abajo
+ * con un umbral entre el nivel del tono y el del ruido que se adapta solo,
+ * con histéresis para que el ruido no parta las marcas.
+ * <p>
+ * Varios canales con rangos distintos sobre el mismo banco decodifican
+ * varias señales a la vez.
+ */
+public class ToneChannel {
+
+    private static final float ATTACK = 0.5f;
+    private static final float PEAK_DECAY = 0.01f;
+    private static final float FLOOR_FALL = 0.1f;
+    private static final float FLOOR_RISE = 0.02f;
+    private static final float HIGH = 0.6f;
+    private static final float LOW = 0.4f;
+    private static final float MIN_SNR = 6f;
+    private static final float MIN_LEVEL = 0.002f;
+    private static final float PITCH_SMOOTHING = 0.05f;
+    private static final float PITCH_ACQUIRE = 0.2f;
+    private static final float PITCH_SWITCH = 1.25f;
+    private static final float PITCH_MIN_SNR = 3f;
+
+    public interface KeyListener {
+        /**
+         * Estado de la tecla durante el último bloque. Las llamadas seguidas
+         * con el mismo estado son el mismo tramo; un cambio es un evento de
+         * tecla. Sirve directamente para {@link MorseDecoder#sample(boolean, int)}.
+         */
+        void onKey(boolean keyDown, int millis);
+    }
+
+    private final GoertzelBank bank;
+    private final int firstBin;
+    private final int lastBin;
+    private final KeyListener listener;
+    private final float[] average;
+    private int bin;
+    private float peak;
+    private float floor;
+    private boolean started;
+    private boolean keyDown;
+    private boolean locked;
+    private long samples;
+    private long reportedMillis;
+
+    /**
+     * Agrega el canal al banco
+     */
+    public ToneChannel(GoertzelBank bank, float minHz, float maxHz, KeyListener listener) {
+        this.bank = bank;
+        this.listener = listener;
+        firstBin = bank.binOf(minHz);
+        lastBin = Math.max(firstBin, bank.binOf(maxHz));
+        average = new float[lastBin - firstBin + 1];
+        bin = firstBin;
+        bank.addChannel(this);
+    }
+
+    /**
+     * @return frecuencia del filtro que se está siguiendo
+     */
+    public float getPitch() {
+        return bank.getFrequency(bin);
+    }
+
+    public boolean isKeyDown() {
+        return keyDown;
+    }
+
+    /**
+     * @return nivel del tono y del ruido, entre 0 y 1
+     */
+    public float getPeak() {
+        return peak;
+    }
+
+    public float getFloor() {
+        return floor;
+    }
+
+    void onBlock(float[] amplitudes, int blockSamples) {
+        trackPitch(amplitudes);
+        float level = amplitudes[bin];
+        if (!started) {
+            started = true;
+            peak = level;
+            floor = level;
+        }
+        peak += (level - peak) * (level > peak ? ATTACK : PEAK_DECAY);
+        // el ruido se promedia solo con la tecla arriba
+        if (!keyDown)
+            floor += (level - floor) * (level < floor ? FLOOR_FALL : FLOOR_RISE);
+        float span = peak - floor;
+        boolean signal = peak > MIN_LEVEL && peak > floor * MIN_SNR;
+        keyDown = signal && level > floor + span * (keyDown ? LOW : HIGH);
+        locked |= keyDown;
+
+        samples += blockSamples;
+        long millis = samples * 1000 / bank.getSampleRate();
+        listener.onKey(keyDown, (int) (millis - reportedMillis));
+        reportedMillis = millis;
+    }
+
+    /**
+     * Cambia de filtro solo si otro es claramente más fuerte en promedio y
+     * sobresale del ruido; sin señal se queda en el último tono. Hasta la
+     * primera marca el promedio es más rápido para no perder el comienzo.
+     */
+    private void trackPitch(float[] amplitudes) {
+        float smoothing = locked ? PITCH_SMOOTHING : PITCH_ACQUIRE;
+        int strongest = bin;
+        for (int b = firstBin; b <= lastBin; b++) {
+            int i = b - firstBin;
+            average[i] += (amplitudes[b] - average[i]) * smoothing;
+        }
+        for (int b = firstBin; b <= lastBin; b++)
+            if (average[b - firstBin] > average[strongest - firstBin]) strongest = b;
+        float candidate = average[strongest - firstBin];
+        if (strongest != bin && candidate > average[bin - firstBin] * PITCH_SWITCH
+                && (!started || candidate > floor * PITCH_MIN_SNR))
+            bin = strongest;
+    }
+}
@@ -0,0 +1,117 @@
+package com.adlrg.morse;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Lee las muestras de un archivo WAV PCM de 16 bits y un canal, por ejemplo
+ * una grabación de una señal de radio para pasarla por un {@link GoertzelBank}.
+ * Solo reserva memoria al crearse.
+ */
+public class WavReader {
+
+    private static final int FORMAT_PCM = 1;
+
+    private final InputStream in;
+    private final byte[] scratch;
+    private final int sampleRate;
+    private long remaining;
+
+    /**
+     * Lee la cabecera y deja el flujo al principio de las muestras
+     *
+     * @param bufferSamples muestras que se leen del flujo por vez
+     */
+    public WavReader(InputStream in, int bufferSamples) throws IOException {
+        this.in = in;
+        scratch = new byte[Math.max(16, 2 * bufferSamples)];
+        readFully(12);
+        if (readInt(0) != 0x46464952 || readInt(8) != 0x45564157)
+            throw new IOException("Not a WAV file");
+        int rate = 0;
+        boolean format = false;
+        while (true) {
+            readFully(8);
+            int id = readInt(0);
+            long size = readInt(4) & 0xFFFFFFFFL;
+            if (id == 0x20746D66) {
+                // "fmt "
+                readFully(16);
+                if (readShort(0) != FORMAT_PCM || readShort(2) != 1 || readShort(14) != 16)
+                    throw new IOException("Only 16-bit mono PCM is supported");
+                rate = readInt(4);
+                format = true;
+                skip(size - 16 + (size & 1));
+            } else if (id == 0x61746164) {
+                // "data"
+                if (!format) throw new IOException("Missing fmt chunk");
+                remaining = size / 2;
+                break;
+            } else {
+                skip(size + (size & 1));
+            }
+        }
+        sampleRate = rate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return muestras leídas, -1 al terminar
+     */
+    public int read(short[] buffer, int offset, int length) throws IOException {
+        if (remaining == 0) return -1;
+        int samples = (int) Math.min(Math.min(length, remaining), scratch.length / 2);
+        int bytes = in.read(scratch, 0, samples * 2);
+        if (bytes < 0) {
+            remaining = 0;
+            return -1;
+        }
+        if ((bytes & 1) != 0) {
+            int last = in.read();
+            if (last < 0) throw new EOFException();
+            scratch[bytes++] = (byte) last;
+        }
+        samples = bytes / 2;
+        for (int i = 0; i < samples; i++)
+            buffer[offset + i] = (short) ((scratch[2 * i] & 0xFF) | (scratch[2 * i + 1] << 8));
+        remaining -= samples;
+        return samples;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readFully(int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(scratch, read, length - read);
+            if (n < 0) throw new EOFException();
+            read += n;
+        }
+    }
+
+    private void skip(long bytes) throws IOException {
+        while (bytes > 0) {
+            long n = in.skip(bytes);
+            if (n <= 0) {
+                if (in.read() < 0) throw new EOFException();
+                n = 1;
+            }
+            bytes -= n;
+        }
+    }
+
+    private int readInt(int offset) {
+        return (scratch[offset] & 0xFF) | (scratch[offset + 1] & 0xFF) << 8
+                | (scratch[offset + 2] & 0xFF) << 16 | (scratch[offset + 3] & 0xFF) << 24;
+    }
+
+    private int readShort(int offset) {
+        return (scratch[offset] & 0xFF) | (scratch[offset + 1] & 0xFF) << 8;
+    }
+}
@@ -0,0 +1,119 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.BinaryFrameDecoder;
+import com.adlrg.bluetooth.BinaryFrameEncoder;
+import com.adlrg.bluetooth.Cobs;
+import com.adlrg.bluetooth.Crc16;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BinaryFrameTest {
+
+    private final List<byte[]> frames = new ArrayList<byte[]>();
+    private final List<Integer> sequences = new ArrayList<Integer>();
+    private int corrupt;
+
+    private final BinaryFrameDecoder.FrameListener listener = new BinaryFrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(int type, int sequence, byte[] buffer, int offset, int length) {
+            assertEquals(7, type);
+            sequences.add(sequence);
+            frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void onCorruptFrame() {
+            corrupt++;
+        }
+    };
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++)
+            payload[i] = (byte) (i % 3 == 0 ? 0 : i);
+        return payload;
+    }
+
+    private static byte[] stream(BinaryFrameEncoder encoder, byte[]... payloads) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] payload : payloads) {
+            int n = encoder.encode(7, encoder.nextSequence(), payload, 0, payload.length);
+            out.write(encoder.getBuffer(), 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void crc16_matchesCcittFalseCheckValue() {
+        byte[] check = "123456789".getBytes();
+        assertEquals(0x29B1, Crc16.compute(check, 0, check.length));
+    }
+
+    @Test
+    public void cobs_roundTripRemovesZeros() {
+        for (int length : new int[]{0, 1, 253, 254, 255, 600}) {
+            byte[] data = payload(length);
+            byte[] encoded = new byte[Cobs.maxEncodedLength(length)];
+            int n = Cobs.encode(data, 0, length, encoded, 0);
+            for (int i = 0; i < n; i++)
+                assertTrue(encoded[i] != 0);
+            assertEquals(length, Cobs.decode(encoded, 0, n, encoded, 0));
+            assertArrayEquals(data, Arrays.copyOf(encoded, length));
+        }
+    }
+
+    @Test
+    public void raw_splitByteByByteAndResyncsAfterCorruption() {
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder(false, 300);
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(false, 300, listener);
+        byte[] data = stream(encoder, payload(10), payload(200), payload(0), payload(300));
+        for (int i = 0; i < data.length; i++)
+            decoder.feed(data, i, 1);
+        assertEquals(4, frames.size());
+        assertArrayEquals(payload(200), frames.get(1));
+        assertEquals(Arrays.asList(0, 1, 2, 3), sequences);
+        assertEquals(0, corrupt);
+
+        // un byte dañado puede parecer una longitud válida; el decodificador
+        // espera esos bytes, el CRC falla y encuentra los mensajes que siguen
+        frames.clear();
+        byte[] damaged = stream(encoder, payload(20), payload(30), payload(300), payload(5));
+        damaged[5] ^= 0x40;
+        decoder.feed(damaged, 0, damaged.length);
+        assertEquals(3, frames.size());
+        assertArrayEquals(payload(30), frames.get(0));
+        assertArrayEquals(payload(5), frames.get(2));
+        assertTrue(corrupt > 0);
+    }
+
+    @Test
+    public void cobs_dropsOnlyTheDamagedFrame() {
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder(true, 300);
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(true, 300, listener);
+        byte[] data = stream(encoder, payload(10), payload(300), payload(40));
+        assertEquals(3, countZeros(data));
+        data[20] ^= 0x01;
+        if (data[20] == 0) data[20] = 0x55;
+        decoder.feed(data, 0, 7);
+        decoder.feed(data, 7, data.length - 7);
+        assertEquals(2, frames.size());
+        assertArrayEquals(payload(10), frames.get(0));
+        assertArrayEquals(payload(40), frames.get(1));
+        assertEquals(Arrays.asList(0, 2), sequences);
+        assertEquals(1, corrupt);
+    }
+
+    private static int countZeros(byte[] data) {
+        int zeros = 0;
+        for (byte b : data)
+            if (b == 0) zeros++;
+        return zeros;
+    }
+}
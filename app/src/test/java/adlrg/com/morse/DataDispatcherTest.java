@@ -0,0 +1,143 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.DispatchScheduler;
+import com.adlrg.bluetooth.ReadBufferPool;
+
+import org.junit.Test;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DataDispatcherTest {
+
+    /**
+     * Consumidor que solo corre las entregas cuando la prueba lo pide
+     */
+    private static class ManualScheduler implements DispatchScheduler {
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        long lastDelay = -1;
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        @Override
+        public void executeDelayed(Runnable command, long delayMillis) {
+            lastDelay = delayMillis;
+            tasks.add(command);
+        }
+
+        int runAll() {
+            int ran = 0;
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+                ran++;
+            }
+            return ran;
+        }
+    }
+
+    private static void read(DataDispatcher dispatcher, String text) throws InterruptedException {
+        ReadBufferPool.ReadBuffer buffer = dispatcher.obtain();
+        byte[] bytes = text.getBytes();
+        System.arraycopy(bytes, 0, buffer.data, 0, bytes.length);
+        dispatcher.dispatch(buffer, bytes.length);
+    }
+
+    @Test
+    public void coalescedReadsArriveInOneCallPerInterval() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ManualScheduler scheduler = new ManualScheduler();
+        DataDispatcher dispatcher = new DataDispatcher(listener, scheduler, 4, 8);
+        dispatcher.setMode(DataDispatcher.Mode.COALESCED, DataDispatcher.FRAME_INTERVAL);
+
+        read(dispatcher, "uno ");
+        read(dispatcher, "dos ");
+        read(dispatcher, "tres");
+        // las tres lecturas esperan a la misma entrega diferida
+        assertEquals(1, scheduler.tasks.size());
+        assertEquals(DataDispatcher.FRAME_INTERVAL, scheduler.lastDelay);
+        assertEquals(3, dispatcher.getPendingChunks());
+        assertEquals(0, listener.calls);
+
+        assertEquals(1, scheduler.runAll());
+        assertEquals(1, listener.calls);
+        assertEquals("uno dos tres", listener.received.toString());
+        assertEquals(3, dispatcher.getDeliveredChunks());
+        assertEquals(1, dispatcher.getDispatches());
+
+        // después de entregar, la siguiente lectura agenda otro intervalo
+        read(dispatcher, "cuatro");
+        assertEquals(1, scheduler.runAll());
+        assertEquals(2, listener.calls);
+        assertEquals(0, dispatcher.getPendingChunks());
+    }
+
+    @Test
+    public void dropCountsWhatASlowListenerMisses() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ManualScheduler slow = new ManualScheduler();
+        DataDispatcher dispatcher = new DataDispatcher(listener, slow, 4, 8);
+        dispatcher.setOverflow(DataDispatcher.Overflow.DROP);
+
+        for (int i = 0; i < 4; i++)
+            read(dispatcher, "dato" + i);
+        // el anillo está lleno: el lector sigue pero descarta
+        read(dispatcher, "perdido");
+        read(dispatcher, "otro");
+        assertEquals(2, dispatcher.getDroppedChunks());
+        assertEquals("perdido".length() + "otro".length(), dispatcher.getDroppedBytes());
+        assertEquals(2, dispatcher.getOverflows());
+        assertEquals(4, dispatcher.getDeliveredChunks());
+
+        assertEquals(4, slow.runAll());
+        assertEquals("dato0dato1dato2dato3", listener.received.toString());
+        // con buffers libres ya no se descarta
+        read(dispatcher, "nuevo");
+        assertEquals(1, slow.runAll());
+        assertEquals(2, dispatcher.getDroppedChunks());
+        assertTrue(listener.received.toString().endsWith("nuevo"));
+    }
+
+    @Test
+    public void blockHoldsTheReaderUntilTheListenerCatchesUp() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        ManualScheduler slow = new ManualScheduler();
+        final DataDispatcher dispatcher = new DataDispatcher(listener, slow, 4, 8);
+        dispatcher.setOverflow(DataDispatcher.Overflow.BLOCK);
+        for (int i = 0; i < 4; i++)
+            read(dispatcher, "dato" + i);
+
+        final CountDownLatch obtained = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read(dispatcher, "dato4");
+                    obtained.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        reader.start();
+        // sin buffers libres el lector espera en lugar de descartar
+        assertFalse(obtained.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, dispatcher.getOverflows());
+
+        // entregar una lectura libera su buffer y el lector sigue
+        slow.tasks.poll().run();
+        assertTrue(obtained.await(1, TimeUnit.SECONDS));
+        reader.join(1000);
+        slow.runAll();
+        assertEquals("dato0dato1dato2dato3dato4", listener.received.toString());
+        assertEquals(0, dispatcher.getDroppedChunks());
+    }
+}
@@ -0,0 +1,105 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.DeviceRegistry;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    private static class MemoryStore implements DeviceRegistry.Store {
+        Set<String> records = new HashSet<String>();
+
+        @Override
+        public Set<String> load() {
+            return records;
+        }
+
+        @Override
+        public void save(Set<String> records) {
+            this.records = new HashSet<String>(records);
+        }
+    }
+
+    @Test
+    public void upsertKeepsPositionAndBatchesChanges() {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.upsert("00:11", "HC-05", (short) -70, 100, false);
+        registry.upsert("00:22", null, DeviceRegistry.UNKNOWN_RSSI, 110, true);
+        // el mismo dispositivo varias veces en un escaneo
+        for (int i = 0; i < 50; i++)
+            registry.upsert("00:11", null, (short) (-60 - i % 3), 200 + i, false);
+
+        assertEquals(2, registry.size());
+        assertEquals("00:11", registry.get(0).getAddress());
+        assertEquals("HC-05", registry.get(0).getName());
+        assertEquals(-61, registry.get(0).getRssi());
+        assertEquals(249, registry.get(0).getLastSeen());
+        assertTrue(registry.get("00:22").isPaired());
+
+        DeviceRegistry.Changes changes = registry.takeChanges();
+        assertEquals(2, changes.added);
+        assertEquals(1, changes.updated);
+        assertTrue(registry.takeChanges().isEmpty());
+    }
+
+    @Test
+    public void cacheSurvivesRestartAndOrdersReconnects() {
+        MemoryStore store = new MemoryStore();
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.load(store);
+        registry.upsert("00:11", "HC-05", (short) -70, 100, false);
+        registry.upsert("00:22", "Radio|2", (short) -50, 100, false);
+        registry.upsert("00:33", null, DeviceRegistry.UNKNOWN_RSSI, 0, true);
+        registry.markConnected("00:11", null, 500);
+        registry.markConnected("00:22", null, 900);
+        // el emparejado que nunca se vio ni se conectó no se guarda
+        assertEquals(2, store.records.size());
+
+        DeviceRegistry restored = new DeviceRegistry();
+        restored.load(store);
+        assertEquals(2, restored.size());
+        assertEquals("Radio|2", restored.get("00:22").getName());
+        assertEquals(-70, restored.get("00:11").getRssi());
+        List<DeviceRegistry.Entry> candidates = restored.getReconnectCandidates();
+        assertEquals("00:22", candidates.get(0).getAddress());
+        assertEquals("00:11", candidates.get(1).getAddress());
+
+        for (int i = 0; i < 2 * DeviceRegistry.MAX_CACHED; i++)
+            restored.upsert("AA:" + i, null, (short) -80, 1000 + i, false);
+        restored.save();
+        assertEquals(DeviceRegistry.MAX_CACHED, store.records.size());
+        assertTrue(store.records.contains("AA:63|-80|1063|0|"));
+    }
+
+    @Test
+    public void pairedListOnlyReportsRealChanges() {
+        DeviceRegistry registry = new DeviceRegistry();
+        Map<String, String> paired = new HashMap<String, String>();
+        paired.put("00:11", "HC-05");
+        paired.put("00:22", "HC-06");
+        registry.updatePaired(paired);
+        assertEquals(2, registry.takeChanges().added);
+
+        // cada onResume vuelve a leer los mismos emparejados
+        registry.updatePaired(paired);
+        assertTrue(registry.takeChanges().isEmpty());
+
+        paired.remove("00:22");
+        paired.put("00:11", "Radio");
+        registry.updatePaired(paired);
+        DeviceRegistry.Changes changes = registry.takeChanges();
+        assertEquals(0, changes.added);
+        assertEquals(2, changes.updated);
+        assertEquals("Radio", registry.get("00:11").getName());
+        assertFalse(registry.get("00:22").isPaired());
+        assertEquals(2, registry.size());
+    }
+}
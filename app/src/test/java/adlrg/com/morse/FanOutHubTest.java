@@ -0,0 +1,145 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.FanOutHub;
+import com.adlrg.bluetooth.TcpGateway;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class FanOutHubTest {
+
+    /**
+     * Guarda las tareas hasta que se llame a runAll: un suscriptor lento
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty())
+                tasks.remove(0).run();
+        }
+    }
+
+    private static class RecordingSink implements FanOutHub.Sink {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        long skipped;
+        boolean closed;
+
+        @Override
+        public void onData(byte[] buffer, int offset, int length) {
+            received.write(buffer, offset, length);
+        }
+
+        @Override
+        public void onSkipped(long bytes) {
+            skipped += bytes;
+        }
+
+        @Override
+        public void onClosed() {
+            closed = true;
+        }
+    }
+
+    private static byte[] chunk(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (start + i);
+        return data;
+    }
+
+    @Test
+    public void slowSubscribersAreDroppedOrSkippedWithoutStoppingOthers() {
+        FanOutHub hub = new FanOutHub(64);
+        RecordingSink fast = new RecordingSink();
+        RecordingSink dropped = new RecordingSink();
+        RecordingSink skipping = new RecordingSink();
+        ManualExecutor slowDrop = new ManualExecutor();
+        ManualExecutor slowSkip = new ManualExecutor();
+        hub.subscribe(fast, DIRECT, FanOutHub.Overflow.DROP);
+        FanOutHub.Subscription dropSubscription = hub.subscribe(dropped, slowDrop, FanOutHub.Overflow.DROP);
+        FanOutHub.Subscription skipSubscription = hub.subscribe(skipping, slowSkip, FanOutHub.Overflow.SKIP);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        // 40 bytes: caben en el anillo, da la vuelta en la segunda pasada
+        for (int i = 0; i < 2; i++) {
+            byte[] data = chunk(i * 40, 40);
+            hub.publish(data, 0, data.length);
+            expected.write(data, 0, data.length);
+            slowDrop.runAll();
+            slowSkip.runAll();
+        }
+        assertArrayEquals(expected.toByteArray(), dropped.received.toByteArray());
+        assertArrayEquals(expected.toByteArray(), skipping.received.toByteArray());
+
+        // los lentos no corren mientras el lector publica 100 bytes
+        for (int i = 0; i < 5; i++) {
+            byte[] data = chunk(80 + i * 20, 20);
+            hub.publish(data, 0, data.length);
+            expected.write(data, 0, data.length);
+        }
+        assertEquals(100, skipSubscription.getLag());
+        slowDrop.runAll();
+        slowSkip.runAll();
+
+        assertArrayEquals(expected.toByteArray(), fast.received.toByteArray());
+        assertTrue(dropped.closed);
+        assertTrue(dropSubscription.isClosed());
+        assertEquals(2, hub.getSubscriberCount());
+        assertFalse(skipping.closed);
+        assertEquals(100, skipping.skipped);
+        assertEquals(0, skipSubscription.getLag());
+
+        byte[] data = chunk(7, 10);
+        hub.publish(data, 0, data.length);
+        slowSkip.runAll();
+        assertEquals(90, skipping.received.size());
+        assertEquals(7, skipping.received.toByteArray()[80]);
+    }
+
+    @Test
+    public void gatewayStreamsTheSameBytesToEveryClient() throws Exception {
+        FanOutHub hub = new FanOutHub();
+        TcpGateway gateway = new TcpGateway(hub, 0);
+        Socket first = new Socket(InetAddress.getByName(null), gateway.getPort());
+        Socket second = new Socket(InetAddress.getByName(null), gateway.getPort());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (gateway.getClientCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(2, hub.getSubscriberCount());
+
+        byte[] data = chunk(0, 3000);
+        for (int off = 0; off < data.length; off += 100)
+            hub.publish(data, off, 100);
+        for (Socket socket : new Socket[]{first, second}) {
+            socket.setSoTimeout(1000);
+            byte[] received = new byte[data.length];
+            new DataInputStream(socket.getInputStream()).readFully(received);
+            assertArrayEquals(data, received);
+        }
+
+        gateway.close();
+        assertEquals(-1, first.getInputStream().read());
+        deadline = System.currentTimeMillis() + 1000;
+        while (hub.getSubscriberCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(0, hub.getSubscriberCount());
+        first.close();
+        second.close();
+    }
+}
@@ -0,0 +1,291 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.BinaryFrameDecoder;
+import com.adlrg.bluetooth.BinaryFrameEncoder;
+import com.adlrg.bluetooth.FlowController;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.SerialConnection;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class FlowControllerTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void creditsLimitWhatIsInFlight() {
+        FlowController flow = new FlowController(FlowController.Mode.CREDITS, 64, 16, 1000);
+        flow.reset(0);
+        assertEquals(64, flow.acquire(100, 0));
+        assertEquals(0, flow.acquire(36, 1 * MS));
+        // sin créditos se espera hasta el plazo
+        assertEquals(999 * MS, flow.getWaitNanos(2 * MS));
+
+        byte[] received = {'o', FlowController.CREDIT, 'k', FlowController.CREDIT};
+        assertEquals(2, flow.onReceived(received, 0, received.length, 3 * MS));
+        assertEquals('o', received[0]);
+        assertEquals('k', received[1]);
+        assertEquals(32, flow.getBytesDelivered());
+        assertEquals(32, flow.acquire(36, 4 * MS));
+        assertEquals(1, flow.getStalls());
+        assertEquals(FlowController.Mode.CREDITS, flow.getMode());
+    }
+
+    @Test
+    public void fallsBackToXonXoffWithoutCredits() {
+        FlowController flow = new FlowController(FlowController.Mode.CREDITS, 64, 16, 1000);
+        flow.reset(0);
+        assertEquals(64, flow.acquire(64, 0));
+        assertEquals(0, flow.acquire(10, 10 * MS));
+        assertEquals(0, flow.acquire(10, 500 * MS));
+        assertEquals(10, flow.acquire(10, 1010 * MS));
+        assertEquals(FlowController.Mode.XON_XOFF, flow.getMode());
+        assertEquals(1, flow.getFallbacks());
+
+        byte[] xoff = {FlowController.XOFF};
+        flow.onReceived(xoff, 0, 1, 1015 * MS);
+        assertTrue(flow.isPaused());
+        assertEquals(0, flow.acquire(10, 1020 * MS));
+        assertEquals(-1, flow.getWaitNanos(1020 * MS));
+        // después de un XOFF se envía más despacio que antes
+        assertTrue(flow.getRate() > 0);
+
+        byte[] xon = {FlowController.XON};
+        flow.onReceived(xon, 0, 1, 1030 * MS);
+        assertFalse(flow.isPaused());
+        assertEquals(1, flow.getXoffs());
+    }
+
+    @Test
+    public void binaryFramesSurviveTheControlBytes() {
+        byte[] payload = new byte[256];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+        BinaryFrameEncoder encoder = new BinaryFrameEncoder(true, payload.length);
+        int n = encoder.encode(7, encoder.nextSequence(), payload, 0, payload.length);
+        byte[] escaped = new byte[2 * n + 1];
+        int length = FlowController.escape(encoder.getBuffer(), 0, n, escaped, 0);
+        // un crédito del dispositivo en medio del mensaje
+        System.arraycopy(escaped, 100, escaped, 101, length - 100);
+        escaped[100] = FlowController.CREDIT;
+        length++;
+
+        final List<byte[]> frames = new ArrayList<byte[]>();
+        BinaryFrameDecoder decoder = new BinaryFrameDecoder(true, payload.length, new BinaryFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int sequence, byte[] buffer, int offset, int length) {
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+
+            @Override
+            public void onCorruptFrame() {
+                fail("corrupt frame");
+            }
+        });
+        FlowController flow = new FlowController(FlowController.Mode.CREDITS, 64, 16, 1000);
+        flow.reset(0);
+        flow.acquire(64, 0);
+        // de a un byte, así cada escape queda al final de un trozo
+        for (int i = 0; i < length; i++) {
+            byte[] chunk = {escaped[i]};
+            decoder.feed(chunk, 0, flow.onReceived(chunk, 0, 1, MS));
+        }
+        assertEquals(1, frames.size());
+        assertArrayEquals(payload, frames.get(0));
+        assertEquals(16, flow.getBytesDelivered());
+    }
+
+    @Test
+    public void pacerSpreadsWritesAtTheRate() {
+        FlowController flow = new FlowController(FlowController.Mode.XON_XOFF, 64, 16, 1000);
+        flow.setRate(1000, false);
+        flow.reset(0);
+        long now = 0;
+        long sent = 0;
+        while (now <= 1000 * MS) {
+            int allowed = flow.acquire(512, now);
+            sent += allowed;
+            long wait = flow.getWaitNanos(now);
+            now += allowed > 0 ? 0 : Math.max(wait, 1);
+        }
+        // la ráfaga inicial más un segundo al ritmo
+        assertEquals(1000 + 16, sent, 16);
+    }
+
+    @Test
+    public void xonBeforeWaitingIsNotLost() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        final AtomicInteger refused = new AtomicInteger();
+        FlowController flow = new FlowController(FlowController.Mode.XON_XOFF) {
+            @Override
+            public long getWaitNanos(long nowNanos) {
+                long wait = super.getWaitNanos(nowNanos);
+                if (wait < 0 && refused.getAndIncrement() == 0) {
+                    // el XON llega entre la negativa y que la cola se ponga a esperar
+                    byte[] xon = {XON};
+                    onReceived(xon, 0, 1);
+                }
+                return wait;
+            }
+        };
+        flow.setRate(0, false);
+        connection.setFlowController(flow);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+        byte[] xoff = {FlowController.XOFF};
+        flow.onReceived(xoff, 0, 1);
+
+        assertTrue(connection.write("hola".getBytes(), 0, 4, null));
+        InputStream in = transport.getDeviceInputStream();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (in.available() < 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(4, in.available());
+        assertEquals(1, refused.get());
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    /**
+     * Arduino simulado: un buffer de 64 bytes que se vacía a ~19200 baudios y
+     * devuelve un crédito cada 16 bytes, o manda XOFF a medio llenar. Sin
+     * control de flujo perdería datos.
+     */
+    private static class SlowDevice extends Thread {
+        static final int RX_BUFFER = 64;
+        static final long BYTE_NANOS = 520000;
+
+        final InputStream in;
+        final OutputStream out;
+        final boolean credits;
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicInteger overruns = new AtomicInteger();
+        final int expected;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        SlowDevice(PipedTransport transport, boolean credits, int expected) {
+            in = transport.getDeviceInputStream();
+            out = transport.getDeviceOutputStream();
+            this.credits = credits;
+            this.expected = expected;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            byte[] chunk = new byte[256];
+            int buffered = 0;
+            int drained = 0;
+            long lastDrain = System.nanoTime();
+            boolean xoff = false;
+            try {
+                while (received.size() < expected) {
+                    if (in.available() > 0) {
+                        int n = in.read(chunk, 0, chunk.length);
+                        int fits = Math.min(n, RX_BUFFER - buffered);
+                        if (fits < n) overruns.addAndGet(n - fits);
+                        received.write(chunk, 0, fits);
+                        buffered += fits;
+                    }
+                    long now = System.nanoTime();
+                    int drain = (int) Math.min(buffered, (now - lastDrain) / BYTE_NANOS);
+                    if (drain > 0) {
+                        buffered -= drain;
+                        lastDrain += drain * BYTE_NANOS;
+                        drained += drain;
+                        for (; credits && drained >= 16; drained -= 16)
+                            out.write(FlowController.CREDIT);
+                    } else if (buffered == 0) {
+                        lastDrain = now;
+                    }
+                    if (!credits && !xoff && buffered > RX_BUFFER / 2) {
+                        out.write(FlowController.XOFF);
+                        xoff = true;
+                    } else if (xoff && buffered < RX_BUFFER / 4) {
+                        out.write(FlowController.XON);
+                        xoff = false;
+                    }
+                    Thread.sleep(0, 200000);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            done.countDown();
+        }
+    }
+
+    /**
+     * @param rate ritmo inicial; con XON/XOFF hace falta uno cercano al del
+     *             enlace porque una ráfaga llenaría el buffer antes del XOFF
+     */
+    private void sendToSlowDevice(FlowController.Mode mode, long rate) throws Exception {
+        PipedTransport transport = new PipedTransport();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        FlowController flow = new FlowController(mode);
+        flow.setRate(rate, true);
+        connection.setFlowController(flow);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        byte[] message = new byte[512];
+        for (int i = 0; i < message.length; i++)
+            message[i] = (byte) ('a' + i % 26);
+        SlowDevice device = new SlowDevice(transport, mode == FlowController.Mode.CREDITS, 4 * message.length);
+        device.start();
+        for (int i = 0; i < 4; i++)
+            assertTrue(connection.write(message, 0, message.length, null));
+        // mientras tanto el dispositivo manda datos que no deben mezclarse con el control
+        transport.getDeviceOutputStream().write("hola\0".getBytes());
+
+        assertTrue(device.done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, device.overruns.get());
+        byte[] received = device.received.toByteArray();
+        for (int i = 0; i < received.length; i++)
+            assertEquals(message[i % message.length], received[i]);
+        assertEquals(mode, flow.getMode());
+        assertEquals(4 * message.length, flow.getBytesSent());
+        assertTrue(flow.getStalls() > 0);
+        Thread.sleep(20);
+        synchronized (listener) {
+            assertEquals("hola\0", listener.received.toString());
+        }
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void creditsKeepASlowDeviceFromOverrunning() throws Exception {
+        sendToSlowDevice(FlowController.Mode.CREDITS, 0);
+    }
+
+    @Test
+    public void xonXoffKeepsASlowDeviceFromOverrunning() throws Exception {
+        sendToSlowDevice(FlowController.Mode.XON_XOFF, 2200);
+    }
+}
@@ -0,0 +1,79 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.FrameDecoder;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    private final List<String> frames = new ArrayList<String>();
+    private int oversized;
+
+    private final FrameDecoder.FrameListener listener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length));
+        }
+
+        @Override
+        public void onOversizedFrame() {
+            oversized++;
+        }
+    };
+
+    private static void feed(FrameDecoder decoder, String data) {
+        byte[] bytes = data.getBytes();
+        decoder.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void nul_splitsSeveralFramesAndJoinsPartialOnes() {
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.NUL, 16, listener);
+        feed(decoder, "uno\0dos\0tr");
+        feed(decoder, "es\0");
+        assertEquals(3, frames.size());
+        assertEquals("uno", frames.get(0));
+        assertEquals("dos", frames.get(1));
+        assertEquals("tres", frames.get(2));
+        assertEquals(3, decoder.getFrames());
+    }
+
+    @Test
+    public void nul_discardsOversizedFrameAndResynchronizes() {
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.NUL, 4, listener);
+        feed(decoder, "abc");
+        feed(decoder, "defgh");
+        feed(decoder, "ij\0ok\0");
+        assertEquals(1, oversized);
+        assertEquals(1, frames.size());
+        assertEquals("ok", frames.get(0));
+    }
+
+    @Test
+    public void crlf_stripsCarriageReturnAcrossChunks() {
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.CRLF, 16, listener);
+        feed(decoder, "hola\r");
+        feed(decoder, "\nmundo\n");
+        assertEquals(2, frames.size());
+        assertEquals("hola", frames.get(0));
+        assertEquals("mundo", frames.get(1));
+    }
+
+    @Test
+    public void lengthPrefixed_handlesSplitHeaderAndBody() {
+        FrameDecoder decoder = new FrameDecoder(FrameDecoder.Framing.LENGTH_PREFIXED, 2, 16, listener);
+        decoder.feed(new byte[]{0}, 0, 1);
+        decoder.feed(new byte[]{3, 'a', 'b'}, 0, 3);
+        decoder.feed(new byte[]{'c', 0, 0, 0, 2, 'x', 'y', 0, 20}, 0, 9);
+        assertEquals(3, frames.size());
+        assertEquals("abc", frames.get(0));
+        assertEquals("", frames.get(1));
+        assertEquals("xy", frames.get(2));
+        assertEquals(1, oversized);
+    }
+}
@@ -0,0 +1,93 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.Histogram;
+import com.adlrg.bluetooth.LinkMetrics;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.SerialConnection;
+import com.adlrg.bluetooth.SerialConnectionManager;
+import com.adlrg.bluetooth.StreamingListener;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class LinkMetricsTest {
+
+    @Test
+    public void histogram_percentilesWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 10000; i++)
+            histogram.record(i);
+        assertEquals(10000, histogram.getCount());
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+        assertEquals(10000, histogram.getMax());
+        Histogram.Summary summary = histogram.summarize();
+        assertEquals(5000, summary.p50, 5000 / 16);
+        assertEquals(9900, summary.p99, 9900 / 16);
+        assertTrue(summary.p99 <= summary.max);
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void countsTrafficOfManagedConnections() throws Exception {
+        SerialConnectionManager manager = new SerialConnectionManager(DIRECT, 1);
+        LinkMetrics metrics = new LinkMetrics();
+        manager.setLinkMetrics(metrics);
+        PipedTransport transport = new PipedTransport();
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(6);
+        SerialConnection connection = manager.open("device", transport, new StreamingListener() {
+            @Override
+            public void onError(Exception e) {
+            }
+
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+
+            @Override
+            public void onData(byte[] buffer, int length) {
+                for (int i = 0; i < length; i++)
+                    received.countDown();
+            }
+        });
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+
+        transport.getDeviceOutputStream().write("hola\0\0".getBytes());
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        byte[] message = "K\0".getBytes();
+        assertTrue(connection.write(message));
+        assertTrue(connection.write(message));
+        InputStream deviceIn = transport.getDeviceInputStream();
+        for (int n = 0; n < 4; n++)
+            assertTrue(deviceIn.read() >= 0);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (metrics.snapshot(manager.getConnections()).framesOut < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        LinkMetrics.Snapshot snapshot = manager.snapshotMetrics();
+        assertEquals(6, snapshot.bytesIn);
+        assertEquals(4, snapshot.bytesOut);
+        assertEquals(2, snapshot.framesOut);
+        assertEquals(1, snapshot.connections);
+        assertEquals(0, snapshot.pendingBytes);
+        assertTrue(snapshot.maxPendingBytes >= 2);
+        assertEquals(snapshot.reads, snapshot.readSizes.count);
+        assertEquals(snapshot.reads, snapshot.dispatchLagMicros.count);
+        manager.shutdown();
+    }
+}
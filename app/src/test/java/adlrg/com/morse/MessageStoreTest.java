@@ -0,0 +1,160 @@
+package adlrg.com.morse;
+
+import com.adlrg.morse.MessageStore;
+import com.adlrg.morse.TerminalBuffer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class MessageStoreTest {
+
+    private static class Page implements MessageStore.PageListener {
+        final CountDownLatch done = new CountDownLatch(1);
+        long first;
+        List<MessageStore.Message> messages;
+
+        @Override
+        public void onPage(long first, List<MessageStore.Message> messages) {
+            this.first = first;
+            this.messages = messages;
+            done.countDown();
+        }
+    }
+
+    private static Page load(MessageStore store, long before, int max) throws InterruptedException {
+        Page page = new Page();
+        store.loadPage(before, max, page, DIRECT);
+        assertTrue(page.done.await(1, TimeUnit.SECONDS));
+        return page;
+    }
+
+    @Test
+    public void pagesBackwardsAndSurvivesReopen() throws Exception {
+        File file = File.createTempFile("historial", ".log");
+        File index = new File(file.getPath() + ".idx");
+        file.deleteOnExit();
+        index.deleteOnExit();
+
+        MessageStore store = MessageStore.getInstance(file);
+        for (int i = 0; i < 150; i++)
+            store.append("Yo : mensaje " + i + "\n");
+        Page latest = load(store, MessageStore.LATEST, 100);
+        assertEquals(50, latest.first);
+        assertEquals(100, latest.messages.size());
+        assertEquals("Yo : mensaje 50\n", latest.messages.get(0).text);
+        assertEquals("Yo : mensaje 149\n", latest.messages.get(99).text);
+        Page older = load(store, latest.first, 100);
+        assertEquals(0, older.first);
+        assertEquals(50, older.messages.size());
+        assertEquals("Yo : mensaje 49\n", older.messages.get(49).text);
+        store.close();
+        // 150 mensajes: entradas para el 0, 64 y 128
+        assertEquals(3 * 8, index.length());
+
+        // una escritura interrumpida deja un registro a medias
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(raw.length());
+        raw.writeInt(1000);
+        raw.write(new byte[5]);
+        raw.close();
+
+        store = MessageStore.getInstance(file);
+        store.append("ñandú\n");
+        Page reopened = load(store, MessageStore.LATEST, 2);
+        assertEquals(149, reopened.first);
+        assertEquals("Yo : mensaje 149\n", reopened.messages.get(0).text);
+        assertEquals("ñandú\n", reopened.messages.get(1).text);
+        assertEquals("Yo : mensaje 70\n", load(store, 71, 1).messages.get(0).text);
+        store.close();
+
+        // sin índice se reconstruye
+        assertTrue(index.delete());
+        store = MessageStore.getInstance(file);
+        assertEquals("Yo : mensaje 130\n", load(store, 131, 1).messages.get(0).text);
+        assertEquals(151, load(store, MessageStore.LATEST, 1).first + 1);
+        store.close();
+    }
+
+    @Test
+    public void reopenWaitsForThePreviousClose() throws Exception {
+        File file = File.createTempFile("historial", ".log");
+        file.deleteOnExit();
+        new File(file.getPath() + ".idx").deleteOnExit();
+
+        MessageStore store = MessageStore.getInstance(file);
+        // la actividad recreada recibe la misma instancia
+        assertSame(store, MessageStore.getInstance(file));
+        store.append("primero\n");
+        // detiene el hilo del historial para que el cierre quede pendiente
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        store.loadPage(MessageStore.LATEST, 1, new MessageStore.PageListener() {
+            @Override
+            public void onPage(long first, List<MessageStore.Message> messages) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }, DIRECT);
+        assertTrue(blocked.await(1, TimeUnit.SECONDS));
+        store.append("último\n");
+        store.close();
+
+        MessageStore reopened = MessageStore.getInstance(file);
+        assertNotSame(store, reopened);
+        reopened.append("otro\n");
+        Thread.sleep(50);
+        release.countDown();
+
+        Page latest = load(reopened, MessageStore.LATEST, 3);
+        assertEquals(0, latest.first);
+        assertEquals(3, latest.messages.size());
+        assertEquals("primero\n", latest.messages.get(0).text);
+        assertEquals("último\n", latest.messages.get(1).text);
+        assertEquals("otro\n", latest.messages.get(2).text);
+        reopened.close();
+    }
+
+    @Test
+    public void terminalPrependFillsOnlyFreeSpace() {
+        TerminalBuffer buffer = new TerminalBuffer(4);
+        buffer.append("nuevo\n");
+        buffer.append("otro\n");
+        // solo quedan dos lugares: se conservan las líneas más recientes
+        assertEquals(2, buffer.prepend(Arrays.asList("a\n", "b\nc\n")));
+        assertEquals(4, buffer.size());
+        assertEquals("b", buffer.get(0));
+        assertEquals("c", buffer.get(1));
+        assertEquals("nuevo", buffer.get(2));
+        assertEquals(0, buffer.prepend(Arrays.asList("x\n")));
+    }
+
+    @Test
+    public void terminalPrependAfterTheRingWrapped() {
+        TerminalBuffer buffer = new TerminalBuffer(4);
+        buffer.append("1\n2\n3\n4\n5\n");
+        assertEquals(1, buffer.getDropped());
+        buffer.clear();
+        buffer.append("nuevo");
+        // un texto sin '\n' final también es una línea completa
+        assertEquals(3, buffer.prepend(Arrays.asList("a\nb", "c\nd\n")));
+        assertEquals("b", buffer.get(0));
+        assertEquals("c", buffer.get(1));
+        assertEquals("d", buffer.get(2));
+        assertEquals("nuevo", buffer.get(3));
+        // la línea abierta sigue siendo la última después de agregar al principio
+        buffer.append(" texto\n");
+        assertEquals("nuevo texto", buffer.get(3));
+    }
+}
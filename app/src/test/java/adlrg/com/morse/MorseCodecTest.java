@@ -0,0 +1,158 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.FrameDecoder;
+import com.adlrg.morse.KeyingPacket;
+import com.adlrg.morse.KeyingReceiver;
+import com.adlrg.morse.MorseDecoder;
+import com.adlrg.morse.MorseEncoder;
+import com.adlrg.morse.MorseTiming;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MorseCodecTest {
+
+    @Test
+    public void timing_paris() {
+        MorseTiming timing = new MorseTiming(20);
+        assertEquals(60, timing.dotMillis);
+        assertEquals(180, timing.dashMillis);
+        assertEquals(180, timing.charGapMillis);
+        assertEquals(420, timing.wordGapMillis);
+
+        MorseTiming farnsworth = new MorseTiming(20, 10);
+        assertEquals(60, farnsworth.dotMillis);
+        assertTrue(farnsworth.charGapMillis > timing.charGapMillis);
+        assertTrue(farnsworth.wordGapMillis > timing.wordGapMillis);
+    }
+
+    @Test
+    public void encoder_emitsRunsForEachElementAndGap() {
+        MorseEncoder encoder = new MorseEncoder(new MorseTiming(20));
+        byte[] out = new byte[256];
+        assertEquals(3, encoder.encode("e t", 0, 3, out, 0, out.length));
+        int length = encoder.getEncodedLength();
+        // E, espacio de palabra, T
+        assertEquals(3 * KeyingPacket.RUN_BYTES, length);
+        assertTrue(KeyingPacket.isKeyDown(out[0]));
+        assertEquals(60, KeyingPacket.millis(out[0], out[1]));
+        assertFalse(KeyingPacket.isKeyDown(out[2]));
+        assertEquals(420, KeyingPacket.millis(out[2], out[3]));
+        assertEquals(180, KeyingPacket.millis(out[4], out[5]));
+        for (int i = 0; i < length; i++)
+            assertTrue(out[i] != 0);
+    }
+
+    private static String roundTrip(String text, MorseTiming sent, int assumedWpm, int chunk) {
+        final StringBuilder decoded = new StringBuilder();
+        MorseDecoder decoder = new MorseDecoder(assumedWpm, new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(char c) {
+                decoded.append(c);
+            }
+        });
+        MorseEncoder encoder = new MorseEncoder(sent);
+        byte[] out = new byte[1024];
+        encoder.encode(text, 0, text.length(), out, 0, out.length);
+        int length = encoder.getEncodedLength();
+        for (int i = 0; i < length; i += chunk)
+            decoder.feed(out, i, Math.min(chunk, length - i));
+        decoder.flush();
+        return decoded.toString();
+    }
+
+    @Test
+    public void decoder_roundTripsEncoderOutput() {
+        assertEquals("PARIS SOS 73", roundTrip("paris sos 73", new MorseTiming(20), 20, 1));
+        assertEquals("CQ DE XE1", roundTrip("CQ DE XE1", new MorseTiming(25), 25, 7));
+    }
+
+    @Test
+    public void decoder_adaptsToSpeedChange() {
+        // el decodificador espera 12 ppm y le llegan 30 ppm
+        String decoded = roundTrip("EEEEEE TEST TEST", new MorseTiming(30), 12, 3);
+        assertTrue(decoded, decoded.endsWith("TEST TEST"));
+    }
+
+    @Test
+    public void encoder_stopsWhenOutputIsFullAndResumes() {
+        MorseEncoder encoder = new MorseEncoder(new MorseTiming(20));
+        byte[] out = new byte[12];
+        assertEquals(1, encoder.encode("SOS", 0, 3, out, 0, out.length));
+        assertEquals(5 * KeyingPacket.RUN_BYTES, encoder.getEncodedLength());
+        assertEquals(0, encoder.encode("SOS", 1, 3, out, 0, 10));
+        assertEquals(0, encoder.getEncodedLength());
+        out = new byte[64];
+        assertEquals(2, encoder.encode("SOS", 1, 3, out, 0, out.length));
+        // espacio entre caracteres + O (5 tramos) + espacio + S (5 tramos)
+        assertEquals(12 * KeyingPacket.RUN_BYTES, encoder.getEncodedLength());
+        assertFalse(KeyingPacket.isKeyDown(out[0]));
+        assertEquals(180, KeyingPacket.millis(out[0], out[1]));
+    }
+
+    /**
+     * Arma un paquete como MainActivity: el tipo, los tramos y el '\0' final
+     */
+    private static void sendMorse(MorseEncoder encoder, String text, FrameDecoder link) {
+        byte[] packet = new byte[512];
+        encoder.encode(text, 0, text.length(), packet, 1, packet.length - 2);
+        int length = encoder.getEncodedLength();
+        packet[0] = KeyingPacket.FRAME_TYPE;
+        packet[length + 1] = '\0';
+        link.feed(packet, 0, length + 2);
+    }
+
+    @Test
+    public void receiver_deliversTheLastWordOfEachPacket() {
+        final List<String> words = new ArrayList<String>();
+        final KeyingReceiver receiver = new KeyingReceiver(20, new KeyingReceiver.Listener() {
+            @Override
+            public void onWord(String word, int wpm) {
+                words.add(word);
+            }
+        });
+        FrameDecoder link = new FrameDecoder(FrameDecoder.Framing.NUL, 1024, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                assertTrue(receiver.onFrame(buffer, offset, length));
+            }
+
+            @Override
+            public void onOversizedFrame() {
+                fail();
+            }
+        });
+        MorseEncoder encoder = new MorseEncoder(new MorseTiming(20));
+
+        sendMorse(encoder, "cq de", link);
+        // la última palabra no espera al siguiente paquete
+        assertEquals(2, words.size());
+        assertEquals("CQ", words.get(0));
+        assertEquals("DE", words.get(1));
+
+        // el siguiente paquete empieza con el espacio de palabra pendiente
+        sendMorse(encoder, "xe1", link);
+        assertEquals(3, words.size());
+        assertEquals("XE1", words.get(2));
+    }
+
+    @Test
+    public void receiver_leavesAccentedTextToTheTextPath() throws Exception {
+        KeyingReceiver receiver = new KeyingReceiver(20, new KeyingReceiver.Listener() {
+            @Override
+            public void onWord(String word, int wpm) {
+                fail(word);
+            }
+        });
+        // 0xC3 y 0xD1 tienen la forma de una cabecera de tramo
+        for (String text : new String[]{"ánimo", "Ésta", "ñandú"}) {
+            byte[] bytes = text.getBytes("UTF-8");
+            assertTrue(KeyingPacket.isHead(bytes[0]));
+            assertFalse(text, receiver.onFrame(bytes, 0, bytes.length));
+        }
+    }
+}
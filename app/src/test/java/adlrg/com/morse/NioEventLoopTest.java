@@ -0,0 +1,161 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.NioConnection;
+import com.adlrg.bluetooth.NioEventLoop;
+import com.adlrg.bluetooth.PipeChannelTransport;
+import com.adlrg.bluetooth.SocketChannelTransport;
+import com.adlrg.bluetooth.WritePipeline;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class NioEventLoopTest {
+
+    private final NioEventLoop loop;
+
+    public NioEventLoopTest() throws Exception {
+        loop = new NioEventLoop();
+    }
+
+    @After
+    public void tearDown() {
+        loop.shutdown();
+    }
+
+    private NioConnection open(Object transport, RecordingListener listener) throws Exception {
+        NioConnection connection = transport instanceof PipeChannelTransport
+                ? loop.open((PipeChannelTransport) transport, listener, DIRECT, new DataDispatcher(listener, DIRECT))
+                : loop.open((SocketChannelTransport) transport, listener, DIRECT, new DataDispatcher(listener, DIRECT));
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+        return connection;
+    }
+
+    @Test
+    public void pipeSessionsShareOneLoopAndWritesWrapTheRing() throws Exception {
+        PipeChannelTransport first = new PipeChannelTransport("uno");
+        PipeChannelTransport second = new PipeChannelTransport("dos");
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        NioConnection firstConnection = open(first, firstListener);
+        NioConnection secondConnection = open(second, secondListener);
+        assertEquals(2, loop.getConnectionCount());
+
+        firstListener.expected = new CountDownLatch(4);
+        secondListener.expected = new CountDownLatch(4);
+        first.getDeviceSink().write(ByteBuffer.wrap("uno\0".getBytes()));
+        second.getDeviceSink().write(ByteBuffer.wrap("dos\0".getBytes()));
+        assertTrue(firstListener.expected.await(1, TimeUnit.SECONDS));
+        assertTrue(secondListener.expected.await(1, TimeUnit.SECONDS));
+        assertEquals("uno\0", firstListener.received.toString());
+        assertEquals("dos\0", secondListener.received.toString());
+
+        // más bytes que el anillo de salida: la cola da varias vueltas
+        final int messages = 200;
+        final byte[] message = new byte[300];
+        final AtomicInteger completed = new AtomicInteger();
+        WritePipeline.WriteCallback callback = new WritePipeline.WriteCallback() {
+            @Override
+            public void onComplete() {
+                completed.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        };
+        ByteBuffer expected = ByteBuffer.allocate(messages * message.length);
+        ByteBuffer sent = ByteBuffer.allocate(messages * message.length);
+        Pipe.SourceChannel device = second.getDeviceSource();
+        // sin bloquear, para que un error falle la prueba en lugar de colgarla
+        device.configureBlocking(false);
+        for (int i = 0; i < messages; i++) {
+            for (int j = 0; j < message.length; j++)
+                message[j] = (byte) (i + j);
+            while (!secondConnection.write(message, 0, message.length, callback)) {
+                // cola llena: el dispositivo lee un poco
+                readSome(device, sent);
+            }
+            expected.put(message);
+        }
+        while (sent.hasRemaining())
+            readSome(device, sent);
+        assertArrayEquals(expected.array(), sent.array());
+        long deadline = System.currentTimeMillis() + 1000;
+        while (completed.get() < messages && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(messages, completed.get());
+
+        // el dispositivo cierra su lado; la otra sesión sigue
+        first.getDeviceSink().close();
+        assertTrue(firstListener.disconnected.await(1, TimeUnit.SECONDS));
+        assertFalse(firstConnection.isConnected());
+        assertFalse(firstConnection.write("K\0".getBytes()));
+        assertTrue(secondConnection.isConnected());
+        assertEquals(1, loop.getConnectionCount());
+
+        assertTrue(secondConnection.close());
+        assertTrue(secondListener.disconnected.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Lee lo que haya; falla si en un segundo no llega nada
+     */
+    private static void readSome(Pipe.SourceChannel source, ByteBuffer buffer) throws Exception {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (source.read(buffer) == 0) {
+            assertTrue("no more bytes", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void socketChannelEcho() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread echo = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[256];
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                    socket.close();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        echo.setDaemon(true);
+        echo.start();
+
+        RecordingListener listener = new RecordingListener();
+        NioConnection connection = open(new SocketChannelTransport(server.getLocalPort()), listener);
+        byte[] message = "hola\0".getBytes();
+        listener.expected = new CountDownLatch(message.length);
+        assertTrue(connection.write(message));
+        assertTrue(listener.expected.await(1, TimeUnit.SECONDS));
+        assertEquals("hola\0", listener.received.toString());
+        assertEquals(1, connection.getConnectStats().getConnects());
+
+        assertTrue(connection.close());
+        assertTrue(listener.disconnected.await(1, TimeUnit.SECONDS));
+        server.close();
+    }
+}
@@ -0,0 +1,139 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.ReadBufferPool;
+import com.adlrg.bluetooth.SerialConnection;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class ReadBufferPoolTest {
+
+    @Test
+    public void sizeClassesShareOneBoundedRing() {
+        ReadBufferPool pool = new ReadBufferPool(new RecordingListener(), 8, 64, 2048);
+        // 8 x 64, 4 x 256, 2 x 1024, 2 x 2048
+        assertEquals(16, pool.getCapacity());
+        assertEquals(8 * 64 + 4 * 256 + 2 * 1024 + 2 * 2048, pool.getTotalBytes());
+        assertEquals(2048, pool.getMaxSize());
+
+        List<ReadBufferPool.ReadBuffer> taken = new ArrayList<ReadBufferPool.ReadBuffer>();
+        for (int i = 0; i < 16; i++) {
+            ReadBufferPool.ReadBuffer buffer = pool.tryAcquire(2048);
+            assertNotNull(buffer);
+            taken.add(buffer);
+        }
+        // primero los grandes, después los más cercanos hacia abajo
+        assertEquals(2048, taken.get(0).data.length);
+        assertEquals(64, taken.get(15).data.length);
+        assertNull(pool.tryAcquire(64));
+        assertEquals(0, pool.available());
+
+        pool.release(taken.get(0));
+        assertEquals(2048, pool.tryAcquire(64).data.length);
+    }
+
+    @Test
+    public void readSizeGrowsWithBurstsAndShrinksWhenQuiet() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        DataDispatcher dispatcher = new DataDispatcher(listener, DIRECT, 8, 64, 2048);
+        assertEquals(64, dispatcher.getReadSize());
+
+        // cada lectura llena su buffer: una ráfaga
+        for (int i = 0; i < 3; i++) {
+            ReadBufferPool.ReadBuffer buffer = dispatcher.obtain();
+            dispatcher.dispatch(buffer, buffer.data.length);
+        }
+        assertEquals(2048, dispatcher.getReadSize());
+
+        // una lectura grande que no llena el buffer mantiene el tamaño
+        ReadBufferPool.ReadBuffer partial = dispatcher.obtain();
+        dispatcher.dispatch(partial, 1500);
+        assertEquals(2048, dispatcher.getReadSize());
+
+        for (int i = 0; i < 12; i++) {
+            ReadBufferPool.ReadBuffer buffer = dispatcher.obtain();
+            dispatcher.dispatch(buffer, 5);
+        }
+        assertEquals(64, dispatcher.getReadSize());
+        assertEquals(16, listener.calls);
+        assertEquals(64 + 256 + 1024 + 1500 + 12 * 5, listener.bytes);
+    }
+
+    @Test
+    public void oversizeRequestFallsBackToTheLargestFreeBuffer() {
+        ReadBufferPool pool = new ReadBufferPool(new RecordingListener(), 4, 64, 1024);
+        // 4 x 64, 2 x 256, 2 x 1024
+        assertEquals(1024, pool.tryAcquire(100000).data.length);
+        assertEquals(1024, pool.tryAcquire(100000).data.length);
+        // sin buffers grandes se usa el más cercano hacia abajo
+        assertEquals(256, pool.tryAcquire(100000).data.length);
+    }
+
+    /**
+     * Guarda cada arreglo que recibe onData para ver cuántos distintos usó el lector
+     */
+    private static class IdentityListener extends RecordingListener {
+        final Set<byte[]> arrays = Collections.newSetFromMap(new IdentityHashMap<byte[], Boolean>());
+        volatile int maxLength;
+
+        @Override
+        public synchronized void onData(byte[] buffer, int length) {
+            super.onData(buffer, length);
+            arrays.add(buffer);
+            maxLength = Math.max(maxLength, length);
+        }
+    }
+
+    @Test
+    public void readerLoopRecyclesBuffersAfterEachDispatch() throws Exception {
+        IdentityListener listener = new IdentityListener();
+        DataDispatcher dispatcher = new DataDispatcher(listener, DIRECT, 4, 16, 64);
+        PipedTransport transport = new PipedTransport();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor,
+                writeExecutor, dispatcher);
+        connection.open();
+
+        // lecturas chicas y ráfagas más grandes que el buffer más grande
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        OutputStream device = transport.getDeviceOutputStream();
+        for (int i = 0; i < 300; i++) {
+            byte[] chunk = new byte[i % 10 == 0 ? 1000 : 1 + i % 7];
+            for (int j = 0; j < chunk.length; j++)
+                chunk[j] = (byte) (i + j);
+            device.write(chunk);
+            sent.write(chunk);
+            if (i % 3 == 0) Thread.sleep(1);
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (listener.received() < sent.size() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        assertArrayEquals(sent.toByteArray(), listener.received.toByteArray());
+        assertTrue(listener.calls > 4);
+        assertTrue(listener.maxLength <= 64);
+        // el lector solo usó los buffers del anillo y siempre encontró uno libre
+        assertTrue(listener.arrays.size() <= 4 + 2 + 2);
+        assertEquals(0, dispatcher.getOverflows());
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+}
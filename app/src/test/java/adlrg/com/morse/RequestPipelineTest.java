@@ -0,0 +1,183 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.BinaryFrameDecoder;
+import com.adlrg.bluetooth.BinaryFrameEncoder;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.RequestPipeline;
+import com.adlrg.bluetooth.SerialConnection;
+import com.adlrg.bluetooth.SerialConnectionManager;
+import com.adlrg.bluetooth.StreamingListener;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class RequestPipelineTest {
+
+    private final SerialConnectionManager manager = new SerialConnectionManager(DIRECT, 1);
+    private final PipedTransport transport = new PipedTransport();
+    private final BlockingQueue<byte[]> deviceRequests = new LinkedBlockingQueue<byte[]>();
+    private final BinaryFrameEncoder deviceEncoder = new BinaryFrameEncoder(true, RequestPipeline.DEFAULT_MAX_PAYLOAD);
+    private volatile RequestPipeline pipeline;
+
+    /**
+     * Abre la conexión y arranca un dispositivo que guarda cada petición como [seq, datos...]
+     */
+    private SerialConnection connect() throws InterruptedException {
+        final CountDownLatch connected = new CountDownLatch(1);
+        SerialConnection connection = manager.open("device", transport, new StreamingListener() {
+            @Override
+            public void onError(Exception e) {
+            }
+
+            @Override
+            public void onConnected() {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected() {
+            }
+
+            @Override
+            public void onData(byte[] buffer, int length) {
+                pipeline.feed(buffer, 0, length);
+            }
+        });
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+        final BinaryFrameDecoder decoder = new BinaryFrameDecoder(true, RequestPipeline.DEFAULT_MAX_PAYLOAD,
+                new BinaryFrameDecoder.FrameListener() {
+                    @Override
+                    public void onFrame(int type, int sequence, byte[] buffer, int offset, int length) {
+                        byte[] request = new byte[length + 1];
+                        request[0] = (byte) sequence;
+                        System.arraycopy(buffer, offset, request, 1, length);
+                        deviceRequests.add(request);
+                    }
+
+                    @Override
+                    public void onCorruptFrame() {
+                    }
+                });
+        Thread device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[256];
+                InputStream in = transport.getDeviceInputStream();
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        decoder.feed(buffer, 0, n);
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        device.setDaemon(true);
+        device.start();
+        return connection;
+    }
+
+    /**
+     * Responde a la petición con sus mismos datos seguidos de '!'
+     */
+    private void reply(byte[] request) throws Exception {
+        byte[] payload = Arrays.copyOfRange(request, 1, request.length + 1);
+        payload[payload.length - 1] = '!';
+        int n = deviceEncoder.encode(1, request[0] & 0xFF, payload, 0, payload.length);
+        OutputStream out = transport.getDeviceOutputStream();
+        out.write(deviceEncoder.getBuffer(), 0, n);
+        out.flush();
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    public void repliesMatchedBySequenceWithinWindow() throws Exception {
+        SerialConnection connection = connect();
+        pipeline = new RequestPipeline(connection, manager.getScheduler(), true,
+                RequestPipeline.DEFAULT_MAX_PAYLOAD, 4, 16, 2000);
+        List<RequestPipeline.Request> requests = new ArrayList<RequestPipeline.Request>();
+        for (int i = 0; i < 10; i++)
+            requests.add(pipeline.send(1, ("req" + i).getBytes()));
+
+        int answered = 0;
+        while (answered < 10) {
+            int expected = Math.min(4, 10 - answered);
+            List<byte[]> batch = new ArrayList<byte[]>();
+            for (int i = 0; i < expected; i++) {
+                byte[] request = deviceRequests.poll(1, TimeUnit.SECONDS);
+                assertNotNull(request);
+                batch.add(request);
+            }
+            // la ventana no deja salir más peticiones hasta que haya respuestas
+            assertNull(deviceRequests.poll(20, TimeUnit.MILLISECONDS));
+            for (int i = batch.size() - 1; i >= 0; i--)
+                reply(batch.get(i));
+            answered += batch.size();
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("req" + i + "!", new String(requests.get(i).get(1, TimeUnit.SECONDS)));
+            assertEquals(1, requests.get(i).getResponseType());
+        }
+        assertEquals(10, pipeline.getCompleted());
+        assertEquals(0, pipeline.getInFlight());
+    }
+
+    @Test
+    public void timeoutCancelAndFullQueue() throws Exception {
+        SerialConnection connection = connect();
+        pipeline = new RequestPipeline(connection, manager.getScheduler(), true,
+                RequestPipeline.DEFAULT_MAX_PAYLOAD, 1, 1, 100);
+        RequestPipeline.Request first = pipeline.send(1, "a".getBytes());
+        RequestPipeline.Request queued = pipeline.send(1, "b".getBytes());
+        RequestPipeline.Request rejected = pipeline.send(1, "c".getBytes());
+
+        try {
+            rejected.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertTrue(queued.cancel(false));
+        assertTrue(queued.isCancelled());
+        assertEquals(-1, queued.getSequence());
+        try {
+            queued.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+
+        try {
+            first.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertFalse(first.cancel(false));
+        assertEquals(1, pipeline.getTimeouts());
+        assertEquals(1, pipeline.getCancelled());
+        assertEquals(1, pipeline.getFailed());
+        assertEquals(0, pipeline.getInFlight());
+    }
+}
@@ -0,0 +1,101 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.SerialConnection;
+import com.adlrg.bluetooth.SerialConnectionManager;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class SerialConnectionManagerTest {
+
+    @Test
+    public void sessionsShareThePoolsAndCloseIndependently() throws Exception {
+        SerialConnectionManager manager = new SerialConnectionManager(DIRECT, 1);
+        PipedTransport first = new PipedTransport();
+        PipedTransport second = new PipedTransport();
+        RecordingListener firstListener = new RecordingListener();
+        RecordingListener secondListener = new RecordingListener();
+        SerialConnection firstConnection = manager.open("00:11:22:33:44:01", first, firstListener);
+        manager.open("00:11:22:33:44:02", second, secondListener);
+        assertTrue(firstListener.connected.await(1, TimeUnit.SECONDS));
+        assertTrue(secondListener.connected.await(1, TimeUnit.SECONDS));
+        assertEquals(2, manager.size());
+
+        firstListener.expected = new CountDownLatch(4);
+        secondListener.expected = new CountDownLatch(4);
+        first.getDeviceOutputStream().write("uno\0".getBytes());
+        second.getDeviceOutputStream().write("dos\0".getBytes());
+        assertTrue(firstListener.expected.await(1, TimeUnit.SECONDS));
+        assertTrue(secondListener.expected.await(1, TimeUnit.SECONDS));
+        assertEquals("uno\0", firstListener.received.toString());
+        assertEquals("dos\0", secondListener.received.toString());
+        assertEquals(2, manager.getReadingThreads());
+
+        // el dispositivo cierra su lado; la otra sesión sigue funcionando
+        first.getDeviceOutputStream().close();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (firstConnection.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertFalse(firstConnection.isConnected());
+        assertEquals(1, manager.size());
+
+        byte[] message = "K\0".getBytes();
+        assertTrue(manager.get("00:11:22:33:44:02").write(message));
+        byte[] sent = new byte[message.length];
+        InputStream deviceIn = second.getDeviceInputStream();
+        int n = 0;
+        while (n < sent.length)
+            n += deviceIn.read(sent, n, sent.length - n);
+        assertArrayEquals(message, sent);
+
+        manager.shutdown();
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void slowOpenDoesNotHoldUpWrites() throws Exception {
+        SerialConnectionManager manager = new SerialConnectionManager(DIRECT, 1);
+        PipedTransport fast = new PipedTransport();
+        RecordingListener fastListener = new RecordingListener();
+        SerialConnection connection = manager.open("00:11:22:33:44:01", fast, fastListener);
+        assertTrue(fastListener.connected.await(1, TimeUnit.SECONDS));
+
+        // un dispositivo que no responde mantiene su apertura bloqueada
+        final CountDownLatch answer = new CountDownLatch(1);
+        PipedTransport slow = new PipedTransport() {
+            @Override
+            public void open() throws IOException {
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.open();
+            }
+        };
+        RecordingListener slowListener = new RecordingListener();
+        manager.open("00:11:22:33:44:02", slow, slowListener);
+
+        byte[] message = "K\0".getBytes();
+        assertTrue(connection.write(message));
+        InputStream deviceIn = fast.getDeviceInputStream();
+        long deadline = System.currentTimeMillis() + 1000;
+        while (deviceIn.available() < message.length && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(message.length, deviceIn.available());
+        assertEquals(1, slowListener.connected.getCount());
+
+        answer.countDown();
+        assertTrue(slowListener.connected.await(1, TimeUnit.SECONDS));
+        manager.shutdown();
+    }
+}
@@ -0,0 +1,330 @@
+package adlrg.com.morse;
+
+import adlrg.com.morse.TestSupport.RecordingListener;
+import com.adlrg.bluetooth.ConnectStats;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.ReconnectListener;
+import com.adlrg.bluetooth.ReconnectPolicy;
+import com.adlrg.bluetooth.SerialConnection;
+import com.adlrg.bluetooth.TcpLoopbackTransport;
+import com.adlrg.bluetooth.WritePipeline;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static adlrg.com.morse.TestSupport.DIRECT;
+import static org.junit.Assert.*;
+
+public class SerialConnectionTest {
+
+    @Test
+    public void pipedTransport_roundTrip() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        byte[] message = "hola\0".getBytes();
+        listener.expected = new CountDownLatch(message.length);
+        transport.getDeviceOutputStream().write(message);
+        assertTrue(listener.expected.await(1, TimeUnit.SECONDS));
+        assertArrayEquals(message, listener.received.toByteArray());
+
+        assertTrue(connection.write(message));
+        byte[] sent = new byte[message.length];
+        InputStream deviceIn = transport.getDeviceInputStream();
+        int n = 0;
+        while (n < sent.length)
+            n += deviceIn.read(sent, n, sent.length - n);
+        assertArrayEquals(message, sent);
+
+        assertTrue(connection.close());
+        assertFalse(connection.write(message));
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void write_coalescesMessagesAndConfirmsEachOne() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        final CountDownLatch written = new CountDownLatch(20);
+        WritePipeline.WriteCallback callback = new WritePipeline.WriteCallback() {
+            @Override
+            public void onComplete() {
+                written.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+            }
+        };
+        byte[] message = "-.-.\0".getBytes();
+        for (int i = 0; i < 20; i++)
+            assertTrue(connection.write(message, 0, message.length, callback));
+        assertTrue(written.await(1, TimeUnit.SECONDS));
+        assertEquals(20 * message.length, connection.getWritePipeline().getBytesWritten());
+        assertTrue(connection.getWritePipeline().getWrites() < 20);
+
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void tcpLoopbackTransport_echo() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread echo = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = server.accept();
+                    InputStream in = socket.getInputStream();
+                    OutputStream out = socket.getOutputStream();
+                    byte[] buffer = new byte[256];
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        out.write(buffer, 0, n);
+                    socket.close();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        echo.start();
+
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(new TcpLoopbackTransport(server.getLocalPort()),
+                listener, DIRECT, readExecutor, writeExecutor);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        byte[] message = "SOS\0".getBytes();
+        listener.expected = new CountDownLatch(message.length);
+        assertTrue(connection.write(message));
+        assertTrue(listener.expected.await(1, TimeUnit.SECONDS));
+        assertArrayEquals(message, listener.received.toByteArray());
+
+        connection.close();
+        server.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void reconnect_keepsQueuedWritesAcrossOutage() throws Exception {
+        final boolean[] refuse = {false};
+        PipedTransport transport = new PipedTransport() {
+            @Override
+            public synchronized void open() throws IOException {
+                if (refuse[0]) throw new IOException("Device unreachable");
+                super.open();
+            }
+        };
+        final CountDownLatch retrying = new CountDownLatch(2);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        connection.setReconnectPolicy(new ReconnectPolicy(1, 20, 0, 50));
+        connection.setReconnectListener(new ReconnectListener() {
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+                retrying.countDown();
+            }
+
+            @Override
+            public void onReconnected(ConnectStats stats) {
+                reconnected.countDown();
+            }
+        });
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        synchronized (transport) {
+            refuse[0] = true;
+        }
+        transport.getDeviceOutputStream().close();
+        assertTrue(retrying.await(1, TimeUnit.SECONDS));
+        assertTrue(connection.isConnected());
+        assertTrue(connection.isReconnecting());
+
+        byte[] message = "QRV\0".getBytes();
+        assertTrue(connection.write(message));
+        synchronized (transport) {
+            refuse[0] = false;
+        }
+        assertTrue(reconnected.await(1, TimeUnit.SECONDS));
+
+        byte[] sent = new byte[message.length];
+        InputStream deviceIn = transport.getDeviceInputStream();
+        int n = 0;
+        while (n < sent.length)
+            n += deviceIn.read(sent, n, sent.length - n);
+        assertArrayEquals(message, sent);
+        assertEquals(1, connection.getConnectStats().getReconnects());
+        assertTrue(connection.getConnectStats().getFailures() >= 1);
+
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void write_rejectsMessageLargerThanTheQueue() {
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            WritePipeline pipeline = new WritePipeline(writeExecutor, 64, 8, 16, 0);
+            pipeline.offer(new byte[pipeline.getCapacity() + 1], 0, pipeline.getCapacity() + 1, null);
+        } finally {
+            writeExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reconnect_doesNotResendTheBatchThatFailedMidWrite() throws Exception {
+        final boolean[] broken = {true};
+        PipedTransport transport = new PipedTransport() {
+            @Override
+            public synchronized OutputStream getOutputStream() {
+                final OutputStream out = super.getOutputStream();
+                if (!broken[0]) return out;
+                broken[0] = false;
+                // el enlace se corta después de mandar parte del bloque
+                return new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        throw new IOException("Link lost");
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, Math.min(len, 2));
+                        throw new IOException("Link lost");
+                    }
+                };
+            }
+        };
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        connection.setReconnectPolicy(new ReconnectPolicy(1, 20, 0, 50));
+        connection.setReconnectListener(new ReconnectListener() {
+            @Override
+            public void onReconnecting(int attempt, long delayMillis) {
+            }
+
+            @Override
+            public void onReconnected(ConnectStats stats) {
+                reconnected.countDown();
+            }
+        });
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        assertTrue(connection.write("uno\0".getBytes(), 0, 4, new WritePipeline.WriteCallback() {
+            @Override
+            public void onComplete() {
+            }
+
+            @Override
+            public void onError(Exception e) {
+                failed.countDown();
+            }
+        }));
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        assertTrue(reconnected.await(1, TimeUnit.SECONDS));
+
+        // el dispositivo pudo haber recibido "un": el mensaje no se repite
+        byte[] message = "dos\0".getBytes();
+        assertTrue(connection.write(message));
+        byte[] sent = new byte[message.length];
+        InputStream deviceIn = transport.getDeviceInputStream();
+        int n = 0;
+        while (n < sent.length)
+            n += deviceIn.read(sent, n, sent.length - n);
+        assertArrayEquals(message, sent);
+
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Test
+    public void close_racingWritersLeaveNothingPendingAndDisconnectOnce() throws Exception {
+        PipedTransport transport = new PipedTransport();
+        RecordingListener listener = new RecordingListener();
+        ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+        final SerialConnection connection = new SerialConnection(transport, listener, DIRECT, readExecutor, writeExecutor);
+        connection.open();
+        assertTrue(listener.connected.await(1, TimeUnit.SECONDS));
+        assertEquals(SerialConnection.CONNECTED, connection.getState());
+
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger settled = new AtomicInteger();
+        final WritePipeline.WriteCallback callback = new WritePipeline.WriteCallback() {
+            @Override
+            public void onComplete() {
+                settled.incrementAndGet();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                settled.incrementAndGet();
+            }
+        };
+        final byte[] message = "E\0".getBytes();
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 2000; n++)
+                        if (connection.write(message, 0, message.length, callback))
+                            accepted.incrementAndGet();
+                }
+            });
+            writers[i].start();
+        }
+        assertTrue(connection.close());
+        assertFalse(connection.close());
+        for (Thread writer : writers)
+            writer.join();
+        // un bloque que ya se estaba escribiendo confirma sus mensajes en el hilo de escritura
+        writeExecutor.shutdown();
+        assertTrue(writeExecutor.awaitTermination(1, TimeUnit.SECONDS));
+
+        assertEquals(SerialConnection.IDLE, connection.getState());
+        assertEquals(0, connection.getWritePipeline().getPendingMessages());
+        assertEquals(accepted.get(), settled.get());
+        assertEquals(1, listener.disconnects.get());
+        assertFalse(connection.write(message));
+        readExecutor.shutdownNow();
+    }
+}
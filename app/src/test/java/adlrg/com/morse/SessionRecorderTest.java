@@ -0,0 +1,65 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.ReplayTransport;
+import com.adlrg.bluetooth.SessionReader;
+import com.adlrg.bluetooth.SessionRecorder;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+
+    @Test
+    public void recordAndReadBack() throws Exception {
+        File file = File.createTempFile("session", ".mdr");
+        file.deleteOnExit();
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.onReceived("hola\0".getBytes(), 0, 5);
+        recorder.onSent("SOS".getBytes(), 0, 3);
+        byte[] big = new byte[3 << 20];
+        big[big.length - 1] = 7;
+        recorder.onReceived(big, 0, big.length);
+        recorder.close();
+        assertEquals(file.length(), recorder.getSize());
+
+        SessionReader reader = new SessionReader(file);
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.RECEIVED, reader.getType());
+        assertEquals("hola\0", new String(reader.getPayload(), 0, reader.getLength()));
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.SENT, reader.getType());
+        assertEquals("SOS", new String(reader.getPayload(), 0, reader.getLength()));
+        long sentMicros = reader.getTimeMicros();
+        assertTrue(reader.next());
+        assertEquals(big.length, reader.getLength());
+        assertEquals(7, reader.getPayload()[big.length - 1]);
+        assertTrue(reader.getTimeMicros() >= sentMicros);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void replayFeedsOnlyReceivedData() throws Exception {
+        File file = File.createTempFile("session", ".mdr");
+        file.deleteOnExit();
+        SessionRecorder recorder = new SessionRecorder(file);
+        recorder.onReceived("uno\0".getBytes(), 0, 4);
+        recorder.onSent("ignorado".getBytes(), 0, 8);
+        recorder.onReceived("dos\0".getBytes(), 0, 4);
+        recorder.close();
+
+        ReplayTransport transport = new ReplayTransport(file, 0, true);
+        transport.open();
+        InputStream in = transport.getInputStream();
+        StringBuilder replayed = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0)
+            replayed.append((char) b);
+        assertEquals("uno\0dos\0", replayed.toString());
+        assertEquals(8, transport.getBytesReplayed());
+    }
+}
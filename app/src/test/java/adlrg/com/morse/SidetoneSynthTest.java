@@ -0,0 +1,83 @@
+package adlrg.com.morse;
+
+import com.adlrg.morse.MorseEncoder;
+import com.adlrg.morse.MorseTiming;
+import com.adlrg.morse.SidetoneSynth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SidetoneSynthTest {
+
+    /**
+     * Junta el audio en memoria y recuerda cada escritura
+     */
+    private static class MemorySink implements SidetoneSynth.PcmSink {
+        short[] pcm = new short[1 << 16];
+        int size;
+        final List<short[]> tables = new ArrayList<short[]>();
+        final List<Integer> starts = new ArrayList<Integer>();
+
+        @Override
+        public void write(short[] data, int offset, int length) {
+            if (size + length > pcm.length) {
+                short[] grown = new short[Math.max(pcm.length * 2, size + length)];
+                System.arraycopy(pcm, 0, grown, 0, size);
+                pcm = grown;
+            }
+            System.arraycopy(data, offset, pcm, size, length);
+            tables.add(data);
+            starts.add(size);
+            size += length;
+        }
+    }
+
+    @Test
+    public void rendersClickFreeElementsWithTheEncoderTiming() {
+        MorseTiming timing = new MorseTiming(30);
+        MorseEncoder encoder = new MorseEncoder(timing);
+        byte[] packet = new byte[256];
+        encoder.encode("SOS", 0, 3, packet, 0, packet.length);
+        int length = encoder.getEncodedLength();
+        packet[length] = '\0';
+
+        SidetoneSynth synth = new SidetoneSynth(8000, 600, timing);
+        MemorySink sink = new MemorySink();
+        int written = synth.render(packet, 0, length + 1, sink);
+
+        // S O S: 9 tonos, 6 espacios entre elementos y 2 entre caracteres
+        int dot = timing.dotMillis * 8;
+        int expected = (6 * dot + 3 * 3 * dot) + 6 * dot + 2 * timing.charGapMillis * 8;
+        assertEquals(expected, written);
+        assertEquals(written, sink.size);
+        assertEquals(17, sink.tables.size());
+
+        // cada escritura es un elemento entero: los tonos empiezan y terminan en silencio
+        int peak = 0;
+        for (int i = 0; i < sink.tables.size(); i += 2) {
+            int start = sink.starts.get(i);
+            int end = start + sink.tables.get(i).length;
+            assertEquals(0, sink.pcm[start]);
+            assertTrue(Math.abs(sink.pcm[end - 1]) < 100);
+            for (int j = start; j < end; j++)
+                peak = Math.max(peak, Math.abs(sink.pcm[j]));
+        }
+        assertTrue(peak > SidetoneSynth.AMPLITUDE * 0.95);
+        int gapStart = sink.starts.get(1);
+        for (int j = gapStart; j < gapStart + dot; j++)
+            assertEquals(0, sink.pcm[j]);
+
+        // los puntos son la misma tabla; una voz ya usada no se vuelve a calcular
+        short[] dotTable = sink.tables.get(0);
+        assertSame(dotTable, sink.tables.get(2));
+        synth.setVoice(900, new MorseTiming(20));
+        synth.setVoice(600, timing);
+        MemorySink again = new MemorySink();
+        synth.render(packet, 0, length, again);
+        assertSame(dotTable, again.tables.get(0));
+    }
+}
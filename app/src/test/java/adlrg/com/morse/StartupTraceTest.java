@@ -0,0 +1,25 @@
+package adlrg.com.morse;
+
+import com.adlrg.morse.StartupTrace;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+
+    @Test
+    public void keepsOnlyTheFirstMarkOfEachStep() throws Exception {
+        StartupTrace trace = new StartupTrace(System.nanoTime() - 5000000);
+        long content = trace.mark(StartupTrace.CONTENT);
+        assertTrue(content >= 5);
+        Thread.sleep(2);
+        assertEquals(-1, trace.mark(StartupTrace.CONTENT));
+        assertEquals(content, trace.getMillis(StartupTrace.CONTENT));
+        assertEquals(-1, trace.getMillis(StartupTrace.FIRST_BYTE));
+
+        trace.mark(StartupTrace.FIRST_FRAME);
+        assertTrue(trace.getMillis(StartupTrace.FIRST_FRAME) >= content);
+        assertTrue(trace.toString().startsWith("content " + content + " ms, first_frame "));
+    }
+}
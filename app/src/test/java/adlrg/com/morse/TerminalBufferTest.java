@@ -0,0 +1,50 @@
+package adlrg.com.morse;
+
+import com.adlrg.morse.TerminalBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TerminalBufferTest {
+
+    @Test
+    public void dropsTheOldestLinesAtCapacity() {
+        TerminalBuffer buffer = new TerminalBuffer(3);
+        buffer.append("a\nb\nc\nd\n");
+        assertEquals(3, buffer.size());
+        assertEquals("b", buffer.get(0));
+        assertEquals("d", buffer.get(2));
+        assertEquals(1, buffer.getDropped());
+
+        // el anillo da varias vueltas sin crecer
+        for (int i = 0; i < 10; i++)
+            buffer.append("linea " + i + "\n");
+        assertEquals(3, buffer.size());
+        assertEquals("linea 7", buffer.get(0));
+        assertEquals("linea 9", buffer.get(2));
+        assertEquals(11, buffer.getDropped());
+    }
+
+    @Test
+    public void continuesAnUnterminatedLastLine() {
+        TerminalBuffer buffer = new TerminalBuffer(2);
+        buffer.append("ho");
+        buffer.append("la\nmun");
+        assertEquals(2, buffer.size());
+        assertEquals("hola", buffer.get(0));
+        assertEquals("mun", buffer.get(1));
+        buffer.append("do\n");
+        assertEquals("mundo", buffer.get(1));
+
+        // con el anillo lleno y dado vuelta la línea abierta es la última
+        buffer.append("a\nb");
+        buffer.append("c\n");
+        assertEquals(2, buffer.size());
+        assertEquals("a", buffer.get(0));
+        assertEquals("bc", buffer.get(1));
+        buffer.append("d");
+        assertEquals("bc", buffer.get(0));
+        assertEquals("d", buffer.get(1));
+    }
+}
@@ -0,0 +1,67 @@
+package adlrg.com.morse;
+
+import com.adlrg.bluetooth.StreamingListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Piezas que comparten las pruebas de las conexiones
+ */
+final class TestSupport {
+
+    /** Corre cada tarea en el hilo que la encola */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Guarda lo que llega por la conexión. <code>expected</code> baja un paso
+     * por byte, para esperar a que llegue una cantidad conocida.
+     */
+    static class RecordingListener implements StreamingListener {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final AtomicInteger disconnects = new AtomicInteger();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile CountDownLatch expected = new CountDownLatch(0);
+        int calls;
+        int bytes;
+
+        @Override
+        public void onError(Exception e) {
+        }
+
+        @Override
+        public void onConnected() {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnected() {
+            disconnects.incrementAndGet();
+            disconnected.countDown();
+        }
+
+        @Override
+        public synchronized void onData(byte[] buffer, int length) {
+            calls++;
+            bytes += length;
+            received.write(buffer, 0, length);
+            for (int i = 0; i < length; i++)
+                expected.countDown();
+        }
+
+        synchronized int received() {
+            return received.size();
+        }
+    }
+
+    private TestSupport() {
+    }
+}
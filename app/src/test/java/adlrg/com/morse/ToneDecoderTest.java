@@ -0,0 +1,153 @@
+package adlrg.com.morse;
+
+import com.adlrg.morse.GoertzelBank;
+import com.adlrg.morse.MorseDecoder;
+import com.adlrg.morse.MorseEncoder;
+import com.adlrg.morse.MorseTiming;
+import com.adlrg.morse.SidetoneSynth;
+import com.adlrg.morse.ToneChannel;
+import com.adlrg.morse.WavReader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ToneDecoderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    /**
+     * Señal Morse sintetizada con silencio antes y después
+     */
+    private static short[] morse(String text, int wpm, int pitch) {
+        MorseTiming timing = new MorseTiming(wpm);
+        MorseEncoder encoder = new MorseEncoder(timing);
+        byte[] packet = new byte[4096];
+        encoder.encode(text, 0, text.length(), packet, 0, packet.length);
+        int length = encoder.getEncodedLength();
+        final short[] pcm = new short[SAMPLE_RATE * 8];
+        final int[] size = new int[1];
+        SidetoneSynth.PcmSink sink = new SidetoneSynth.PcmSink() {
+            @Override
+            public void write(short[] data, int offset, int n) {
+                System.arraycopy(data, offset, pcm, size[0], n);
+                size[0] += n;
+            }
+        };
+        SidetoneSynth synth = new SidetoneSynth(SAMPLE_RATE, pitch, timing);
+        synth.renderRun(false, 300, sink);
+        synth.render(packet, 0, length, sink);
+        synth.renderRun(false, 1000, sink);
+        return pcm;
+    }
+
+    private static class Channel {
+        final StringBuilder text = new StringBuilder();
+        final MorseDecoder decoder = new MorseDecoder(20, new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(char c) {
+                text.append(c);
+            }
+        });
+        final ToneChannel tone;
+
+        Channel(GoertzelBank bank, float minHz, float maxHz) {
+            tone = new ToneChannel(bank, minHz, maxHz, new ToneChannel.KeyListener() {
+                @Override
+                public void onKey(boolean keyDown, int millis) {
+                    decoder.sample(keyDown, millis);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void decodesTwoSimultaneousSignalsFromAWavFile() throws Exception {
+        short[] first = morse("PARIS SOS", 20, 650);
+        short[] second = morse("CQ TEST", 28, 1040);
+        Random random = new Random(7);
+        ByteArrayOutputStream wav = new ByteArrayOutputStream();
+        int samples = first.length;
+        writeHeader(wav, samples);
+        for (int i = 0; i < samples; i++) {
+            int mixed = first[i] + second[i] / 2 + (int) (random.nextGaussian() * 800);
+            mixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
+            wav.write(mixed & 0xFF);
+            wav.write((mixed >> 8) & 0xFF);
+        }
+
+        WavReader reader = new WavReader(new ByteArrayInputStream(wav.toByteArray()), 1000);
+        assertEquals(SAMPLE_RATE, reader.getSampleRate());
+        GoertzelBank bank = new GoertzelBank(reader.getSampleRate(), 80, 300, 1300);
+        Channel low = new Channel(bank, 400, 800);
+        Channel high = new Channel(bank, 900, 1200);
+        short[] buffer = new short[333];
+        int n;
+        while ((n = reader.read(buffer, 0, buffer.length)) > 0)
+            bank.process(buffer, 0, n);
+
+        assertEquals("PARIS SOS ", low.text.toString());
+        assertEquals("CQ TEST ", high.text.toString());
+        assertEquals(600, low.tone.getPitch(), 100);
+        assertEquals(1000, high.tone.getPitch(), 100);
+        assertEquals(28, high.decoder.getWpm(), 3);
+        assertFalse(low.tone.isKeyDown());
+    }
+
+    @Test
+    public void floatAndShortInputMeasureTheSameAmplitude() {
+        GoertzelBank bank = new GoertzelBank(8000, 80, 500, 900);
+        final float[] peak = new float[1];
+        new ToneChannel(bank, 500, 900, new ToneChannel.KeyListener() {
+            @Override
+            public void onKey(boolean keyDown, int millis) {
+            }
+        });
+        float[] tone = new float[800];
+        short[] pcm = new short[800];
+        for (int i = 0; i < tone.length; i++) {
+            tone[i] = (float) (0.5 * Math.sin(2 * Math.PI * 700 * i / 8000));
+            pcm[i] = (short) Math.round(tone[i] * 32768);
+        }
+        ToneChannel floats = new ToneChannel(bank, 600, 800, new ToneChannel.KeyListener() {
+            @Override
+            public void onKey(boolean keyDown, int millis) {
+                peak[0] += millis;
+            }
+        });
+        bank.process(tone, 0, tone.length);
+        assertEquals(100, peak[0], 0);
+        assertEquals(700, floats.getPitch(), 0);
+        assertEquals(0.5, floats.getPeak(), 0.05);
+        bank.process(pcm, 0, 17);
+        bank.process(pcm, 17, pcm.length - 17);
+        assertEquals(0.5, floats.getPeak(), 0.05);
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int samples) {
+        int[] fields = {0x46464952, 36 + samples * 2, 0x45564157, 0x20746D66, 16};
+        for (int field : fields) writeInt(out, field);
+        writeShort(out, 1);
+        writeShort(out, 1);
+        writeInt(out, SAMPLE_RATE);
+        writeInt(out, SAMPLE_RATE * 2);
+        writeShort(out, 2);
+        writeShort(out, 16);
+        writeInt(out, 0x61746164);
+        writeInt(out, samples * 2);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >>> 16);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+}
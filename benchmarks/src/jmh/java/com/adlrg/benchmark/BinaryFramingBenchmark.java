@@ -0,0 +1,119 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.BinaryFrameDecoder;
+import com.adlrg.bluetooth.BinaryFrameEncoder;
+import com.adlrg.bluetooth.FrameDecoder;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Envío y recepción de un bloque de muestras de 16 bits: como texto separado
+ * por comas terminado en '\0', contra {@link BinaryFrameEncoder} y
+ * {@link BinaryFrameDecoder}. El resultado está en muestras por segundo; el
+ * contador auxiliar <code>bytes</code> da los bytes por segundo que ocupa cada
+ * formato en el enlace.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BinaryFramingBenchmark {
+
+    private static final int SAMPLES = 64;
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Wire {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean cobs;
+
+    private final short[] samples = new short[SAMPLES];
+    private final byte[] payload = new byte[SAMPLES * 2];
+    private BinaryFrameEncoder encoder;
+    private BinaryFrameDecoder binaryDecoder;
+    private FrameDecoder textDecoder;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        for (int i = 0; i < SAMPLES; i++)
+            samples[i] = (short) (Math.sin(i / 4.0) * 20000);
+        encoder = new BinaryFrameEncoder(cobs, payload.length);
+        binaryDecoder = new BinaryFrameDecoder(cobs, payload.length, new BinaryFrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, int sequence, byte[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i += 2)
+                    blackhole.consume((short) ((buffer[offset + i] << 8) | (buffer[offset + i + 1] & 0xFF)));
+            }
+
+            @Override
+            public void onCorruptFrame() {
+            }
+        });
+        textDecoder = new FrameDecoder(FrameDecoder.Framing.NUL, 4096, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                for (String value : new String(buffer, offset, length).split(","))
+                    blackhole.consume(Short.parseShort(value));
+            }
+
+            @Override
+            public void onOversizedFrame() {
+            }
+        });
+    }
+
+    private byte[] textFrame() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < SAMPLES; i++) {
+            if (i > 0) text.append(',');
+            text.append(samples[i]);
+        }
+        return (text.toString() + '\0').getBytes();
+    }
+
+    private int binaryFrame() {
+        for (int i = 0; i < SAMPLES; i++) {
+            payload[2 * i] = (byte) (samples[i] >> 8);
+            payload[2 * i + 1] = (byte) samples[i];
+        }
+        return encoder.encode(1, encoder.nextSequence(), payload, 0, payload.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void text(Wire wire) {
+        byte[] frame = textFrame();
+        wire.bytes += frame.length;
+        textDecoder.feed(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void binary(Wire wire) {
+        int n = binaryFrame();
+        wire.bytes += n;
+        binaryDecoder.feed(encoder.getBuffer(), 0, n);
+    }
+}
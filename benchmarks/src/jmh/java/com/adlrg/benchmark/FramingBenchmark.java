@@ -0,0 +1,93 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Separación de mensajes terminados en '\0' con {@link FrameDecoder} contra
+ * la lógica original de MainActivity, que juntaba los trozos en un
+ * ByteBuffer que se duplicaba al llenarse. Ambos crean el String del mensaje,
+ * como hace la pantalla. El resultado está en mensajes por segundo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FramingBenchmark {
+
+    private static final int FRAMES = 1000;
+
+    @Param({"16", "200"})
+    public int frameSize;
+
+    @Param({"64", "256"})
+    public int chunkSize;
+
+    private byte[] stream;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+    private ByteBuffer byteBuffer;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        stream = new byte[FRAMES * frameSize];
+        for (int i = 0; i < stream.length; i++)
+            stream[i] = (i + 1) % frameSize == 0 ? 0 : (byte) ('a' + i % 26);
+        decoder = new FrameDecoder(FrameDecoder.Framing.NUL, 4096, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                blackhole.consume(new String(buffer, offset, length));
+            }
+
+            @Override
+            public void onOversizedFrame() {
+            }
+        });
+        byteBuffer = ByteBuffer.allocate(1024);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void frameDecoder() {
+        for (int off = 0; off < stream.length; off += chunkSize)
+            decoder.feed(stream, off, Math.min(chunkSize, stream.length - off));
+    }
+
+    /**
+     * Réplica del onData original. Solo reconoce el final de un mensaje si
+     * coincide con el final de un trozo, así que con trozos que no se alinean
+     * junta varios mensajes en un solo String.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void legacyByteBuffer() {
+        byte[] chunk = new byte[chunkSize];
+        for (int off = 0; off < stream.length; off += chunkSize) {
+            int length = Math.min(chunkSize, stream.length - off);
+            System.arraycopy(stream, off, chunk, 0, length);
+            if (byteBuffer.position() + length >= byteBuffer.capacity()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
+                newBuffer.put(byteBuffer.array(), 0, byteBuffer.position());
+                byteBuffer = newBuffer;
+            }
+            byteBuffer.put(chunk, 0, length);
+            if (chunk[length - 1] == '\0') {
+                blackhole.consume(new String(byteBuffer.array(), 0, byteBuffer.position()));
+                byteBuffer.clear();
+            }
+        }
+    }
+}
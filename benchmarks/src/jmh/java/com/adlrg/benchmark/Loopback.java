@@ -0,0 +1,88 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.PipedTransport;
+import com.adlrg.bluetooth.SerialConnection;
+import com.adlrg.bluetooth.StreamingListener;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Una {@link SerialConnection} sobre un {@link PipedTransport}, con los
+ * callbacks ejecutados directamente en el hilo de lectura. El lado del
+ * dispositivo queda libre para que cada benchmark lo maneje.
+ */
+class Loopback implements StreamingListener {
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    final PipedTransport transport = new PipedTransport(1 << 20);
+    final SerialConnection connection;
+    private final ExecutorService readExecutor = Executors.newSingleThreadExecutor();
+    private final ScheduledExecutorService writeExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final CountDownLatch connected = new CountDownLatch(1);
+    volatile long received;
+    private volatile boolean closing;
+
+    Loopback(DataDispatcher.Mode mode) throws InterruptedException {
+        this(mode, DataDispatcher.DEFAULT_MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * @param maxBufferSize tamaño máximo de lectura; igual a
+     *                      {@link DataDispatcher#DEFAULT_BUFFER_SIZE} para leer siempre lo mismo
+     */
+    Loopback(DataDispatcher.Mode mode, int maxBufferSize) throws InterruptedException {
+        DataDispatcher dispatcher = new DataDispatcher(this, DIRECT, DataDispatcher.DEFAULT_BUFFERS,
+                DataDispatcher.DEFAULT_BUFFER_SIZE, maxBufferSize);
+        dispatcher.setMode(mode, 0);
+        connection = new SerialConnection(transport, this, DIRECT, readExecutor, writeExecutor, dispatcher);
+        connection.open();
+        if (!connected.await(5, TimeUnit.SECONDS))
+            throw new IllegalStateException("Loopback did not connect");
+    }
+
+    /**
+     * Espera activamente hasta que el listener haya recibido {@code total} bytes
+     */
+    void awaitReceived(long total) {
+        while (received < total)
+            Thread.yield();
+    }
+
+    void close() {
+        closing = true;
+        connection.close();
+        readExecutor.shutdownNow();
+        writeExecutor.shutdownNow();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        if (!closing) e.printStackTrace();
+    }
+
+    @Override
+    public void onConnected() {
+        connected.countDown();
+    }
+
+    @Override
+    public void onDisconnected() {
+    }
+
+    @Override
+    public void onData(byte[] buffer, int length) {
+        received += length;
+    }
+}
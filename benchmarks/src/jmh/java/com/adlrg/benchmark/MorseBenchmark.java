@@ -0,0 +1,67 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.morse.MorseDecoder;
+import com.adlrg.morse.MorseEncoder;
+import com.adlrg.morse.MorseTiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Codificación y decodificación Morse de un texto fijo. El resultado está en
+ * caracteres por segundo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MorseBenchmark {
+
+    private static final String TEXT = "THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG 0123456789 ";
+    /** Longitud de {@link #TEXT}; @OperationsPerInvocation necesita una constante */
+    private static final int CHARACTERS = 55;
+
+    private MorseEncoder encoder;
+    private MorseDecoder decoder;
+    private byte[] packets;
+    private int packetLength;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(final Blackhole blackhole) {
+        this.blackhole = blackhole;
+        encoder = new MorseEncoder(new MorseTiming(20));
+        packets = new byte[CHARACTERS * encoder.maxCharBytes()];
+        encoder.encode(TEXT, 0, CHARACTERS, packets, 0, packets.length);
+        packetLength = encoder.getEncodedLength();
+        decoder = new MorseDecoder(20, new MorseDecoder.Listener() {
+            @Override
+            public void onCharacter(char c) {
+                blackhole.consume(c);
+            }
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHARACTERS)
+    public int encode() {
+        encoder.reset();
+        encoder.encode(TEXT, 0, CHARACTERS, packets, 0, packets.length);
+        return encoder.getEncodedLength();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHARACTERS)
+    public void decode() {
+        decoder.feed(packets, 0, packetLength);
+        decoder.flush();
+    }
+}
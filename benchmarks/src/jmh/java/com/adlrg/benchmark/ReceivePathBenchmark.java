@@ -0,0 +1,70 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.DataDispatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ruta de recepción completa: el dispositivo escribe, el ciclo de lectura
+ * toma buffers del anillo y {@link DataDispatcher} los entrega a onData.
+ * El resultado está en bytes por segundo. {@code maxBufferSize} = 256
+ * reproduce las lecturas de tamaño fijo; 4096 deja crecer las lecturas
+ * durante la ráfaga.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReceivePathBenchmark {
+
+    private static final int BYTES_PER_INVOCATION = 64 * 1024;
+
+    @Param({"IMMEDIATE", "COALESCED"})
+    public DataDispatcher.Mode mode;
+
+    @Param({"16", "256"})
+    public int chunkSize;
+
+    @Param({"256", "4096"})
+    public int maxBufferSize;
+
+    private Loopback loopback;
+    private OutputStream device;
+    private byte[] chunk;
+    private long sent;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        loopback = new Loopback(mode, maxBufferSize);
+        device = loopback.transport.getDeviceOutputStream();
+        chunk = new byte[chunkSize];
+        sent = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        loopback.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BYTES_PER_INVOCATION)
+    public long receive() throws IOException {
+        for (int n = 0; n < BYTES_PER_INVOCATION; n += chunkSize)
+            device.write(chunk, 0, chunkSize);
+        sent += BYTES_PER_INVOCATION;
+        loopback.awaitReceived(sent);
+        return loopback.received;
+    }
+}
@@ -0,0 +1,56 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.WritePipeline;
+import com.adlrg.morse.MorseEncoder;
+import com.adlrg.morse.MorseTiming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparación de un mensaje para enviarlo: el texto con su '\0' como lo
+ * hacía el envío original, contra los paquetes de manipulación de
+ * {@link MorseEncoder} en bloques del tamaño de escritura de
+ * {@link WritePipeline}. El resultado está en mensajes por segundo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendEncodingBenchmark {
+
+    @Param({"CQ", "CQ CQ DE XE1ADL XE1ADL K THE QUICK BROWN FOX JUMPS OVER THE LAZY DOG"})
+    public String message;
+
+    private MorseEncoder encoder;
+    private byte[] packet;
+
+    @Setup
+    public void setUp() {
+        encoder = new MorseEncoder(new MorseTiming(20));
+        packet = new byte[WritePipeline.DEFAULT_BATCH_SIZE];
+    }
+
+    @Benchmark
+    public byte[] textFrame() {
+        return (message + '\0').getBytes();
+    }
+
+    @Benchmark
+    public void morsePackets(Blackhole blackhole) {
+        encoder.reset();
+        int start = 0;
+        while (start < message.length()) {
+            start += encoder.encode(message, start, message.length(), packet, 0, packet.length);
+            blackhole.consume(encoder.getEncodedLength());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.adlrg.benchmark;
+
+import com.adlrg.bluetooth.DataDispatcher;
+import com.adlrg.bluetooth.SerialConnection;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ruta de envío. {@link #write} mide cuántos mensajes por segundo acepta
+ * {@link SerialConnection#write} con el dispositivo leyendo todo lo que llega,
+ * reintentando cuando la cola está llena. {@link #roundTrip} mide la latencia
+ * de un mensaje que el dispositivo regresa como eco; con
+ * {@link Mode#SampleTime} JMH reporta sus percentiles.
+ */
+@State(Scope.Benchmark)
+public class WritePipelineBenchmark {
+
+    private static final byte[] MESSAGE = "-.-. --.-\0\0\0\0\0\0\0".getBytes();
+
+    private Loopback loopback;
+    private Thread device;
+    private volatile boolean echo;
+    private long expected;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        loopback = new Loopback(DataDispatcher.Mode.IMMEDIATE);
+        final InputStream in = loopback.transport.getDeviceInputStream();
+        final OutputStream out = loopback.transport.getDeviceOutputStream();
+        device = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4096];
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0)
+                        if (echo) out.write(buffer, 0, n);
+                } catch (IOException ignored) {
+                }
+            }
+        }, "device");
+        device.setDaemon(true);
+        device.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        loopback.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void write() {
+        echo = false;
+        while (!loopback.connection.write(MESSAGE))
+            Thread.yield();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long roundTrip() {
+        echo = true;
+        if (expected < loopback.received) expected = loopback.received;
+        expected += MESSAGE.length;
+        while (!loopback.connection.write(MESSAGE))
+            Thread.yield();
+        loopback.awaitReceived(expected);
+        return expected;
+    }
+}